@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+public class SqliteHistoryStoreTest extends AndroidTestCase {
+    private static final long DAY_MS = HistorySegments.DAY_MS;
+
+    /**
+     * Noon UTC some day, so that a few hours either way stays on the same day.
+     */
+    private static final long NOON = 16000 * DAY_MS + DAY_MS / 2;
+
+    private File directory;
+    private File file;
+    private SqliteHistoryStore testMe;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        //noinspection ConstantConditions
+        directory = new File(getContext().getCacheDir(), "sqlitehistorystoretest");
+        deleteDirectory();
+        file = new File(directory, SqliteHistoryStore.FILE_NAME);
+        testMe = new SqliteHistoryStore(file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            testMe.close();
+            deleteDirectory();
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(!directory.exists() || directory.delete());
+    }
+
+    private static List<HistoryEvent> readAll(HistoryCursor cursor) {
+        List<HistoryEvent> returnMe = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            returnMe.add(cursor.toHistoryEvent());
+        }
+        return returnMe;
+    }
+
+    public void testAppendAndRangeCursor() throws Exception {
+        Assert.assertTrue(testMe.isEmpty());
+        Assert.assertNull(testMe.readFirstEvent());
+
+        HistoryEvent boot = HistoryEvent.createSystemBootingEvent(NOON, true);
+        HistoryEvent level = HistoryEvent.createBatteryLevelEvent(NOON + 1000, 50);
+        HistoryEvent info = HistoryEvent.createInfoEvent(NOON + 1000, "Räksmörgås");
+        HistoryEvent upgrade = HistoryEvent.createPackageUpgradedEvent(NOON + 2000, 3, 4, 5);
+        HistoryEvent halt = HistoryEvent.createSystemHaltingEvent(NOON + 3000);
+        testMe.append(Arrays.asList(boot, level, info));
+        testMe.append(Arrays.asList(upgrade, halt));
+
+        Assert.assertFalse(testMe.isEmpty());
+        Assert.assertEquals(boot, testMe.readFirstEvent());
+        Assert.assertEquals(Arrays.asList(boot, level, info, upgrade, halt),
+                readAll(testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE)));
+
+        // Both ends are inclusive, and events with the same timestamp keep their order
+        Assert.assertEquals(Arrays.asList(level, info, upgrade),
+                readAll(testMe.cursor(NOON + 1000, NOON + 2000)));
+
+        Assert.assertEquals(Arrays.asList(boot, upgrade),
+                readAll(testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE, EnumSet.of(
+                        HistoryEvent.Type.SYSTEM_BOOT, HistoryEvent.Type.PACKAGE_UPGRADED))));
+
+        Assert.assertEquals(Arrays.asList(halt, upgrade, info, level),
+                readAll(testMe.reverseCursor(NOON + 1000)));
+    }
+
+    public void testCursorSpanningPages() throws Exception {
+        List<HistoryEvent> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Several events per timestamp, so pages end in the middle of a timestamp
+            events.add(HistoryEvent.createBatteryLevelEvent(NOON + i / 3, i % 100));
+        }
+        testMe.append(events);
+
+        Assert.assertEquals(events, readAll(testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    public void testRetentionAndSize() throws Exception {
+        char[] array = new char[1000];
+        Arrays.fill(array, 'x');
+        String message = new String(array);
+
+        long firstDay = HistorySegments.getDay(NOON);
+        for (int day = 0; day < 3; day++) {
+            List<HistoryEvent> events = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                events.add(HistoryEvent.createInfoEvent(NOON + day * DAY_MS + i, message));
+            }
+            testMe.append(events);
+        }
+
+        // Days without events count as segments too
+        testMe.append(Arrays.asList(
+                HistoryEvent.createBatteryLevelEvent(NOON + 5 * DAY_MS, 50)));
+
+        Assert.assertEquals(6, testMe.getSegmentCount());
+        Assert.assertEquals(Long.valueOf(firstDay), testMe.getOldestDay());
+        long size = testMe.getSize();
+        Assert.assertTrue("Size is " + size, size > 3 * 200 * 1000);
+
+        List<HistoryEvent> oldest = new ArrayList<>();
+        for (HistoryEvent event : testMe.readOldestSegment()) {
+            oldest.add(event);
+        }
+        Assert.assertEquals(200, oldest.size());
+        Assert.assertEquals(NOON, oldest.get(0).getTimestamp());
+
+        Assert.assertEquals(firstDay, testMe.dropOldestSegment());
+        Assert.assertEquals(5, testMe.getSegmentCount());
+        Assert.assertEquals(Long.valueOf(firstDay + 1), testMe.getOldestDay());
+
+        // The file doesn't shrink, but the size must
+        long sizeAfterDrop = testMe.getSize();
+        Assert.assertTrue("Size went from " + size + " to " + sizeAfterDrop,
+                sizeAfterDrop < size - 100 * 1000);
+
+        testMe.dropOldestSegment();
+        testMe.dropOldestSegment();
+        Assert.assertEquals(1, testMe.getSegmentCount());
+        Assert.assertEquals(Long.valueOf(firstDay + 5), testMe.getOldestDay());
+
+        testMe.dropOldestSegment();
+        Assert.assertEquals(0, testMe.getSegmentCount());
+        Assert.assertNull(testMe.getOldestDay());
+        Assert.assertTrue(testMe.isEmpty());
+    }
+
+    public void testImportLegacyFile() throws Exception {
+        HistoryEvent old = HistoryEvent.createBatteryLevelEvent(NOON, 51);
+        HistoryEvent older = HistoryEvent.createInfoEvent(NOON - 1000, "Legacy");
+        HistoryEvent recent = HistoryEvent.createBatteryLevelEvent(NOON + DAY_MS, 49);
+        testMe.append(Arrays.asList(recent));
+
+        File legacyFile = new File(directory, "events.log");
+        for (int i = 0; i < 2; i++) {
+            FileWriter writer = new FileWriter(legacyFile);
+            try {
+                writer.write(older.serializeToString() + "\n");
+                writer.write(old.serializeToString() + "\n");
+            } finally {
+                writer.close();
+            }
+
+            // The second time around simulates an import interrupted before deleting the file
+            testMe.importLegacyFile(legacyFile);
+            Assert.assertFalse(legacyFile.exists());
+            Assert.assertEquals(Arrays.asList(older, old, recent),
+                    readAll(testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE)));
+        }
+    }
+}
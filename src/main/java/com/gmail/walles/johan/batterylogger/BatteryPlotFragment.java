@@ -81,6 +81,19 @@ public class BatteryPlotFragment extends Fragment {
     // Cache shown dialogs so we don't flood SharedPreferences with calls while zooming
     private final Set<String> shownDialogs = new HashSet<>();
 
+    /**
+     * Set once the zoomed out view has been loaded.
+     */
+    @Nullable
+    private History history;
+
+    /**
+     * Individual events are only loaded for where we're zoomed in, this is the range we have.
+     */
+    private long loadedFromMs;
+    private long loadedToMs;
+    private boolean loadingEvents;
+
     private void zoom(double factor, double pivot) {
         double leftSpan = pivot - minX;
         minX = pivot - leftSpan * factor;
@@ -139,6 +152,8 @@ public class BatteryPlotFragment extends Fragment {
 
         plot.setShowEvents(isShowingEvents());
         plot.invalidate();
+
+        startLoadingVisibleEvents(plot);
     }
 
     private static final DialogInterface.OnClickListener DIALOG_DISMISSER = new DialogInterface.OnClickListener() {
@@ -303,23 +318,9 @@ public class BatteryPlotFragment extends Fragment {
         // Initialize our XYPlot view reference:
         final XYPlot plot = (XYPlot)rootView.findViewById(R.id.mySimpleXYPlot);
 
-        addPlotData(plot);
         plot.setOnTouchListener(getOnTouchListener(plot));
         setUpPlotLayout(plot);
-
-        // Animate to max zoomed out
-        minX = maxX - 86400 * 1000;
-        if (minX < originalMinX) {
-            minX = originalMinX;
-        }
-        // Delaying startup animation 250ms makes it smoother in the simulator at least; my guess is
-        // the delay makes it not interfere with other startup tasks.
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                animateXRange(plot, originalMinX, originalMaxX);
-            }
-        }, 250);
+        startLoadingPlotData(plot);
 
         long t1 = System.currentTimeMillis();
         long dMillis = t1 - t0;
@@ -377,32 +378,187 @@ public class BatteryPlotFragment extends Fragment {
         return parts.size() == 0;
     }
 
-    private void addPlotData(final XYPlot plot) {
-        try {
-            // Add battery drain series to the plot
-            History history = new History(getActivity());
-            if (history.isEmpty() && BuildConfig.DEBUG && isRunningOnEmulator()) {
-                history = History.createFakeHistory();
+    /**
+     * Load history in the background.
+     * <p>
+     * The zoomed out view is built from hourly and daily rollups, which are small however much
+     * history there is. Individual events are only read for the last day, which is where we start
+     * out zoomed in, and then for wherever the user zooms in.
+     */
+    private void startLoadingPlotData(final XYPlot plot) {
+        final Context context = getActivity().getApplicationContext();
+        new AsyncTask<Void, Void, PlotData>() {
+            private long t0;
+            private long lastDayFromMs;
+
+            @Nullable
+            private History loadedHistory;
+
+            @Nullable
+            private List<DrainSample> hourlyDrain;
+
+            @Nullable
+            private List<DrainSample> dailyDrain;
+
+            @Nullable
+            private IOException exception;
+
+            @Override
+            protected void onPreExecute() {
+                t0 = SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            protected PlotData doInBackground(Void... voids) {
+                try {
+                    History history = new History(context);
+                    if (history.isEmpty() && BuildConfig.DEBUG && isRunningOnEmulator()) {
+                        history = History.createFakeHistory();
+                    }
+
+                    hourlyDrain = history.getHourlyDrain();
+                    dailyDrain = history.getDailyDrain();
+
+                    // Show the last day with any data, even if the most recent data is old
+                    long lastMs = System.currentTimeMillis();
+                    HistoryEvent lastEvent = history.getLastEvent();
+                    if (lastEvent != null) {
+                        lastMs = Math.min(lastMs, lastEvent.getTimestamp());
+                    }
+                    lastDayFromMs = lastMs - ONE_DAY_MS;
+                    PlotData returnMe = history.getPlotData(lastDayFromMs, Long.MAX_VALUE);
+
+                    loadedHistory = history;
+                    return returnMe;
+                } catch (IOException e) {
+                    exception = e;
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(@Nullable PlotData lastDay) {
+                if (!isAdded()) {
+                    return;
+                }
+
+                if (lastDay == null) {
+                    Timber.e(exception, "Reading battery history failed");
+                    //noinspection ConstantConditions
+                    showAlertDialog("Reading Battery History Failed", exception.getMessage(),
+                            DIALOG_DISMISSER);
+                    return;
+                }
+
+                history = loadedHistory;
+                loadedFromMs = lastDayFromMs;
+                loadedToMs = Long.MAX_VALUE;
+                showPlotData(plot, lastDay, hourlyDrain, dailyDrain);
+                Timber.i("Loading battery history took %dms", SystemClock.elapsedRealtime() - t0);
+                animateToAllData(plot);
+
+                //noinspection ConstantConditions
+                if (hourlyDrain.isEmpty() && lastDay.isEmpty()) {
+                    showAlertDialogOnce(
+                            "No Battery History Recorded",
+                            "Come back in a few hours to get a graph, or in a week to be able to see patterns.");
+                } else if (dailyDrain.size() < 5) {
+                    showAlertDialogOnce(
+                            "Very Short Battery History Recorded",
+                            "If you come back in a week you'll be able to see patterns much better.");
+                }
+            }
+
+            // Don't queue up behind the legend loading
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * When zoomed in, load individual events for what's visible plus a few days on each side, so
+     * scrolling around a bit doesn't need any more loading.
+     */
+    private void startLoadingVisibleEvents(final XYPlot plot) {
+        if (history == null || loadingEvents || !isShowingEvents()) {
+            return;
+        }
+        if (minX >= loadedFromMs && maxX <= loadedToMs) {
+            return;
+        }
+
+        final History history = this.history;
+        final long fromMs = (long)minX - 3 * ONE_DAY_MS;
+        final long toMs = (long)maxX + 3 * ONE_DAY_MS;
+        loadingEvents = true;
+        new AsyncTask<Void, Void, PlotData>() {
+            @Nullable
+            private IOException exception;
+
+            @Override
+            protected PlotData doInBackground(Void... voids) {
+                try {
+                    return history.getPlotData(fromMs, toMs);
+                } catch (IOException e) {
+                    exception = e;
+                    return null;
+                }
             }
 
-            plot.setDrainDots(history.getBatteryDrain());
-            final List<DrainSample> drainLines = history.getDrainLines();
-            plot.setDrainLines(drainLines);
-            plot.setEvents(history.getEvents());
-
-            if (history.isEmpty()) {
-                showAlertDialogOnce(
-                        "No Battery History Recorded",
-                        "Come back in a few hours to get a graph, or in a week to be able to see patterns.");
-            } else if (drainLines.size() < 5) {
-                showAlertDialogOnce(
-                        "Very Short Battery History Recorded",
-                        "If you come back in a week you'll be able to see patterns much better.");
+            @Override
+            protected void onPostExecute(@Nullable PlotData plotData) {
+                loadingEvents = false;
+
+                // Even if loading failed, so that we don't retry on every redraw
+                loadedFromMs = fromMs;
+                loadedToMs = toMs;
+
+                if (!isAdded()) {
+                    return;
+                }
+                if (plotData == null) {
+                    Timber.e(exception, "Reading battery history from %d to %d failed",
+                            fromMs, toMs);
+                    return;
+                }
+
+                plot.setDrainDots(plotData.drainDots);
+                plot.setDrainLines(plotData.drainLines);
+                plot.setEvents(plotData.events);
+                redrawPlot(plot);
             }
-        } catch (IOException e) {
-            Timber.e(e, "Reading battery history failed");
-            showAlertDialog("Reading Battery History Failed", e.getMessage(), DIALOG_DISMISSER);
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static void showPlotData(XYPlot plot, PlotData plotData,
+            @Nullable List<DrainSample> zoomedOutDrainDots,
+            @Nullable List<DrainSample> zoomedOutDrainLines)
+    {
+        plot.setDrainDots(plotData.drainDots);
+        plot.setZoomedOutDrainDots(zoomedOutDrainDots);
+        plot.setDrainLines(plotData.drainLines);
+        plot.setZoomedOutDrainLines(zoomedOutDrainLines);
+        plot.setEvents(plotData.events);
+    }
+
+    /**
+     * Start at the last day, then animate to max zoomed out.
+     */
+    private void animateToAllData(final XYPlot plot) {
+        setUpPlotLayout(plot);
+        minX = maxX - ONE_DAY_MS;
+        if (minX < originalMinX) {
+            minX = originalMinX;
         }
+        plot.setXRange(minX, maxX);
+        redrawPlot(plot);
+
+        // Delaying startup animation 250ms makes it smoother in the simulator at least; my guess is
+        // the delay makes it not interfere with other startup tasks.
+        new Handler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                animateXRange(plot, originalMinX, originalMaxX);
+            }
+        }, 250);
     }
 
     private View.OnTouchListener getOnTouchListener(final XYPlot plot) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * Compact encoding of history events, used in segment files from format version 3.
+ * <p>
+ * Each event is a type tag byte followed by its timestamp as a signed {@link Varints varint}
+ * delta from the previous event's timestamp. Battery levels are signed varint deltas from the
+ * previous battery level. Package events have their package id, version id and for upgrades
+ * previous version id as unsigned varints.
+ * <p>
+ * Keyframe events, flagged in the tag byte, instead have an absolute timestamp and an absolute
+ * battery level to compute the next delta from. Decoding can start at any keyframe.
+ */
+class CompactEventCodec {
+    private static final int KEYFRAME_FLAG = 0x80;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private long previousTimestamp;
+    private int previousPercentage;
+    private boolean keyframe;
+
+    long getPreviousTimestamp() {
+        return previousTimestamp;
+    }
+
+    int getPreviousPercentage() {
+        return previousPercentage;
+    }
+
+    /**
+     * Set what the next event's deltas are relative to, for decoding from an event that isn't a
+     * keyframe.
+     */
+    void setPrevious(long timestamp, int percentage) {
+        previousTimestamp = timestamp;
+        previousPercentage = percentage;
+    }
+
+    /**
+     * Whether the most recently encoded or decoded event was a keyframe.
+     */
+    boolean isKeyframe() {
+        return keyframe;
+    }
+
+    void encode(HistoryEvent event, boolean keyframe, DataOutput out) throws IOException {
+        HistoryEvent.Type type = event.getType();
+        long timestamp = event.getTimestamp();
+
+        out.writeByte(type.tag | (keyframe ? KEYFRAME_FLAG : 0));
+        if (keyframe) {
+            Varints.writeSigned(out, timestamp);
+            Varints.writeSigned(out, previousPercentage);
+        } else {
+            Varints.writeSigned(out, timestamp - previousTimestamp);
+        }
+        previousTimestamp = timestamp;
+        this.keyframe = keyframe;
+
+        switch (type) {
+            case INFO:
+                byte[] messageBytes = event.getMessage().getBytes(UTF_8);
+                Varints.writeUnsigned(out, messageBytes.length);
+                out.write(messageBytes);
+                break;
+            case BATTERY_LEVEL:
+                Varints.writeSigned(out, event.getPercentage() - previousPercentage);
+                previousPercentage = event.getPercentage();
+                break;
+            case SYSTEM_BOOT:
+                out.writeByte(event.isCharging() ? 1 : 0);
+                break;
+            case PACKAGE_UPGRADED:
+                Varints.writeUnsigned(out, event.getPackageId());
+                Varints.writeUnsigned(out, event.getVersionId());
+                Varints.writeUnsigned(out, event.getPreviousVersionId());
+                break;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_REMOVED:
+                Varints.writeUnsigned(out, event.getPackageId());
+                Varints.writeUnsigned(out, event.getVersionId());
+                break;
+            default:
+                // No payload for this type
+        }
+    }
+
+    /**
+     * Decode one event into a reusable record, advancing the buffer past it. Only INFO events
+     * allocate, for their message.
+     *
+     * @return false if the buffer is empty
+     * @throws BufferUnderflowException if the buffer ends in the middle of the event
+     */
+    boolean decodeInto(ByteBuffer buffer, EventRecord record) throws ParseException {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+
+        int tag = buffer.get() & 0xff;
+        HistoryEvent.Type type = HistoryEvent.Type.fromTag(tag & ~KEYFRAME_FLAG);
+        keyframe = (tag & KEYFRAME_FLAG) != 0;
+        if (keyframe) {
+            previousTimestamp = Varints.readSigned(buffer);
+            previousPercentage = (int)Varints.readSigned(buffer);
+        } else {
+            previousTimestamp += Varints.readSigned(buffer);
+        }
+
+        switch (type) {
+            case INFO:
+                long length = Varints.readUnsigned(buffer);
+                if (length > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                byte[] messageBytes = new byte[(int)length];
+                buffer.get(messageBytes);
+                record.set(previousTimestamp, type, 0, new String(messageBytes, UTF_8));
+                return true;
+            case BATTERY_LEVEL:
+                previousPercentage += (int)Varints.readSigned(buffer);
+                record.set(previousTimestamp, type, previousPercentage, null);
+                return true;
+            case SYSTEM_BOOT:
+                record.set(previousTimestamp, type, buffer.get() != 0 ? 1 : 0, null);
+                return true;
+            case SYSTEM_SHUTDOWN:
+            case START_CHARGING:
+            case STOP_CHARGING:
+                record.set(previousTimestamp, type, 0, null);
+                return true;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                int packageId = readId(buffer);
+                int versionId = readId(buffer);
+                int previousVersionId = HistoryEvent.NO_VERSION;
+                if (type == HistoryEvent.Type.PACKAGE_UPGRADED) {
+                    previousVersionId = readId(buffer);
+                }
+                record.setPackageChange(
+                        previousTimestamp, type, packageId, versionId, previousVersionId);
+                return true;
+            default:
+                throw new ParseException("Unsupported event type " + type, buffer.position());
+        }
+    }
+
+    private static int readId(ByteBuffer buffer) throws ParseException {
+        long id = Varints.readUnsigned(buffer);
+        if (id < 0 || id > Integer.MAX_VALUE) {
+            throw new ParseException(
+                    "Package dictionary id out of range: " + id, buffer.position());
+        }
+        return (int)id;
+    }
+}
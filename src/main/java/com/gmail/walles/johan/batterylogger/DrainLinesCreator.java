@@ -24,28 +24,53 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 
 import timber.log.Timber;
 
 public class DrainLinesCreator {
-    private final List<HistoryEvent> history;
-    private List<DrainSample> drainLines;
+    private final HistoryCursor history;
+    private final List<DrainSample> drainLines = new ArrayList<>();
+    private boolean finished = false;
 
-    @Nullable
-    private Date lineStart;
+    private int eventCount;
+    private long lastTimestamp;
+
+    private boolean haveLineStart = false;
+    private long lineStart;
 
     @Nullable
     private Boolean charging;
 
-    @Nullable
-    private List<HistoryEvent> currentDrainEvents;
+    /**
+     * Number of BATTERY_LEVEL events since the current line started.
+     */
+    private int drainEventCount;
+    private long lastDrainTimestamp;
+    private int lastDrainPercentage;
+
+    /**
+     * Sum and count of the positive drain speeds between consecutive BATTERY_LEVEL events since
+     * the current line started.
+     */
+    private double percentPerHourSum;
+    private int percentPerHourCount;
+
+    public DrainLinesCreator(Iterable<HistoryEvent> history) {
+        this(EventColumns.of(history).cursor());
+    }
 
-    public DrainLinesCreator(List<HistoryEvent> history) {
+    public DrainLinesCreator(HistoryCursor history) {
         this.history = history;
     }
 
+    /**
+     * For feeding events one at a time through {@link #add(HistoryCursor)}.
+     */
+    DrainLinesCreator() {
+        this(new EventColumns(0).cursor());
+    }
+
     static double median(List<Double> numbers) {
         if (numbers.size() == 0) {
             throw new IllegalArgumentException("Must get at least one number to compute median");
@@ -84,53 +109,52 @@ public class DrainLinesCreator {
 
     @Nullable
     private Double getDrainLineLevel() {
-        if (currentDrainEvents == null) {
-            throw new IllegalStateException("No drain events => level undefined");
-        }
-        if (currentDrainEvents.size() < 2) {
+        if (drainEventCount < 2) {
             throw new IllegalStateException("Need at least two drain events to compute a level, got "
-                    + currentDrainEvents.size());
+                    + drainEventCount);
         }
 
-        List<Double> numbers = new ArrayList<>(currentDrainEvents.size() - 1);
-
-        HistoryEvent previous = null;
-        for (HistoryEvent drainEvent : currentDrainEvents) {
-            if (previous != null) {
-                long dMilliseconds =
-                        drainEvent.getTimestamp().getTime() - previous.getTimestamp().getTime();
-                double dHours = dMilliseconds / (3600 * 1000.0);
-
-                int percentDischarge = previous.getPercentage() - drainEvent.getPercentage();
-                double percentPerHour = percentDischarge / dHours;
+        if (percentPerHourCount == 0) {
+            return null;
+        }
 
-                if (percentPerHour <= 0) {
-                    // This is an edge case that we choose to ignore. You get here by charging
-                    // your phone short enough time that both the before and after samples says
-                    // "draining", but long enough that the after sample has higher charge
-                    // percentage than the before one.
-                    continue;
-                }
+        // No matter how much I like medians, the input here is quantized and averages will give
+        // us a much better representation of what the drain has actually been over a period.
+        return percentPerHourSum / percentPerHourCount;
+    }
 
-                numbers.add(percentPerHour);
+    private void addDrainEvent(long timestamp, int percentage) {
+        if (drainEventCount > 0) {
+            long dMilliseconds = timestamp - lastDrainTimestamp;
+            double dHours = dMilliseconds / (3600 * 1000.0);
+
+            int percentDischarge = lastDrainPercentage - percentage;
+            double percentPerHour = percentDischarge / dHours;
+
+            // Non-positive drain is an edge case that we choose to ignore. You get there by
+            // charging your phone short enough time that both the before and after samples says
+            // "draining", but long enough that the after sample has higher charge percentage than
+            // the before one.
+            if (percentPerHour > 0) {
+                percentPerHourSum += percentPerHour;
+                percentPerHourCount++;
             }
-            previous = drainEvent;
         }
 
-        // No matter how much I like medians, the input here is quantized and averages will give
-        // us a much better representation of what the drain has actually been over a period.
-        return average(numbers);
+        drainEventCount++;
+        lastDrainTimestamp = timestamp;
+        lastDrainPercentage = percentage;
     }
 
     @Nullable
-    private DrainSample createDrainLine(Date lineEnd) {
+    private DrainSample createDrainLine(long lineEnd) {
         if (charging == null) {
             // Don't know whether we're charging, don't draw anything
             Timber.v("No charging state => no line");
             return null;
         }
 
-        if (lineStart == null) {
+        if (!haveLineStart) {
             // Don't know when the current run started, don't draw anything
             Timber.v("No line start => no line");
             return null;
@@ -142,13 +166,13 @@ public class DrainLinesCreator {
             drainLines.add(new DrainSample(lineStart, lineEnd, 0));
         }
 
-        if (currentDrainEvents == null) {
+        if (drainEventCount == 0) {
             Timber.v("No drain events => no line");
             // No drain events, can't draw anything
             return null;
         }
 
-        if (currentDrainEvents.size() < 2) {
+        if (drainEventCount < 2) {
             Timber.v("Too few drain events => no line");
             // Too few drain events to be able to compute a drain speed, don't draw anything
             return null;
@@ -165,20 +189,26 @@ public class DrainLinesCreator {
         return new DrainSample(lineStart, lineEnd, y);
     }
 
-    private void finishLine(Date lineEnd) {
+    private void finishLine(long lineEnd) {
         DrainSample drainLine = createDrainLine(lineEnd);
         if (drainLine != null) {
             drainLines.add(drainLine);
         }
 
-        currentDrainEvents = null;
+        drainEventCount = 0;
+        percentPerHourSum = 0;
+        percentPerHourCount = 0;
+        haveLineStart = true;
         lineStart = lineEnd;
     }
 
-    private void handleEvent(HistoryEvent event) {
+    private void handleEvent(HistoryCursor event) {
         switch (event.getType()) {
             case INFO:
-                // This event type intentionally ignored
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                // These event types intentionally ignored
                 break;
 
             case START_CHARGING:
@@ -202,41 +232,56 @@ public class DrainLinesCreator {
                 break;
 
             case BATTERY_LEVEL:
-                if (currentDrainEvents == null) {
-                    currentDrainEvents = new LinkedList<>();
-                }
-                currentDrainEvents.add(event);
+                addDrainEvent(event.getTimestamp(), event.getPercentage());
                 break;
         }
     }
 
-    public List<DrainSample> getDrainLines() {
-        if (drainLines != null) {
-            return drainLines;
+    /**
+     * Add the current event of a cursor that someone else is moving.
+     */
+    void add(HistoryCursor event) {
+        if (finished) {
+            return;
         }
-        drainLines = new ArrayList<>();
 
-        if (history.isEmpty()) {
-            return drainLines;
+        eventCount++;
+        lastTimestamp = event.getTimestamp();
+        try {
+            handleEvent(event);
+        } catch (IllegalArgumentException e) {
+            Timber.e(e, "Error handling history event, ignoring this one: %s",
+                    event.toHistoryEvent());
         }
+    }
 
-        for (HistoryEvent event : history) {
-            try {
-                handleEvent(event);
-            } catch (IllegalArgumentException e) {
-                Timber.e(e, "Error handling history event, ignoring this one: %s", event);
-            }
+    /**
+     * Finish the last line. Events added after this are ignored.
+     */
+    List<DrainSample> finish() {
+        if (finished) {
+            return drainLines;
         }
+        finished = true;
 
-        if (history.size() >= 2) {
-            HistoryEvent lastEvent = history.get(history.size() - 1);
+        if (eventCount >= 2) {
             try {
-                finishLine(lastEvent.getTimestamp());
+                finishLine(lastTimestamp);
             } catch (IllegalArgumentException e) {
-                Timber.e(e, "Error finishing history recreation, ignoring last event: %s", lastEvent);
+                Timber.e(e, "Error finishing history recreation, ignoring last event at %s",
+                        new Date(lastTimestamp));
             }
         }
 
         return drainLines;
     }
+
+    public List<DrainSample> getDrainLines() {
+        if (!finished) {
+            while (history.moveToNext()) {
+                add(history);
+            }
+        }
+        return finish();
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import com.gmail.walles.johan.batterylogger.plot.DrainSample;
+
+/**
+ * Battery statistics for one hour or one day.
+ */
+public class DrainRollup {
+    public final long startMsSinceEpoch;
+    public final long endMsSinceEpoch;
+
+    /**
+     * How long we've been discharging and charging during this period. Time when the system was
+     * down, or when we didn't know whether we were charging, isn't counted.
+     */
+    public final long dischargeMs;
+    public final long chargeMs;
+
+    public final int bootCount;
+
+    /**
+     * Total battery level drop and the time it dropped over, from consecutive battery level
+     * samples with positive drain.
+     */
+    private final double drainedPercent;
+    private final long drainMs;
+
+    DrainRollup(long startMsSinceEpoch, long endMsSinceEpoch,
+                long drainMs, double drainedPercent,
+                long dischargeMs, long chargeMs, int bootCount)
+    {
+        this.startMsSinceEpoch = startMsSinceEpoch;
+        this.endMsSinceEpoch = endMsSinceEpoch;
+        this.drainMs = drainMs;
+        this.drainedPercent = drainedPercent;
+        this.dischargeMs = dischargeMs;
+        this.chargeMs = chargeMs;
+        this.bootCount = bootCount;
+    }
+
+    /**
+     * Mean drain speed in percent per hour, or null if the battery didn't drain during this
+     * period.
+     */
+    @Nullable
+    public Double getMeanDrain() {
+        if (drainMs <= 0) {
+            return null;
+        }
+        return drainedPercent / (drainMs / (double)History.HOUR_MS);
+    }
+
+    /**
+     * This period's mean drain as something to plot, or null if there was no drain.
+     */
+    @Nullable
+    public DrainSample toDrainSample() {
+        Double meanDrain = getMeanDrain();
+        if (meanDrain == null) {
+            return null;
+        }
+        return new DrainSample(startMsSinceEpoch, endMsSinceEpoch, meanDrain);
+    }
+}
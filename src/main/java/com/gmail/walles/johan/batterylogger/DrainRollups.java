@@ -0,0 +1,579 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Battery drain statistics per hour or per day, updated as events are added.
+ * <p>
+ * Persisted rollups are stored in a file next to the history segments: a header with what we
+ * need to know for adding more events, followed by fixed size rows, oldest first. Adding events
+ * only ever changes the last few rows or adds new ones, so flushing rewrites the header and the
+ * tail.
+ * <p>
+ * The header has a checksum covering itself and the rows a flush may rewrite. Rollups left
+ * inconsistent by an interrupted flush fail the checksum, and get recreated from the history.
+ */
+class DrainRollups {
+    static final String HOURLY_FILE_NAME = "hourly.rollups";
+    static final String DAILY_FILE_NAME = "daily.rollups";
+
+    /**
+     * "BROL" in ASCII.
+     */
+    private static final int ROLLUPS_MAGIC = 0x42524f4c;
+    private static final int ROLLUPS_VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 1 + 1 + 1 + 8 + 4 + 4 + 4 + 4;
+    static final int ROW_SIZE = 8 + 4 + 4 + 4 + 4 + 4;
+
+    private static final byte CHARGING_UNKNOWN = -1;
+
+    private static final int DRAIN = 0;
+    private static final int DISCHARGE = 1;
+    private static final int CHARGE = 2;
+
+    private final long bucketMs;
+
+    /**
+     * Null for rollups that are only kept in memory.
+     */
+    @Nullable
+    private final File file;
+
+    private long lastEventTimestamp = Long.MIN_VALUE;
+    private boolean systemDown;
+    private byte charging = CHARGING_UNKNOWN;
+    private boolean haveLastLevel;
+    private long lastLevelTimestamp;
+    private int lastLevelPercentage;
+
+    private long[] starts = new long[16];
+    private int[] drainMs = new int[16];
+    private float[] drainedPercent = new float[16];
+    private int[] dischargeMs = new int[16];
+    private int[] chargeMs = new int[16];
+    private int[] bootCounts = new int[16];
+    private int rowCount;
+
+    /**
+     * Row number in {@link #file} of our first row. Non-zero when we only keep the tail of the
+     * file in memory.
+     */
+    private int firstRow;
+
+    /**
+     * Our first row that has changed since we last flushed.
+     */
+    private int firstDirtyRow;
+
+    /**
+     * Rollups kept in memory only.
+     */
+    DrainRollups(long bucketMs) {
+        this(bucketMs, null);
+    }
+
+    private DrainRollups(long bucketMs, @Nullable File file) {
+        if (bucketMs <= 0 || bucketMs > HistorySegments.DAY_MS) {
+            throw new IllegalArgumentException("Unsupported bucket size " + bucketMs + "ms");
+        }
+        this.bucketMs = bucketMs;
+        this.file = file;
+    }
+
+    /**
+     * Start new rollups replacing whatever is in file. Nothing is written until {@link #flush()}.
+     */
+    static DrainRollups create(File file, long bucketMs) {
+        return new DrainRollups(bucketMs, file);
+    }
+
+    /**
+     * Load all rollups from file.
+     *
+     * @throws IOException if file can't be read or contains something else than rollups with this
+     * bucket size
+     */
+    static DrainRollups load(File file, long bucketMs) throws IOException {
+        DrainRollups returnMe = new DrainRollups(bucketMs, file);
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            returnMe.readHeader(in);
+            int fileRowCount = in.readInt();
+            int checkedFromRow = in.readInt();
+            int checksum = in.readInt();
+            checkRowCount(file, file.length(), fileRowCount, checkedFromRow);
+
+            for (int row = 0; row < fileRowCount; row++) {
+                returnMe.readRow(in);
+            }
+            returnMe.checkChecksum(checkedFromRow, checksum);
+        } finally {
+            in.close();
+        }
+
+        returnMe.firstDirtyRow = returnMe.rowCount;
+        return returnMe;
+    }
+
+    /**
+     * Load what's needed for adding more events to the rollups in file, but not the rows that
+     * can't change any more.
+     *
+     * @return null if there are no usable rollups in file
+     */
+    @Nullable
+    static DrainRollups openForAppending(File file, long bucketMs) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DrainRollups returnMe = new DrainRollups(bucketMs, file);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            returnMe.readHeader(in);
+            int fileRowCount = in.readInt();
+            int checkedFromRow = in.readInt();
+            int checksum = in.readInt();
+            checkRowCount(file, in.length(), fileRowCount, checkedFromRow);
+
+            // Rows before the checked ones can't change any more
+            in.seek(HEADER_SIZE + (long)checkedFromRow * ROW_SIZE);
+            for (int row = checkedFromRow; row < fileRowCount; row++) {
+                returnMe.readRow(in);
+            }
+            returnMe.firstRow = checkedFromRow;
+            returnMe.checkChecksum(checkedFromRow, checksum);
+        } catch (IOException e) {
+            Timber.w(e, "Discarding unusable rollups: %s", file.getAbsolutePath());
+            return null;
+        } finally {
+            in.close();
+        }
+
+        returnMe.forgetFinishedRows();
+        return returnMe;
+    }
+
+    private static void checkRowCount(
+            File file, long fileLength, int fileRowCount, int checkedFromRow)
+            throws IOException
+    {
+        if (fileRowCount < 0 || checkedFromRow < 0 || checkedFromRow > fileRowCount) {
+            throw new IOException("Bad row count " + fileRowCount
+                    + " or first checked row " + checkedFromRow);
+        }
+        long expectedLength = HEADER_SIZE + (long)fileRowCount * ROW_SIZE;
+        if (fileLength != expectedLength) {
+            throw new IOException("Expected " + fileRowCount + " rows in "
+                    + file.getAbsolutePath() + " but it's " + fileLength + " bytes");
+        }
+    }
+
+    /**
+     * Verify the rows we have read from checkedFromRow on against the checksum in the header.
+     */
+    private void checkChecksum(int checkedFromRow, int checksum) throws IOException {
+        int actual = computeChecksum(
+                serializeHeader(firstRow + rowCount, checkedFromRow),
+                serializeRows(checkedFromRow - firstRow));
+        if (actual != checksum) {
+            throw new IOException("Rollups checksum mismatch, probably from an interrupted flush");
+        }
+    }
+
+    private static int computeChecksum(byte[] header, byte[] rows) {
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        crc.update(rows);
+        return (int)crc.getValue();
+    }
+
+    private void readHeader(DataInput in) throws IOException {
+        if (in.readInt() != ROLLUPS_MAGIC || in.readInt() != ROLLUPS_VERSION) {
+            throw new IOException("Not a rollups file");
+        }
+        long fileBucketMs = in.readLong();
+        if (fileBucketMs != bucketMs) {
+            throw new IOException("Expected " + bucketMs + "ms rollups, got " + fileBucketMs);
+        }
+
+        lastEventTimestamp = in.readLong();
+        systemDown = in.readBoolean();
+        charging = in.readByte();
+        haveLastLevel = in.readBoolean();
+        lastLevelTimestamp = in.readLong();
+        lastLevelPercentage = in.readInt();
+    }
+
+    private void readRow(DataInput in) throws IOException {
+        long start = in.readLong();
+        int rowDrainMs = in.readInt();
+        float rowDrainedPercent = in.readFloat();
+        int rowDischargeMs = in.readInt();
+        int rowChargeMs = in.readInt();
+        int rowBootCount = in.readInt();
+
+        int row = insertRow(rowCount, start);
+        drainMs[row] = rowDrainMs;
+        drainedPercent[row] = rowDrainedPercent;
+        dischargeMs[row] = rowDischargeMs;
+        chargeMs[row] = rowChargeMs;
+        bootCounts[row] = rowBootCount;
+    }
+
+    long getBucketMs() {
+        return bucketMs;
+    }
+
+    /**
+     * Timestamp of the last event added, or Long.MIN_VALUE if none has been.
+     */
+    long getLastEventTimestamp() {
+        return lastEventTimestamp;
+    }
+
+    private long getBucketStart(long timestampMs) {
+        // Round towards minus infinity, even for pre-1970 timestamps
+        long bucket = timestampMs / bucketMs;
+        if (timestampMs < 0 && timestampMs % bucketMs != 0) {
+            bucket--;
+        }
+        return bucket * bucketMs;
+    }
+
+    /**
+     * Insert an empty row at index.
+     */
+    private int insertRow(int index, long start) {
+        if (rowCount == starts.length) {
+            int capacity = rowCount * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            drainMs = Arrays.copyOf(drainMs, capacity);
+            drainedPercent = Arrays.copyOf(drainedPercent, capacity);
+            dischargeMs = Arrays.copyOf(dischargeMs, capacity);
+            chargeMs = Arrays.copyOf(chargeMs, capacity);
+            bootCounts = Arrays.copyOf(bootCounts, capacity);
+        }
+
+        int moveCount = rowCount - index;
+        System.arraycopy(starts, index, starts, index + 1, moveCount);
+        System.arraycopy(drainMs, index, drainMs, index + 1, moveCount);
+        System.arraycopy(drainedPercent, index, drainedPercent, index + 1, moveCount);
+        System.arraycopy(dischargeMs, index, dischargeMs, index + 1, moveCount);
+        System.arraycopy(chargeMs, index, chargeMs, index + 1, moveCount);
+        System.arraycopy(bootCounts, index, bootCounts, index + 1, moveCount);
+
+        starts[index] = start;
+        drainMs[index] = 0;
+        drainedPercent[index] = 0;
+        dischargeMs[index] = 0;
+        chargeMs[index] = 0;
+        bootCounts[index] = 0;
+        rowCount++;
+        return index;
+    }
+
+    /**
+     * Find or add the row for a bucket, and mark it as changed.
+     */
+    private int getRow(long bucketStart) {
+        // We're almost always updating one of the last rows
+        int row = rowCount;
+        while (row > 0 && starts[row - 1] > bucketStart) {
+            row--;
+        }
+        if (row > 0 && starts[row - 1] == bucketStart) {
+            row--;
+        } else {
+            insertRow(row, bucketStart);
+        }
+
+        firstDirtyRow = Math.min(firstDirtyRow, row);
+        return row;
+    }
+
+    /**
+     * Start of the oldest bucket that adding more events can change. Battery drain since the
+     * last battery level goes into the buckets from that level on.
+     */
+    private long getOldestChangeableBucket() {
+        long oldestChangeable = lastEventTimestamp;
+        if (haveLastLevel && lastLevelTimestamp < oldestChangeable) {
+            oldestChangeable = lastLevelTimestamp;
+        }
+        return getBucketStart(oldestChangeable);
+    }
+
+    /**
+     * Add a time span to the buckets it overlaps.
+     *
+     * @param percent For DRAIN, how much the battery level dropped over this span
+     */
+    private void spread(long fromMs, long toMs, int what, double percent) {
+        long bucketStart = getBucketStart(fromMs);
+        while (bucketStart < toMs) {
+            long overlapMs =
+                    Math.min(toMs, bucketStart + bucketMs) - Math.max(fromMs, bucketStart);
+            int row = getRow(bucketStart);
+            switch (what) {
+                case DRAIN:
+                    drainMs[row] += overlapMs;
+                    drainedPercent[row] += percent * overlapMs / (toMs - fromMs);
+                    break;
+                case DISCHARGE:
+                    dischargeMs[row] += overlapMs;
+                    break;
+                case CHARGE:
+                    chargeMs[row] += overlapMs;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown rollup field " + what);
+            }
+            bucketStart += bucketMs;
+        }
+    }
+
+    /**
+     * Add events, oldest first. Events older than the last one added are ignored, since the rows
+     * they would have affected may already have been written.
+     */
+    void add(HistoryCursor event) {
+        while (event.moveToNext()) {
+            long timestamp = event.getTimestamp();
+            if (timestamp < lastEventTimestamp) {
+                Timber.w("Not adding event older than the last one to rollups: %s",
+                        event.toHistoryEvent());
+                continue;
+            }
+
+            if (lastEventTimestamp != Long.MIN_VALUE && !systemDown
+                    && charging != CHARGING_UNKNOWN && timestamp > lastEventTimestamp)
+            {
+                spread(lastEventTimestamp, timestamp, charging == 1 ? CHARGE : DISCHARGE, 0);
+            }
+            lastEventTimestamp = timestamp;
+
+            switch (event.getType()) {
+                case SYSTEM_SHUTDOWN:
+                    systemDown = true;
+                    haveLastLevel = false;
+                    charging = CHARGING_UNKNOWN;
+                    break;
+                case SYSTEM_BOOT:
+                    if (!systemDown) {
+                        // Missing shutdown event; assume an unclean shutdown
+                        haveLastLevel = false;
+                    }
+                    systemDown = false;
+                    charging = (byte)(event.isCharging() ? 1 : 0);
+                    bootCounts[getRow(getBucketStart(timestamp))]++;
+                    break;
+                case START_CHARGING:
+                    charging = 1;
+                    break;
+                case STOP_CHARGING:
+                    charging = 0;
+                    break;
+                case BATTERY_LEVEL:
+                    addBatteryLevel(timestamp, event.getPercentage());
+                    break;
+                default:
+                    // Doesn't affect the rollups
+            }
+        }
+    }
+
+    private void addBatteryLevel(long timestamp, int percentage) {
+        if (systemDown) {
+            return;
+        }
+
+        // Same as for History.getBatteryDrain(), drain <= 0 happens while charging
+        if (haveLastLevel && timestamp > lastLevelTimestamp && percentage < lastLevelPercentage) {
+            spread(lastLevelTimestamp, timestamp, DRAIN, lastLevelPercentage - percentage);
+        }
+
+        haveLastLevel = true;
+        lastLevelTimestamp = timestamp;
+        lastLevelPercentage = percentage;
+    }
+
+    /**
+     * Rollups for the buckets overlapping fromMs up to and including toMs, oldest first. Buckets
+     * without any data are left out.
+     */
+    List<DrainRollup> getRollups(long fromMs, long toMs) {
+        List<DrainRollup> returnMe = new ArrayList<>();
+        for (int i = 0; i < rowCount; i++) {
+            long start = starts[i];
+            long end = start + bucketMs;
+            if (end <= fromMs) {
+                continue;
+            }
+            if (start > toMs) {
+                break;
+            }
+
+            returnMe.add(new DrainRollup(start, end,
+                    drainMs[i], drainedPercent[i], dischargeMs[i], chargeMs[i], bootCounts[i]));
+        }
+        return returnMe;
+    }
+
+    /**
+     * The header without its checksum.
+     */
+    private byte[] serializeHeader(int fileRowCount, int checkedFromRow) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ROLLUPS_MAGIC);
+        out.writeInt(ROLLUPS_VERSION);
+        out.writeLong(bucketMs);
+        out.writeLong(lastEventTimestamp);
+        out.writeBoolean(systemDown);
+        out.writeByte(charging);
+        out.writeBoolean(haveLastLevel);
+        out.writeLong(lastLevelTimestamp);
+        out.writeInt(lastLevelPercentage);
+        out.writeInt(fileRowCount);
+        out.writeInt(checkedFromRow);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Our rows from fromRow on.
+     */
+    private byte[] serializeRows(int fromRow) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = fromRow; i < rowCount; i++) {
+            out.writeLong(starts[i]);
+            out.writeInt(drainMs[i]);
+            out.writeFloat(drainedPercent[i]);
+            out.writeInt(dischargeMs[i]);
+            out.writeInt(chargeMs[i]);
+            out.writeInt(bootCounts[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write changed rows and the header to our file.
+     * <p>
+     * The checksum in the header covers all rows we have in memory, and those are the only ones
+     * a flush overwrites. So however much of a flush makes it to disk, the rollups either are
+     * consistent or fail the checksum.
+     */
+    void flush() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("Rollups without a file can't be flushed");
+        }
+
+        byte[] rows = serializeRows(0);
+        byte[] header = serializeHeader(firstRow + rowCount, firstRow);
+        int checksum = computeChecksum(header, rows);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long rowsOffset = HEADER_SIZE + (long)(firstRow + firstDirtyRow) * ROW_SIZE;
+            raf.setLength(rowsOffset);
+            raf.seek(rowsOffset);
+            raf.write(rows, firstDirtyRow * ROW_SIZE, (rowCount - firstDirtyRow) * ROW_SIZE);
+
+            raf.seek(0);
+            raf.write(header);
+            raf.writeInt(checksum);
+        } finally {
+            raf.close();
+        }
+
+        forgetFinishedRows();
+    }
+
+    /**
+     * Don't keep rows that adding more events can't change in memory.
+     */
+    private void forgetFinishedRows() {
+        long oldestChangeable = getOldestChangeableBucket();
+        int drop = 0;
+        while (drop < rowCount && starts[drop] < oldestChangeable) {
+            drop++;
+        }
+
+        removeFirstRows(drop);
+        firstRow += drop;
+        firstDirtyRow = rowCount;
+    }
+
+    private void removeFirstRows(int drop) {
+        int keep = rowCount - drop;
+        System.arraycopy(starts, drop, starts, 0, keep);
+        System.arraycopy(drainMs, drop, drainMs, 0, keep);
+        System.arraycopy(drainedPercent, drop, drainedPercent, 0, keep);
+        System.arraycopy(dischargeMs, drop, dischargeMs, 0, keep);
+        System.arraycopy(chargeMs, drop, chargeMs, 0, keep);
+        System.arraycopy(bootCounts, drop, bootCounts, 0, keep);
+        rowCount = keep;
+    }
+
+    /**
+     * Remove the rows for buckets ending before keepFromMs from a rollups file.
+     * <p>
+     * Any {@link DrainRollups} opened for appending to this file must be reopened afterwards.
+     */
+    static void dropRowsBefore(File file, long bucketMs, long keepFromMs) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        DrainRollups rollups = load(file, bucketMs);
+        int drop = 0;
+        while (drop < rollups.rowCount && rollups.starts[drop] + bucketMs <= keepFromMs) {
+            drop++;
+        }
+        if (drop == 0) {
+            return;
+        }
+
+        rollups.removeFirstRows(drop);
+        rollups.firstDirtyRow = 0;
+        rollups.flush();
+        Timber.i("Dropped %d rollups older than %s: %s",
+                drop, new Date(keepFromMs), file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Events worth keeping after their history segment has been dropped: INFO events, package
+ * changes, boots and shutdowns.
+ * <p>
+ * Archived events are stored in a single file in the {@link CompactEventCodec compact format},
+ * next to the history segments. When the file grows larger than {@link #MAX_SIZE}, the oldest
+ * half of it is dropped.
+ */
+class EventArchive {
+    static final String FILE_NAME = "archived.events";
+
+    static final long MAX_SIZE = 128 * 1024;
+
+    private final File file;
+
+    /**
+     * @param file Normally {@link #FILE_NAME} in the history storage directory
+     */
+    EventArchive(File file) {
+        this.file = file;
+    }
+
+    static boolean isArchived(HistoryEvent.Type type) {
+        switch (type) {
+            case INFO:
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+            case SYSTEM_BOOT:
+            case SYSTEM_SHUTDOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Archive the events that are worth keeping.
+     */
+    void archive(Iterable<HistoryEvent> events) throws IOException {
+        List<HistoryEvent> archiveMe = new ArrayList<>();
+        for (HistoryEvent event : events) {
+            if (isArchived(event.getType())) {
+                archiveMe.add(event);
+            }
+        }
+        if (archiveMe.isEmpty()) {
+            return;
+        }
+
+        append(archiveMe);
+        if (file.length() > MAX_SIZE) {
+            dropOldestHalf();
+        }
+    }
+
+    private void append(List<HistoryEvent> events) throws IOException {
+        long validLength = getValidLength();
+        if (validLength < file.length()) {
+            Timber.w("Truncating torn write of %d bytes: %s",
+                    file.length() - validLength, file.getAbsolutePath());
+            RandomAccessFile truncateMe = new RandomAccessFile(file, "rw");
+            try {
+                truncateMe.setLength(validLength);
+            } finally {
+                truncateMe.close();
+            }
+        }
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        DataOutputStream chunkWriter = new DataOutputStream(chunk);
+        if (validLength == 0) {
+            chunkWriter.writeInt(HistorySegments.FILE_MAGIC);
+            chunkWriter.writeInt(HistorySegments.FORMAT_COMPACT);
+        }
+
+        // Start with a keyframe since we don't know what the last archived event was
+        EventFrames frames = new EventFrames(HistorySegments.FORMAT_COMPACT);
+        boolean keyframe = true;
+        for (HistoryEvent event : events) {
+            frames.write(event, keyframe, chunkWriter);
+            keyframe = false;
+        }
+
+        // Unbuffered on purpose, we want all of this to hit the file system as one write
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            chunk.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Where the last complete archived event ends, or 0 if the file is missing or doesn't even
+     * have a complete header.
+     */
+    private long getValidLength() throws IOException {
+        if (file.length() < MappedHistoryEvents.HEADER_SIZE) {
+            return 0;
+        }
+
+        MappedHistoryEvents.EventIterator iterator = MappedHistoryEvents.map(file)
+                .iterator(MappedHistoryEvents.HEADER_SIZE);
+        while (iterator.hasNext()) {
+            iterator.nextRecord();
+        }
+        return iterator.getNextOffset();
+    }
+
+    private void dropOldestHalf() throws IOException {
+        List<HistoryEvent> events = readAll();
+        List<HistoryEvent> keep = events.subList(events.size() / 2, events.size());
+
+        // Write to a temporary file and rename it into place, so we never lose all of it
+        File tempFile = new File(file.getPath() + ".tmp");
+        if (tempFile.exists() && !tempFile.delete()) {
+            throw new IOException("Deleting old temp file failed: " + tempFile.getAbsolutePath());
+        }
+        new EventArchive(tempFile).append(keep);
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Renaming " + tempFile.getAbsolutePath()
+                    + " to " + file.getAbsolutePath() + " failed");
+        }
+
+        Timber.i("Dropped %d oldest archived events, %d left",
+                events.size() - keep.size(), keep.size());
+    }
+
+    private List<HistoryEvent> readAll() throws IOException {
+        List<HistoryEvent> returnMe = new ArrayList<>();
+        if (file.length() < MappedHistoryEvents.HEADER_SIZE) {
+            return returnMe;
+        }
+
+        for (HistoryEvent event : MappedHistoryEvents.map(file)) {
+            returnMe.add(event);
+        }
+        return returnMe;
+    }
+
+    /**
+     * Archived events with timestamps from fromMs up to and including toMs.
+     */
+    EventColumns read(long fromMs, long toMs) throws IOException {
+        EventColumns returnMe = new EventColumns();
+        for (HistoryEvent event : readAll()) {
+            long timestamp = event.getTimestamp();
+            if (timestamp >= fromMs && timestamp <= toMs) {
+                returnMe.add(event);
+            }
+        }
+        return returnMe;
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * History events stored column by column in primitive arrays.
+ * <p>
+ * Compared to a list of {@link HistoryEvent}s this saves us one object per event, and iterating
+ * over it using a {@link Cursor} doesn't allocate anything.
+ * <p>
+ * Each event type has a bitmap of where its events are, so that cursors over only some types
+ * visit only those events.
+ * <p>
+ * Adding events never changes what existing cursors and {@link Snapshot snapshots} see. So one
+ * thread can read while another adds events, as long as taking the snapshot or creating the
+ * cursor and adding are synchronized on the same lock.
+ */
+public class EventColumns {
+    private static final HistoryEvent.Type[] TYPES = HistoryEvent.Type.values();
+
+    /**
+     * Versions come from a process wide counter, so that snapshots of events read again from
+     * storage are still newer than those of the events they replace.
+     */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private static final long CHANGED = -1;
+
+    private long[] timestamps;
+    private byte[] types;
+
+    /**
+     * Percentage for BATTERY_LEVEL events, 1 or 0 for SYSTEM_BOOT events depending on whether we
+     * were charging, index into {@link #messages} for INFO events, index into {@link
+     * #packageChanges} for package events.
+     */
+    private int[] payloads;
+
+    private String[] messages;
+    private int messageCount;
+
+    /**
+     * Package id, version id and previous version id of each package event.
+     */
+    private int[] packageChanges;
+    private int packageChangeCount;
+
+    /**
+     * One bit per event for each type, indexed by type ordinal. Null for types we haven't seen.
+     */
+    private final long[][] typeBits = new long[TYPES.length][];
+
+    private int size;
+
+    /**
+     * Version of our next snapshot, or {@link #CHANGED} if we need a new one.
+     */
+    private long version = CHANGED;
+
+    /**
+     * Lets {@link #add(HistoryEvent)} share its column-appending code with
+     * {@link #add(EventRecord)}.
+     */
+    private final EventRecord scratch = new EventRecord();
+
+    public EventColumns() {
+        this(64);
+    }
+
+    public EventColumns(int initialCapacity) {
+        timestamps = new long[initialCapacity];
+        types = new byte[initialCapacity];
+        payloads = new int[initialCapacity];
+        messages = new String[4];
+        packageChanges = new int[0];
+    }
+
+    public static EventColumns of(Iterable<HistoryEvent> events) {
+        EventColumns returnMe = new EventColumns();
+        for (HistoryEvent event : events) {
+            returnMe.add(event);
+        }
+        return returnMe;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        types = Arrays.copyOf(types, newCapacity);
+        payloads = Arrays.copyOf(payloads, newCapacity);
+        for (int i = 0; i < typeBits.length; i++) {
+            if (typeBits[i] != null) {
+                typeBits[i] = Arrays.copyOf(typeBits[i], wordCount(newCapacity));
+            }
+        }
+    }
+
+    private static int wordCount(int bitCount) {
+        return (bitCount + 63) >>> 6;
+    }
+
+    private void setTypeBit(int index) {
+        int type = types[index];
+        long[] bits = typeBits[type];
+        if (bits == null) {
+            bits = new long[wordCount(timestamps.length)];
+            typeBits[type] = bits;
+        }
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    public void add(HistoryEvent event) {
+        scratch.set(event);
+        add(scratch);
+    }
+
+    /**
+     * @return Where the package change ended up in {@link #packageChanges}
+     */
+    private int addPackageChange(int packageId, int versionId, int previousVersionId) {
+        if (packageChangeCount + 3 > packageChanges.length) {
+            packageChanges = Arrays.copyOf(packageChanges, Math.max(12, packageChangeCount * 2));
+        }
+        int returnMe = packageChangeCount;
+        packageChanges[packageChangeCount++] = packageId;
+        packageChanges[packageChangeCount++] = versionId;
+        packageChanges[packageChangeCount++] = previousVersionId;
+        return returnMe;
+    }
+
+    /**
+     * Like {@link #add(HistoryEvent)}, but for events decoded without allocating.
+     */
+    void add(EventRecord event) {
+        ensureCapacity(size + 1);
+
+        HistoryEvent.Type type = event.getType();
+        timestamps[size] = event.getTimestamp();
+        types[size] = (byte)type.ordinal();
+        setTypeBit(size);
+        switch (type) {
+            case BATTERY_LEVEL:
+                payloads[size] = event.getPercentage();
+                break;
+            case SYSTEM_BOOT:
+                payloads[size] = event.isCharging() ? 1 : 0;
+                break;
+            case INFO:
+                if (messageCount == messages.length) {
+                    messages = Arrays.copyOf(messages, messageCount * 2);
+                }
+                payloads[size] = messageCount;
+                messages[messageCount++] = event.getMessage();
+                break;
+            case PACKAGE_UPGRADED:
+                payloads[size] = addPackageChange(
+                        event.getPackageId(), event.getVersionId(), event.getPreviousVersionId());
+                break;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_REMOVED:
+                payloads[size] = addPackageChange(
+                        event.getPackageId(), event.getVersionId(), HistoryEvent.NO_VERSION);
+                break;
+            default:
+                payloads[size] = 0;
+        }
+        size++;
+        version = CHANGED;
+    }
+
+    /**
+     * Add all events from other after our own.
+     */
+    void addAll(EventColumns other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.payloads, 0, payloads, size, other.size);
+        for (int i = size; i < size + other.size; i++) {
+            setTypeBit(i);
+        }
+
+        if (other.messageCount > 0) {
+            if (messageCount + other.messageCount > messages.length) {
+                messages = Arrays.copyOf(messages,
+                        Math.max(messageCount + other.messageCount, messages.length * 2));
+            }
+            System.arraycopy(other.messages, 0, messages, messageCount, other.messageCount);
+
+            // Point the copied INFO events to where their messages ended up
+            byte info = (byte)HistoryEvent.Type.INFO.ordinal();
+            for (int i = size; i < size + other.size; i++) {
+                if (types[i] == info) {
+                    payloads[i] += messageCount;
+                }
+            }
+            messageCount += other.messageCount;
+        }
+
+        if (other.packageChangeCount > 0) {
+            if (packageChangeCount + other.packageChangeCount > packageChanges.length) {
+                packageChanges = Arrays.copyOf(packageChanges, Math.max(
+                        packageChangeCount + other.packageChangeCount, packageChanges.length * 2));
+            }
+            System.arraycopy(other.packageChanges, 0,
+                    packageChanges, packageChangeCount, other.packageChangeCount);
+
+            for (int i = size; i < size + other.size; i++) {
+                if (TYPES[types[i]].isPackageChange()) {
+                    payloads[i] += packageChangeCount;
+                }
+            }
+            packageChangeCount += other.packageChangeCount;
+        }
+
+        size += other.size;
+        version = CHANGED;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public HistoryEvent.Type getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    /**
+     * An immutable view of the events added so far, see {@link Snapshot}.
+     */
+    public Snapshot snapshot() {
+        if (version == CHANGED) {
+            version = VERSIONS.incrementAndGet();
+        }
+        return new Snapshot(this);
+    }
+
+    public Cursor cursor() {
+        return snapshot().cursor();
+    }
+
+    /**
+     * A cursor over all events, newest first.
+     */
+    public Cursor reverseCursor() {
+        return snapshot().reverseCursor();
+    }
+
+    /**
+     * A cursor over the events with timestamps from fromMs up to and including toMs.
+     */
+    public Cursor cursor(long fromMs, long toMs) {
+        return snapshot().cursor(fromMs, toMs);
+    }
+
+    /**
+     * A cursor over the events of the given types with timestamps from fromMs up to and
+     * including toMs.
+     * <p>
+     * Only the events of the requested types are visited, so asking for a rare type is cheap
+     * however many events of other types there are.
+     */
+    public Cursor cursor(long fromMs, long toMs, EnumSet<HistoryEvent.Type> wantedTypes) {
+        return snapshot().cursor(fromMs, toMs, wantedTypes);
+    }
+
+    /**
+     * Timestamp of the last event before timestampMs, or {@link Long#MIN_VALUE} if there is no
+     * such event.
+     */
+    long findTimestampBefore(long timestampMs) {
+        return snapshot().findTimestampBefore(timestampMs);
+    }
+
+    /**
+     * The events in some {@link EventColumns} at one point in time.
+     * <p>
+     * Snapshots share their arrays with the columns rather than copying them, so taking one costs
+     * next to nothing. Adding events only ever writes past the end of existing snapshots, and
+     * growing the columns replaces the arrays rather than changing them. So once created, a
+     * snapshot never changes and can be read from any thread without locking.
+     */
+    public static final class Snapshot {
+        private final long[] timestamps;
+        private final byte[] types;
+        private final int[] payloads;
+        private final String[] messages;
+        private final int[] packageChanges;
+        private final long[][] typeBits;
+        private final int size;
+        private final long version;
+
+        private Snapshot(EventColumns events) {
+            timestamps = events.timestamps;
+            types = events.types;
+            payloads = events.payloads;
+            messages = events.messages;
+            packageChanges = events.packageChanges;
+            typeBits = events.typeBits.clone();
+            size = events.size;
+            version = events.version;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Increases every time events are added. Snapshots of the same history with the same
+         * version contain the same events.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public long getTimestamp(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+            }
+            return timestamps[index];
+        }
+
+        /**
+         * Index of the first event with a timestamp at or after timestampMs, or {@link #size()}
+         * if there is no such event. Events are assumed to be sorted by timestamp.
+         */
+        int findFirstAtOrAfter(long timestampMs) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] < timestampMs) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        public Cursor cursor() {
+            return new Cursor(this, 0, size, 1);
+        }
+
+        /**
+         * A cursor over all events, newest first.
+         */
+        public Cursor reverseCursor() {
+            return new Cursor(this, size - 1, -1, -1);
+        }
+
+        /**
+         * A cursor over the events with timestamps from fromMs up to and including toMs.
+         */
+        public Cursor cursor(long fromMs, long toMs) {
+            int start = findFirstAtOrAfter(fromMs);
+            int end = toMs == Long.MAX_VALUE ? size : findFirstAtOrAfter(toMs + 1);
+            return new Cursor(this, start, Math.max(start, end), 1);
+        }
+
+        /**
+         * A cursor over the events of the given types with timestamps from fromMs up to and
+         * including toMs. Only the events of the requested types are visited.
+         */
+        public Cursor cursor(long fromMs, long toMs, EnumSet<HistoryEvent.Type> wantedTypes) {
+            Cursor all = cursor(fromMs, toMs);
+            if (wantedTypes.size() == TYPES.length) {
+                return all;
+            }
+
+            int start = all.position + 1;
+            int end = all.end;
+            long[] wanted = new long[wordCount(end)];
+            for (HistoryEvent.Type type : wantedTypes) {
+                long[] bits = typeBits[type.ordinal()];
+                if (bits == null) {
+                    continue;
+                }
+                for (int word = start >>> 6; word < wanted.length; word++) {
+                    wanted[word] |= bits[word];
+                }
+            }
+            return new Cursor(this, start, end, wanted);
+        }
+
+        /**
+         * Timestamp of the last event before timestampMs, or {@link Long#MIN_VALUE} if there is
+         * no such event.
+         */
+        long findTimestampBefore(long timestampMs) {
+            int index = findFirstAtOrAfter(timestampMs) - 1;
+            return index >= 0 ? timestamps[index] : Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * A {@link HistoryCursor} over the events in a {@link Snapshot}.
+     */
+    public static class Cursor implements HistoryCursor {
+        private final long[] timestamps;
+        private final byte[] types;
+        private final int[] payloads;
+        private final String[] messages;
+        private final int[] packageChanges;
+
+        /**
+         * Index just past the last event we should visit, in the direction of step.
+         */
+        private final int end;
+        private final int step;
+        private int position;
+
+        /**
+         * The events to visit, one bit per event, or null to visit all of them.
+         */
+        @Nullable
+        private final long[] wanted;
+
+        private Cursor(Snapshot events, int start, int end, int step) {
+            this(events, start, end, step, null);
+        }
+
+        private Cursor(Snapshot events, int start, int end, long[] wanted) {
+            this(events, start, end, 1, wanted);
+        }
+
+        private Cursor(Snapshot events, int start, int end, int step, @Nullable long[] wanted) {
+            this.timestamps = events.timestamps;
+            this.types = events.types;
+            this.payloads = events.payloads;
+            this.messages = events.messages;
+            this.packageChanges = events.packageChanges;
+            this.position = start - step;
+            this.end = end;
+            this.step = step;
+            this.wanted = wanted;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (position == end) {
+                return false;
+            }
+            if (wanted == null) {
+                position += step;
+            } else {
+                position = findWanted(position + 1);
+            }
+            return position != end;
+        }
+
+        /**
+         * The first wanted index at or after from, or end if there is none.
+         */
+        private int findWanted(int from) {
+            //noinspection ConstantConditions
+            long[] bits = wanted;
+            if (from >= end) {
+                return end;
+            }
+
+            int word = from >>> 6;
+            long remaining = bits[word] & (-1L << from);
+            while (remaining == 0) {
+                word++;
+                if (word >= bits.length) {
+                    return end;
+                }
+                remaining = bits[word];
+            }
+            return Math.min(end, (word << 6) + Long.numberOfTrailingZeros(remaining));
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamps[position];
+        }
+
+        @Override
+        public HistoryEvent.Type getType() {
+            return TYPES[types[position]];
+        }
+
+        @Override
+        public int getPercentage() {
+            if (getType() != HistoryEvent.Type.BATTERY_LEVEL) {
+                throw new UnsupportedOperationException(
+                        "Percentage only available for BATTERY_LEVEL events but I'm a " + getType());
+            }
+            return payloads[position];
+        }
+
+        @Override
+        public boolean isCharging() {
+            if (getType() != HistoryEvent.Type.SYSTEM_BOOT) {
+                throw new UnsupportedOperationException(
+                        "Charging state only available for SYSTEM_BOOT events, but I'm a " + getType());
+            }
+            return payloads[position] != 0;
+        }
+
+        @Override
+        public String getMessage() {
+            if (getType() != HistoryEvent.Type.INFO) {
+                throw new UnsupportedOperationException(
+                        "Message only available for INFO events but I'm a " + getType());
+            }
+            return messages[payloads[position]];
+        }
+
+        @Override
+        public int getPackageId() {
+            if (!getType().isPackageChange()) {
+                throw new UnsupportedOperationException(
+                        "Package only available for PACKAGE_ events but I'm a " + getType());
+            }
+            return packageChanges[payloads[position]];
+        }
+
+        @Override
+        public int getVersionId() {
+            if (!getType().isPackageChange()) {
+                throw new UnsupportedOperationException(
+                        "Version only available for PACKAGE_ events but I'm a " + getType());
+            }
+            return packageChanges[payloads[position] + 1];
+        }
+
+        @Override
+        public int getPreviousVersionId() {
+            if (getType() != HistoryEvent.Type.PACKAGE_UPGRADED) {
+                throw new UnsupportedOperationException(
+                        "Previous version only available for PACKAGE_UPGRADED events but I'm a "
+                                + getType());
+            }
+            return packageChanges[payloads[position] + 2];
+        }
+
+        @Override
+        public HistoryEvent toHistoryEvent() {
+            long timestamp = getTimestamp();
+            switch (getType()) {
+                case BATTERY_LEVEL:
+                    return HistoryEvent.createBatteryLevelEvent(timestamp, getPercentage());
+                case SYSTEM_BOOT:
+                    return HistoryEvent.createSystemBootingEvent(timestamp, isCharging());
+                case SYSTEM_SHUTDOWN:
+                    return HistoryEvent.createSystemHaltingEvent(timestamp);
+                case INFO:
+                    return HistoryEvent.createInfoEvent(timestamp, getMessage());
+                case START_CHARGING:
+                    return HistoryEvent.createStartChargingEvent(timestamp);
+                case STOP_CHARGING:
+                    return HistoryEvent.createStopChargingEvent(timestamp);
+                case PACKAGE_INSTALLED:
+                case PACKAGE_UPGRADED:
+                case PACKAGE_REMOVED:
+                    int change = payloads[position];
+                    return HistoryEvent.createPackageEvent(timestamp, getType(),
+                            packageChanges[change], packageChanges[change + 1],
+                            packageChanges[change + 2]);
+                default:
+                    throw new UnsupportedOperationException("Unknown event type " + getType());
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Writes framed history events, as used in segment files from format version 2.
+ * <p>
+ * Each event is prefixed by the length of its encoding as a {@link Varints varint}, and followed
+ * by a CRC32 of its encoding. The length lets readers skip damaged events, and tells a torn last
+ * write (the frame doesn't fit in the file) apart from corruption (the checksum doesn't match).
+ * <p>
+ * In format version 2 events are encoded by {@link HistoryEvent#writeTo(java.io.DataOutput)},
+ * followed by all 32 bits of the checksum. From version 3, events are encoded by {@link
+ * CompactEventCodec}, and only the low 16 bits of the checksum are stored.
+ */
+class EventFrames {
+    private final int formatVersion;
+    private final CompactEventCodec codec = new CompactEventCodec();
+
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private final DataOutputStream encoder = new DataOutputStream(encoded);
+    private final CRC32 crc = new CRC32();
+
+    EventFrames(int formatVersion) {
+        if (formatVersion < HistorySegments.FORMAT_FRAMED) {
+            throw new IllegalArgumentException("Format version " + formatVersion + " isn't framed");
+        }
+        this.formatVersion = formatVersion;
+    }
+
+    static int getChecksumSize(int formatVersion) {
+        return formatVersion >= HistorySegments.FORMAT_COMPACT ? 2 : 4;
+    }
+
+    /**
+     * @param keyframe Whether decoding should be able to start at this event. Only matters from
+     *                 format version 3, earlier versions can always start decoding anywhere.
+     */
+    void write(HistoryEvent event, boolean keyframe, DataOutputStream out) throws IOException {
+        encoded.reset();
+        if (formatVersion >= HistorySegments.FORMAT_COMPACT) {
+            codec.encode(event, keyframe, encoder);
+        } else {
+            event.writeTo(encoder);
+        }
+        byte[] bytes = encoded.toByteArray();
+
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+
+        Varints.writeUnsigned(out, bytes.length);
+        out.write(bytes);
+        if (getChecksumSize(formatVersion) == 2) {
+            out.writeShort((int)crc.getValue());
+        } else {
+            out.writeInt((int)crc.getValue());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A mutable history event, reused for decoding event after event without allocating anything
+ * per event. Only INFO events allocate, for their message.
+ */
+class EventRecord {
+    private long timestamp;
+    private HistoryEvent.Type type;
+
+    /**
+     * Percentage for BATTERY_LEVEL events, 1 or 0 for SYSTEM_BOOT events depending on whether we
+     * were charging, package id for package events.
+     */
+    private int payload;
+
+    @Nullable
+    private String message;
+
+    private int versionId;
+    private int previousVersionId;
+
+    void set(long timestamp, HistoryEvent.Type type, int payload, @Nullable String message) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.payload = payload;
+        this.message = message;
+    }
+
+    /**
+     * @param previousVersionId Ignored unless type is PACKAGE_UPGRADED
+     */
+    void setPackageChange(long timestamp, HistoryEvent.Type type,
+            int packageId, int versionId, int previousVersionId)
+    {
+        set(timestamp, type, packageId, null);
+        this.versionId = versionId;
+        this.previousVersionId = HistoryEvent.NO_VERSION;
+        if (type == HistoryEvent.Type.PACKAGE_UPGRADED) {
+            this.previousVersionId = previousVersionId;
+        }
+    }
+
+    /**
+     * Make this record a copy of event.
+     */
+    void set(HistoryEvent event) {
+        long timestamp = event.getTimestamp();
+        HistoryEvent.Type type = event.getType();
+        switch (type) {
+            case BATTERY_LEVEL:
+                set(timestamp, type, event.getPercentage(), null);
+                break;
+            case SYSTEM_BOOT:
+                set(timestamp, type, event.isCharging() ? 1 : 0, null);
+                break;
+            case INFO:
+                set(timestamp, type, 0, event.getMessage());
+                break;
+            case PACKAGE_UPGRADED:
+                setPackageChange(timestamp, type, event.getPackageId(), event.getVersionId(),
+                        event.getPreviousVersionId());
+                break;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_REMOVED:
+                setPackageChange(timestamp, type, event.getPackageId(), event.getVersionId(),
+                        HistoryEvent.NO_VERSION);
+                break;
+            default:
+                set(timestamp, type, 0, null);
+        }
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    HistoryEvent.Type getType() {
+        return type;
+    }
+
+    int getPercentage() {
+        if (type != HistoryEvent.Type.BATTERY_LEVEL) {
+            throw new UnsupportedOperationException(
+                    "Percentage only available for BATTERY_LEVEL events but I'm a " + type);
+        }
+        return payload;
+    }
+
+    boolean isCharging() {
+        if (type != HistoryEvent.Type.SYSTEM_BOOT) {
+            throw new UnsupportedOperationException(
+                    "Charging state only available for SYSTEM_BOOT events, but I'm a " + type);
+        }
+        return payload != 0;
+    }
+
+    String getMessage() {
+        if (type != HistoryEvent.Type.INFO) {
+            throw new UnsupportedOperationException(
+                    "Message only available for INFO events but I'm a " + type);
+        }
+        return message;
+    }
+
+    int getPackageId() {
+        if (!type.isPackageChange()) {
+            throw new UnsupportedOperationException(
+                    "Package only available for PACKAGE_ events but I'm a " + type);
+        }
+        return payload;
+    }
+
+    int getVersionId() {
+        if (!type.isPackageChange()) {
+            throw new UnsupportedOperationException(
+                    "Version only available for PACKAGE_ events but I'm a " + type);
+        }
+        return versionId;
+    }
+
+    int getPreviousVersionId() {
+        if (type != HistoryEvent.Type.PACKAGE_UPGRADED) {
+            throw new UnsupportedOperationException(
+                    "Previous version only available for PACKAGE_UPGRADED events but I'm a "
+                            + type);
+        }
+        return previousVersionId;
+    }
+
+    HistoryEvent toHistoryEvent() {
+        switch (type) {
+            case BATTERY_LEVEL:
+                return HistoryEvent.createBatteryLevelEvent(timestamp, payload);
+            case SYSTEM_BOOT:
+                return HistoryEvent.createSystemBootingEvent(timestamp, payload != 0);
+            case SYSTEM_SHUTDOWN:
+                return HistoryEvent.createSystemHaltingEvent(timestamp);
+            case INFO:
+                return HistoryEvent.createInfoEvent(timestamp, message);
+            case START_CHARGING:
+                return HistoryEvent.createStartChargingEvent(timestamp);
+            case STOP_CHARGING:
+                return HistoryEvent.createStopChargingEvent(timestamp);
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                return HistoryEvent.createPackageEvent(
+                        timestamp, type, payload, versionId, previousVersionId);
+            default:
+                throw new UnsupportedOperationException("Unknown event type " + type);
+        }
+    }
+}
@@ -22,224 +22,783 @@ import android.support.annotation.Nullable;
 import com.gmail.walles.johan.batterylogger.plot.DrainSample;
 import com.gmail.walles.johan.batterylogger.plot.PlotEvent;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Random;
 
 import timber.log.Timber;
 
-public class History {
+public class History implements Closeable {
     private static final int FAKE_HISTORY_DAYS_OLD_START = 30;
     private static final int FAKE_HISTORY_DAYS_OLD_END = 0;
 
-    private static final long MAX_HISTORY_FILE_SIZE = 400 * 1024;
-    private static final long MAX_HISTORY_EVENT_AGE_DAYS = 34;
+    /**
+     * Old segments are dropped while storage is bigger than this. Since history is dropped one
+     * whole day at a time and the current day is always kept, this is a target rather than a hard
+     * limit: storage can exceed it by up to one day's worth of events.
+     */
+    private static final long MAX_HISTORY_SIZE = 400 * 1024;
+    private static final long DEFAULT_RAW_HISTORY_DAYS = 34;
+
+    /**
+     * How long to keep hourly rollups.
+     */
+    private static final long HOURLY_ROLLUP_DAYS = 92;
+
+    /**
+     * Daily rollups are kept for ten years, so battery wear can be followed over the years.
+     */
+    private static final long DAILY_ROLLUP_DAYS = 10 * 366;
+
+    private static final EnumSet<HistoryEvent.Type> ALL_TYPES =
+            EnumSet.allOf(HistoryEvent.Type.class);
+
+    /**
+     * The event types that {@link DrainDotsCreator} cares about.
+     */
+    private static final EnumSet<HistoryEvent.Type> DRAIN_TYPES = EnumSet.of(
+            HistoryEvent.Type.BATTERY_LEVEL,
+            HistoryEvent.Type.SYSTEM_BOOT,
+            HistoryEvent.Type.SYSTEM_SHUTDOWN);
+
+    /**
+     * The event types that {@link PlotEventsCreator} turns into plot events.
+     */
+    private static final EnumSet<HistoryEvent.Type> PLOT_EVENT_TYPES = EnumSet.of(
+            HistoryEvent.Type.SYSTEM_BOOT,
+            HistoryEvent.Type.SYSTEM_SHUTDOWN,
+            HistoryEvent.Type.INFO,
+            HistoryEvent.Type.PACKAGE_INSTALLED,
+            HistoryEvent.Type.PACKAGE_UPGRADED,
+            HistoryEvent.Type.PACKAGE_REMOVED);
 
     public static final long HOUR_MS = 3600 * 1000;
     public static final long FIVE_MINUTES_MS = 5 * 60 * 1000;
 
     @Nullable
-    private List<HistoryEvent> eventsFromStorage;
+    private static History fakeHistory;
+
+    /**
+     * In memory events for histories without storage. Only touched while synchronized on this,
+     * readers get snapshots from {@link #getEventsInMemory()}.
+     */
+    @Nullable
+    private EventColumns eventsFromStorage;
 
     @Nullable
-    private final File storage;
+    private final HistoryStore storage;
+
+    /**
+     * Where we keep storage, rollups and archived events.
+     */
+    @Nullable
+    private final File directory;
+
+    /**
+     * Events read from storage, shared with other histories using the same storage.
+     */
+    @Nullable
+    private final HistoryCache cache;
+
+    /**
+     * History file from before we started storing history in segments.
+     */
+    @Nullable
+    private final File legacyStorage;
+
+    private boolean legacyStorageChecked = false;
+
+    /**
+     * INFO, package, boot and shutdown events from segments that have been dropped.
+     */
+    @Nullable
+    private final EventArchive archive;
+
+    /**
+     * What package events refer to, loaded on first use.
+     */
+    @Nullable
+    private PackageDictionary packages;
+
+    private long rawHistoryDays = DEFAULT_RAW_HISTORY_DAYS;
+
+    /**
+     * Rollups we're adding events to, opened by the first {@link #addEvents(Collection)}.
+     */
+    @Nullable
+    private DrainRollups hourlyRollups;
+    @Nullable
+    private DrainRollups dailyRollups;
+
+    /**
+     * Unit-testing only constructor.
+     *
+     * @param storage Directory to keep history segments in
+     */
+    History(File storage) {
+        this(storage, null);
+    }
 
     /**
      * Unit-testing only constructor.
+     *
+     * @param storage Directory to keep history segments in
+     * @param legacyStorage Single file history to import into storage if it exists
      */
-    History(@Nullable File storage) {
+    History(File storage, @Nullable File legacyStorage) {
+        this(storage, legacyStorage, HistorySegments.FILE_FORMAT_VERSION);
+    }
+
+    /**
+     * Unit-testing only constructor.
+     *
+     * @param storage Directory to keep history segments in
+     * @param legacyStorage Single file history to import into storage if it exists
+     * @param formatVersion Storage format for new segments, one of the HistorySegments.FORMAT_
+     *                      constants
+     */
+    History(File storage, @Nullable File legacyStorage, int formatVersion) {
+        this(storage, new HistorySegments(storage, formatVersion), legacyStorage);
+    }
+
+    /**
+     * @param directory Directory to keep rollups and archived events in, usually also where the
+     *                  store keeps its events
+     * @param legacyStorage Single file history to import if it exists
+     */
+    History(File directory, HistoryStore storage, @Nullable File legacyStorage) {
+        this.directory = directory;
         this.storage = storage;
+
+        // The database has its own page cache, only segments need ours
+        this.cache = storage instanceof HistorySegments ? HistoryCache.get(directory) : null;
+
+        this.archive = new EventArchive(new File(directory, EventArchive.FILE_NAME));
+        this.legacyStorage = legacyStorage;
     }
 
     /**
      * Create a history object that logs its events to a default location.
      */
     public History(Context context) {
-        this.storage = new File(context.getFilesDir(), "events.log");
+        this(new File(context.getFilesDir(), "events"),
+                createStore(new File(context.getFilesDir(), "events")),
+                new File(context.getFilesDir(), "events.log"));
     }
 
-    void dropOldHistory() throws IOException {
-        if (eventsFromStorage == null) {
-            eventsFromStorage = readEventsFromStorage();
+    /**
+     * Which storage engine to use is a build time choice, so that the two can be compared on
+     * real devices.
+     */
+    private static HistoryStore createStore(File directory) {
+        if (BuildConfig.SQLITE_HISTORY) {
+            return new SqliteHistoryStore(new File(directory, SqliteHistoryStore.FILE_NAME));
         }
+        return new HistorySegments(directory, HistorySegments.FILE_FORMAT_VERSION);
+    }
 
-        // Skip the first 20% of the list
-        List<HistoryEvent> truncated =
-                eventsFromStorage.subList(eventsFromStorage.size() / 5, eventsFromStorage.size() - 1);
+    /**
+     * How many days back to keep all events. Older history is only kept as rollups and archived
+     * INFO, package, boot and shutdown events. Defaults to {@value #DEFAULT_RAW_HISTORY_DAYS}.
+     */
+    public void setRawHistoryDays(long rawHistoryDays) {
+        if (rawHistoryDays < 1) {
+            throw new IllegalArgumentException("Must keep at least one day, got " + rawHistoryDays);
+        }
+        this.rawHistoryDays = rawHistoryDays;
+    }
 
-        if (storage == null) {
+    /**
+     * Delete whole history segments that are too old, or that make the history take up too much
+     * space. The most recent segment is always kept, even if it alone is bigger than {@link
+     * #MAX_HISTORY_SIZE}.
+     * <p>
+     * Before a segment is deleted, its INFO, package, boot and shutdown events are archived. Its
+     * drain statistics are already in the rollups, which are trimmed separately.
+     */
+    void dropOldHistory() throws IOException {
+        if (storage == null || archive == null) {
             return;
         }
 
-        File tmp = File.createTempFile("history-", ".txt", storage.getParentFile());
-        PrintWriter printWriter = new PrintWriter(new FileWriter(tmp));
+        //noinspection ConstantConditions
+        WriterLock lock = WriterLock.acquire(directory);
         try {
-            for (HistoryEvent event : truncated) {
-                printWriter.println(event.serializeToString());
+            dropOldHistoryLocked();
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void dropOldHistoryLocked() throws IOException {
+        long today = HistorySegments.getDay(System.currentTimeMillis());
+        long oldestDayToKeep = today - rawHistoryDays;
+        boolean dropped = false;
+        //noinspection ConstantConditions
+        while (storage.getSegmentCount() > 1) {
+            //noinspection ConstantConditions
+            long oldestDay = storage.getOldestDay();
+            long size = storage.getSize();
+            if (oldestDay >= oldestDayToKeep && size <= MAX_HISTORY_SIZE) {
+                break;
             }
-            printWriter.close();
 
-            if (!tmp.renameTo(storage)) {
-                throw new IOException(
-                        "Renaming " + tmp.getAbsolutePath()
-                                + " to " + storage.getAbsolutePath()
-                                + " failed while truncating history");
+            archive.archive(storage.readOldestSegment());
+            storage.dropOldestSegment();
+            dropped = true;
+            Timber.i("Dropped history segment from %s, history size was %d bytes",
+                    new Date(oldestDay * HistorySegments.DAY_MS), size);
+        }
+
+        if (dropped) {
+            long hourlyDays = Math.max(HOURLY_ROLLUP_DAYS, rawHistoryDays);
+            DrainRollups.dropRowsBefore(getRollupsFile(DrainRollups.HOURLY_FILE_NAME),
+                    HOUR_MS, (today - hourlyDays) * HistorySegments.DAY_MS);
+            DrainRollups.dropRowsBefore(getRollupsFile(DrainRollups.DAILY_FILE_NAME),
+                    HistorySegments.DAY_MS, (today - DAILY_ROLLUP_DAYS) * HistorySegments.DAY_MS);
+
+            // The rollup files may have been rewritten
+            hourlyRollups = null;
+            dailyRollups = null;
+        }
+    }
+
+    /**
+     * Move history from the single file format used by older versions into storage.
+     */
+    private void importLegacyStorage() throws IOException {
+        if (legacyStorageChecked) {
+            return;
+        }
+
+        if (legacyStorage != null && directory != null && legacyStorage.exists()) {
+            WriterLock lock = WriterLock.acquire(directory);
+            try {
+                // Somebody else may have imported it while we were waiting for the lock
+                if (legacyStorage.exists()) {
+                    if (storage instanceof SqliteHistoryStore) {
+                        ((SqliteHistoryStore)storage).importLegacyFile(legacyStorage);
+
+                        // Any rollups were made without the imported events
+                        hourlyRollups = null;
+                        dailyRollups = null;
+                        deleteRollups();
+                    } else {
+                        HistorySegments.importLegacyFile(legacyStorage, directory);
+                    }
+                }
+            } finally {
+                lock.release();
             }
-            eventsFromStorage = truncated;
-        } finally {
-            printWriter.close();
         }
+        legacyStorageChecked = true;
+    }
+
+    /**
+     * What package events in this history refer to. Use {@link
+     * #addEventsSince(SystemState, SystemState)} to add package events, it adds any new packages
+     * to this dictionary safely.
+     */
+    public PackageDictionary getPackageDictionary() throws IOException {
+        if (packages == null) {
+            //noinspection ConstantConditions
+            packages = PackageDictionary.load(new File(directory, PackageDictionary.FILE_NAME));
+        } else {
+            packages.refresh();
+        }
+        return packages;
     }
 
     public void addEvent(HistoryEvent event) throws IOException {
-        if (eventsFromStorage != null) {
-            // Add in memory
-            eventsFromStorage.add(event);
+        addEvents(Collections.singletonList(event));
+    }
+
+    /**
+     * Add a batch of events. Events for the same day are committed to storage in a single write,
+     * and old history is dropped once per batch.
+     * <p>
+     * Only one thread in one process at a time can add events to the same storage, others wait
+     * their turn. Readers never wait for this.
+     */
+    public void addEvents(Collection<HistoryEvent> events) throws IOException {
+        if (storage == null) {
+            synchronized (this) {
+                if (eventsFromStorage != null) {
+                    // Add in memory
+                    for (HistoryEvent event : events) {
+                        eventsFromStorage.add(event);
+                    }
+                }
+            }
+            return;
         }
 
+        //noinspection ConstantConditions
+        WriterLock lock = WriterLock.acquire(directory);
+        try {
+            // Another writer may have changed storage since we last looked
+            storage.rescan();
+
+            importLegacyStorage();
+            if (events.isEmpty()) {
+                return;
+            }
+
+            // Package events may refer to packages that were just added to the dictionary
+            if (packages != null) {
+                packages.flush();
+            }
+
+            // Open the rollups before appending, in case they need to be recreated from storage
+            if (hourlyRollups == null || dailyRollups == null) {
+                hourlyRollups = openRollups(HOUR_MS, DrainRollups.HOURLY_FILE_NAME);
+                dailyRollups = openRollups(HistorySegments.DAY_MS, DrainRollups.DAILY_FILE_NAME);
+            }
+
+            storage.append(events);
+            addToRollups(events);
+
+            dropOldHistory();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Add events for what has changed between two system states.
+     * <p>
+     * New packages and versions are added to the {@link #getPackageDictionary() dictionary} while
+     * we hold the writer lock, so writers in other processes can't hand out the same ids for
+     * something else.
+     */
+    public void addEventsSince(SystemState now, SystemState before) throws IOException {
         if (storage == null) {
+            addEvents(now.getEventsSince(before, getPackageDictionary()));
             return;
         }
 
-        PrintWriter printWriter = new PrintWriter(new FileWriter(storage, true));
+        //noinspection ConstantConditions
+        WriterLock lock = WriterLock.acquire(directory);
         try {
-            printWriter.println(event.serializeToString());
+            // Start from what's on disk, another writer may have added ids since we last looked
+            packages = PackageDictionary.load(new File(directory, PackageDictionary.FILE_NAME));
+            addEvents(now.getEventsSince(before, packages));
         } finally {
-            printWriter.close();
+            lock.release();
         }
+    }
 
-        if (storage.length() > MAX_HISTORY_FILE_SIZE) {
-            dropOldHistory();
+    private File getRollupsFile(String fileName) {
+        return new File(directory, fileName);
+    }
+
+    /**
+     * Open rollups for adding events to, creating them from storage if they don't exist.
+     */
+    private DrainRollups openRollups(long bucketMs, String fileName) throws IOException {
+        File file = getRollupsFile(fileName);
+        DrainRollups returnMe = DrainRollups.openForAppending(file, bucketMs);
+        if (returnMe != null) {
+            return returnMe;
         }
-        if (getHistoryAgeDays() > MAX_HISTORY_EVENT_AGE_DAYS) {
-            dropOldHistory();
+
+        long t0 = System.currentTimeMillis();
+        returnMe = DrainRollups.create(file, bucketMs);
+        //noinspection ConstantConditions
+        returnMe.add(storage.cursor(Long.MIN_VALUE, Long.MAX_VALUE));
+        Timber.i("Created %s from history in %dms",
+                fileName, System.currentTimeMillis() - t0);
+        return returnMe;
+    }
+
+    private void addToRollups(Collection<HistoryEvent> events) throws IOException {
+        EventColumns columns = EventColumns.of(events);
+        DrainRollups[] allRollups = new DrainRollups[] { hourlyRollups, dailyRollups };
+        for (DrainRollups rollups : allRollups) {
+            //noinspection ConstantConditions
+            rollups.add(columns.cursor());
+        }
+
+        try {
+            for (DrainRollups rollups : allRollups) {
+                //noinspection ConstantConditions
+                rollups.flush();
+            }
+        } catch (IOException e) {
+            // We don't know what made it to disk, have the rollups recreated from storage
+            hourlyRollups = null;
+            dailyRollups = null;
+            deleteRollups();
+            throw e;
+        }
+    }
+
+    private void deleteRollups() {
+        for (String fileName
+                : new String[] { DrainRollups.HOURLY_FILE_NAME, DrainRollups.DAILY_FILE_NAME })
+        {
+            File file = getRollupsFile(fileName);
+            if (!file.delete() && file.exists()) {
+                Timber.w("Deleting rollups failed: %s", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Release the storage file kept open for appending events.
+     */
+    @Override
+    public void close() throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    /**
+     * Check all of storage for damaged events. This reads everything, so don't do it on every
+     * read.
+     *
+     * @return The number of damaged events and torn writes found
+     */
+    public int verify() throws IOException {
+        if (storage == null) {
+            return 0;
         }
+
+        importLegacyStorage();
+        storage.rescan();
+        int damaged = storage.verify();
+        if (damaged > 0) {
+            Timber.w("Found %d damaged events in history storage", damaged);
+        }
+        return damaged;
     }
 
     /**
      * Add this series to a plot and you'll see how battery drain speed has changed over time.
      */
     public List<DrainSample> getBatteryDrain() throws IOException {
-        List<DrainSample> returnMe = new ArrayList<>();
+        return getBatteryDrain(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
 
-        boolean systemDown = false;
-        HistoryEvent lastLevelEvent = null;
-        if (eventsFromStorage == null) {
-            eventsFromStorage = readEventsFromStorage();
+    /**
+     * Like {@link #getBatteryDrain()}, but only considering events between fromMs and toMs.
+     */
+    public List<DrainSample> getBatteryDrain(long fromMs, long toMs) throws IOException {
+        DrainDotsCreator drainDots = new DrainDotsCreator();
+        HistoryCursor event = query(fromMs, toMs, DRAIN_TYPES);
+        while (event.moveToNext()) {
+            drainDots.add(event);
         }
-        for (HistoryEvent event : eventsFromStorage) {
+        return drainDots.finish(toMs == Long.MAX_VALUE);
+    }
+
+    /**
+     * Everything the battery plot shows, computed in a single pass over the events.
+     */
+    public PlotData getPlotData() throws IOException {
+        return getPlotData(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #getPlotData()}, but only considering events between fromMs and toMs.
+     */
+    public PlotData getPlotData(long fromMs, long toMs) throws IOException {
+        DrainDotsCreator drainDots = new DrainDotsCreator();
+        DrainLinesCreator drainLines = new DrainLinesCreator();
+        PlotEventsCreator plotEvents = new PlotEventsCreator(getPackageDictionary());
+
+        HistoryCursor event = getArchivedEvents(fromMs, toMs);
+        while (event.moveToNext()) {
+            plotEvents.add(event);
+        }
+
+        boolean empty = true;
+        event = getEventsFromStorage(fromMs, toMs);
+        while (event.moveToNext()) {
+            empty = false;
+            drainDots.add(event);
+            drainLines.add(event);
+            plotEvents.add(event);
+        }
+
+        return new PlotData(drainDots.finish(toMs == Long.MAX_VALUE), drainLines.finish(),
+                plotEvents.getEvents(), empty);
+    }
+
+    /**
+     * Computes drain speeds between consecutive battery level events, one event at a time.
+     */
+    private static class DrainDotsCreator {
+        private final List<DrainSample> drainDots = new ArrayList<>();
+
+        private boolean systemDown = false;
+        private boolean haveLastLevel = false;
+        private long lastLevelTimestamp = 0;
+        private int lastLevelPercentage = 0;
+        private boolean haveEvents = false;
+        private long lastTimestamp = 0;
+
+        void add(HistoryCursor event) {
+            haveEvents = true;
+            lastTimestamp = event.getTimestamp();
             switch (event.getType()) {
                 case SYSTEM_SHUTDOWN:
                     systemDown = true;
-                    lastLevelEvent = null;
-                    continue;
+                    haveLastLevel = false;
+                    return;
                 case SYSTEM_BOOT:
                     if (!systemDown) {
                         // Missing shutdown event; assume an unclean shutdown and reset aggregation
-                        lastLevelEvent = null;
+                        haveLastLevel = false;
                     }
                     systemDown = false;
-                    continue;
+                    return;
                 case BATTERY_LEVEL:
                     // Handled below
                     break;
                 case INFO:
                 case START_CHARGING:
                 case STOP_CHARGING:
+                case PACKAGE_INSTALLED:
+                case PACKAGE_UPGRADED:
+                case PACKAGE_REMOVED:
                     // Doesn't affect drain
-                    continue;
+                    return;
                 default:
                     Timber.w("Drain: Unsupported event type %s", event.getType());
-                    continue;
+                    return;
             }
             if (systemDown) {
-                continue;
+                return;
             }
 
-            if (lastLevelEvent == null) {
-                lastLevelEvent = event;
-                continue;
+            long timestamp = event.getTimestamp();
+            int percentage = event.getPercentage();
+            if (haveLastLevel) {
+                double deltaHours = (timestamp - lastLevelTimestamp) / (double)HOUR_MS;
+                double drain = (lastLevelPercentage - percentage) / deltaHours;
+
+                // Drain <= 0 happens while charging, reset aggregation
+                if (drain > 0) {
+                    drainDots.add(new DrainSample(lastLevelTimestamp, timestamp, drain));
+                }
             }
 
-            double deltaHours =
-                    (event.getTimestamp().getTime() - lastLevelEvent.getTimestamp().getTime()) / (double)HOUR_MS;
-            double drain = (lastLevelEvent.getPercentage() - event.getPercentage()) / deltaHours;
+            haveLastLevel = true;
+            lastLevelTimestamp = timestamp;
+            lastLevelPercentage = percentage;
+        }
 
-            if (drain <= 0) {
-                // This happens while charging, reset aggregation
-                lastLevelEvent = event;
-                continue;
+        /**
+         * @param upToNow True if we've been given all events up until now, in which case we warn
+         *                about stale data
+         */
+        List<DrainSample> finish(boolean upToNow) {
+            if (haveEvents && upToNow) {
+                long stalenessDays = getStalenessDays(lastTimestamp);
+                if (stalenessDays > 0) {
+                    Timber.w("Most recently sampled data was %d days old,"
+                            + " expected at most 15 minutes", stalenessDays);
+                }
             }
 
-            returnMe.add(new DrainSample(lastLevelEvent.getTimestamp(), event.getTimestamp(), drain));
+            return drainDots;
+        }
+    }
+
+    /**
+     * Battery statistics per hour for the hours overlapping fromMs up to and including toMs.
+     * Hours without any data are left out.
+     * <p>
+     * This reads a small rollups file rather than all events, so it's cheap also for long ranges.
+     */
+    public List<DrainRollup> getHourlyRollups(long fromMs, long toMs) throws IOException {
+        return loadRollups(HOUR_MS, DrainRollups.HOURLY_FILE_NAME).getRollups(fromMs, toMs);
+    }
+
+    /**
+     * Like {@link #getHourlyRollups(long, long)}, but per UTC day.
+     */
+    public List<DrainRollup> getDailyRollups(long fromMs, long toMs) throws IOException {
+        return loadRollups(HistorySegments.DAY_MS, DrainRollups.DAILY_FILE_NAME)
+                .getRollups(fromMs, toMs);
+    }
 
-            lastLevelEvent = event;
+    /**
+     * Mean battery drain per hour. Plot this instead of {@link #getBatteryDrain()} when zoomed
+     * out far enough that individual samples can't be told apart anyway.
+     */
+    public List<DrainSample> getHourlyDrain() throws IOException {
+        return toDrainSamples(getHourlyRollups(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * Mean battery drain per UTC day. Plot this instead of {@link #getDrainLines()} when zoomed
+     * out, it's read from rollups rather than computed from all events.
+     */
+    public List<DrainSample> getDailyDrain() throws IOException {
+        return toDrainSamples(getDailyRollups(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    private static List<DrainSample> toDrainSamples(List<DrainRollup> rollups) {
+        List<DrainSample> returnMe = new ArrayList<>();
+        for (DrainRollup rollup : rollups) {
+            DrainSample sample = rollup.toDrainSample();
+            if (sample != null) {
+                returnMe.add(sample);
+            }
+        }
+        return returnMe;
+    }
+
+    private DrainRollups loadRollups(long bucketMs, String fileName) throws IOException {
+        DrainRollups returnMe;
+        if (storage == null) {
+            returnMe = new DrainRollups(bucketMs);
+            returnMe.add(getEventsInMemory().cursor());
+            return returnMe;
+        }
+
+        importLegacyStorage();
+        File file = getRollupsFile(fileName);
+        if (file.exists()) {
+            try {
+                return DrainRollups.load(file, bucketMs);
+            } catch (IOException e) {
+                Timber.w(e, "Reading rollups failed, using events instead: %s",
+                        file.getAbsolutePath());
+            }
         }
 
+        // No rollups written yet, for example for history recorded by older versions
+        returnMe = new DrainRollups(bucketMs);
+        returnMe.add(getEventsFromStorage(Long.MIN_VALUE, Long.MAX_VALUE));
         return returnMe;
     }
 
     public List<DrainSample> getDrainLines() throws IOException {
-        if (eventsFromStorage == null) {
-            eventsFromStorage = readEventsFromStorage();
+        return getDrainLines(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #getDrainLines()}, but only considering events between fromMs and toMs.
+     */
+    public List<DrainSample> getDrainLines(long fromMs, long toMs) throws IOException {
+        return new DrainLinesCreator(getEventsFromStorage(fromMs, toMs)).getDrainLines();
+    }
+
+    /**
+     * A cursor over the events with timestamps from fromMs up to and including toMs.
+     * <p>
+     * With segment storage, reading all events caches them in memory for the whole process, and
+     * later calls only decode what has been appended to storage since. Until then, reading a
+     * shorter range streams events from the storage segments covering that range without keeping
+     * them. Other stores are always streamed from.
+     */
+    private HistoryCursor getEventsFromStorage(long fromMs, long toMs) throws IOException {
+        return query(fromMs, toMs, ALL_TYPES);
+    }
+
+    /**
+     * A cursor over the events of the given types with timestamps from fromMs up to and including
+     * toMs.
+     * <p>
+     * Events are read from the same places as by {@link #getEventsFromStorage(long, long)}. Events
+     * in memory are indexed by type, so asking for rare types like reboots or package changes only
+     * visits those. Events streamed from storage still have to be decoded, but the cursor skips
+     * the ones of other types.
+     */
+    public HistoryCursor query(long fromMs, long toMs, EnumSet<HistoryEvent.Type> types)
+            throws IOException
+    {
+        if (storage == null) {
+            return getEventsInMemory().cursor(fromMs, toMs, types);
+        }
+
+        importLegacyStorage();
+        if (!isCached(fromMs, toMs)) {
+            return storage.cursor(fromMs, toMs, types);
         }
-        return new DrainLinesCreator(eventsFromStorage).getDrainLines();
+
+        //noinspection ConstantConditions
+        return cache.cursor(fromMs, toMs, types);
     }
 
-    private ArrayList<HistoryEvent> readEventsFromStorage() throws IOException {
-        ArrayList<HistoryEvent> returnMe = new ArrayList<>();
+    /**
+     * Whether reading events from fromMs to toMs goes through {@link #cache}.
+     */
+    private boolean isCached(long fromMs, long toMs) {
+        return cache != null
+                && (cache.isLoaded() || (fromMs == Long.MIN_VALUE && toMs == Long.MAX_VALUE));
+    }
 
-        if (storage == null || !storage.exists()) {
-            return returnMe;
+    /**
+     * Timestamp of the last event of any type before timestampMs and at or after fromMs, or
+     * {@link Long#MIN_VALUE} if there is no such event.
+     * <p>
+     * Only for events in memory or in {@link #cache}, which can be searched backwards.
+     */
+    private long findTimestampBefore(long timestampMs, long fromMs) throws IOException {
+        long returnMe;
+        if (storage == null) {
+            returnMe = getEventsInMemory().findTimestampBefore(timestampMs);
+        } else {
+            //noinspection ConstantConditions
+            returnMe = cache.findTimestampBefore(timestampMs);
         }
+        return returnMe >= fromMs ? returnMe : Long.MIN_VALUE;
+    }
 
-        BufferedReader reader = new BufferedReader(new FileReader(storage));
-        try {
-            String line;
-            int lineNumber = 1;
-            while ((line = reader.readLine()) != null) {
-                try {
-                    returnMe.add(HistoryEvent.deserializeFromString(line));
-                } catch (ParseException e) {
-                    // Log this but keep going and hope we get the gist of it
-                    Timber.w(e, "Reading storage file failed at line %d: %s", lineNumber, storage.getAbsolutePath());
-                }
-                lineNumber++;
-            }
-        } finally {
-            reader.close();
+    /**
+     * All events in this history, as a snapshot that adding events won't change.
+     * <p>
+     * Events already in memory are shared with the snapshot rather than copied. So it's cheap to
+     * take one, and it can be read on any thread without locking while the sampling service keeps
+     * adding events. Compare {@link EventColumns.Snapshot#getVersion() versions} to find out
+     * whether there's anything new since an earlier snapshot.
+     * <p>
+     * Stores that we don't keep a shared cache of are read into a new snapshot.
+     */
+    public EventColumns.Snapshot snapshot() throws IOException {
+        if (storage == null) {
+            return getEventsInMemory();
         }
 
-        Timber.i("%d events read from %s", returnMe.size(), storage.getAbsolutePath());
-        long stalenessDays = getStalenessDays(returnMe);
-        if (stalenessDays > 0) {
-            Timber.w("Most recently sampled data was %d days old for %d datapoints, expected at most 15 minutes",
-                    stalenessDays,
-                    returnMe.size());
+        importLegacyStorage();
+        if (cache != null) {
+            return cache.snapshot();
         }
 
-        return returnMe;
+        EventColumns returnMe = new EventColumns();
+        HistoryCursor event = storage.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (event.moveToNext()) {
+            returnMe.add(event.toHistoryEvent());
+        }
+        return returnMe.snapshot();
     }
 
-    private static long getStalenessDays(ArrayList<HistoryEvent> history) {
-        if (history.isEmpty()) {
-            return 0;
+    /**
+     * For histories without storage, what we have in memory.
+     */
+    private synchronized EventColumns.Snapshot getEventsInMemory() {
+        if (eventsFromStorage == null) {
+            return new EventColumns(0).snapshot();
         }
+        return eventsFromStorage.snapshot();
+    }
 
-        HistoryEvent lastEvent = history.get(history.size() - 1);
-        Date lastTimestamp = lastEvent.getTimestamp();
-
-        long ageMs = System.currentTimeMillis() - lastTimestamp.getTime();
+    private static long getStalenessDays(long lastTimestamp) {
+        long ageMs = System.currentTimeMillis() - lastTimestamp;
         if (ageMs < -10000) {
             Timber.w("Most recent sample timestamp is %dms in the future", -ageMs);
         }
@@ -252,45 +811,91 @@ public class History {
      */
     @Nullable
     private HistoryEvent readFirstEventFromStorage() throws IOException {
-        if (storage == null || !storage.exists()) {
+        if (storage == null) {
             return null;
         }
 
-        BufferedReader reader = new BufferedReader(new FileReader(storage), 200);
-        try {
-            String line;
-
-            int lineNumber = 1;
-            while ((line = reader.readLine()) != null) {
-                try {
-                    return HistoryEvent.deserializeFromString(line);
-                } catch (ParseException e) {
-                    // Log this but keep going and hope we get the gist of it
-                    Timber.w(e, "Reading storage file failed at line %d: %s", lineNumber, storage.getAbsolutePath());
-                }
-                lineNumber++;
-            }
-        } finally {
-            reader.close();
+        importLegacyStorage();
+        storage.rescan();
+        return storage.readFirstEvent();
+    }
+
+    /**
+     * The most recent event, or null if there are no events.
+     * <p>
+     * This only reads the end of storage, so it's cheap no matter how long the history is.
+     */
+    @Nullable
+    public HistoryEvent getLastEvent() throws IOException {
+        HistoryCursor cursor;
+        if (storage == null) {
+            cursor = getEventsInMemory().reverseCursor();
+        } else {
+            importLegacyStorage();
+            storage.rescan();
+            cursor = storage.reverseCursor(Long.MIN_VALUE);
         }
 
-        return null;
+        if (!cursor.moveToNext()) {
+            return null;
+        }
+        return cursor.toHistoryEvent();
     }
 
     /**
      * Add this to a plot and you'll hopefully see what events affect your battery usage.
      */
     public List<PlotEvent> getEvents() throws IOException {
-        List<PlotEvent> returnMe = new ArrayList<>();
-        if (eventsFromStorage == null) {
-            eventsFromStorage = readEventsFromStorage();
+        return getEvents(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #getEvents()}, but only considering events between fromMs and toMs.
+     */
+    public List<PlotEvent> getEvents(long fromMs, long toMs) throws IOException {
+        PlotEventsCreator plotEvents = new PlotEventsCreator(getPackageDictionary());
+        HistoryCursor event = getArchivedEvents(fromMs, toMs);
+        while (event.moveToNext()) {
+            plotEvents.add(event);
         }
 
-        boolean systemDown = false;
-        Date lastTimestamp;
-        Date currentTimestamp = null;
-        for (HistoryEvent event : eventsFromStorage) {
-            lastTimestamp = currentTimestamp;
+        // Battery levels are most of the events but don't show up here, so skip them if we can
+        // search backwards for the last event before each boot. Streamed events can't be searched,
+        // so there we read everything once and let the plot events keep track.
+        boolean searchable = storage == null || isCached(fromMs, toMs);
+        event = query(fromMs, toMs, searchable ? PLOT_EVENT_TYPES : ALL_TYPES);
+        while (event.moveToNext()) {
+            if (searchable
+                    && event.getType() == HistoryEvent.Type.SYSTEM_BOOT
+                    && event.getTimestamp() > fromMs)
+            {
+                // Unclean shutdowns are placed relative to the last event before the boot
+                plotEvents.skippedTo(findTimestampBefore(event.getTimestamp(), fromMs));
+            }
+            plotEvents.add(event);
+        }
+        return plotEvents.getEvents();
+    }
+
+    /**
+     * Turns history events into plot events, one event at a time.
+     */
+    private static class PlotEventsCreator {
+        private final List<PlotEvent> plotEvents = new ArrayList<>();
+        private final PackageDictionary packages;
+
+        private boolean systemDown = false;
+        private boolean haveCurrentTimestamp = false;
+        private long currentTimestamp = 0;
+
+        PlotEventsCreator(PackageDictionary packages) {
+            this.packages = packages;
+        }
+
+        void add(HistoryCursor event) {
+            boolean haveLastTimestamp = haveCurrentTimestamp;
+            long lastTimestamp = currentTimestamp;
+            haveCurrentTimestamp = true;
             currentTimestamp = event.getTimestamp();
 
             String description;
@@ -298,19 +903,20 @@ public class History {
                 case START_CHARGING:
                 case STOP_CHARGING:
                 case BATTERY_LEVEL:
-                    continue;
+                    return;
 
                 case SYSTEM_BOOT:
                     if (!systemDown) {
                         // Assume an unclean shutdown and insert a fake unclean-shutdown event
-                        Date uncleanShutdownTimestamp;
-                        if (lastTimestamp == null) {
-                            uncleanShutdownTimestamp = new Date(event.getTimestamp().getTime() - FIVE_MINUTES_MS);
+                        long uncleanShutdownTimestamp;
+                        if (!haveLastTimestamp) {
+                            uncleanShutdownTimestamp = currentTimestamp - FIVE_MINUTES_MS;
                         } else {
-                            uncleanShutdownTimestamp = new Date((event.getTimestamp().getTime() + lastTimestamp.getTime()) / 2);
+                            uncleanShutdownTimestamp = (currentTimestamp + lastTimestamp) / 2;
                         }
 
-                        returnMe.add(new PlotEvent(uncleanShutdownTimestamp, "Unclean shutdown", event.getType()));
+                        plotEvents.add(new PlotEvent(
+                                uncleanShutdownTimestamp, "Unclean shutdown", event.getType()));
                     }
 
                     description = "System starting up (" +
@@ -328,20 +934,66 @@ public class History {
                     description = event.getMessage();
                     break;
 
+                case PACKAGE_INSTALLED:
+                case PACKAGE_UPGRADED:
+                case PACKAGE_REMOVED:
+                    description = packages.describe(event);
+                    break;
+
                 default:
                     description = "Unknown event type " + event.getType();
             }
-            returnMe.add(new PlotEvent(event.getTimestamp(), description, event.getType()));
+            plotEvents.add(new PlotEvent(currentTimestamp, description, event.getType()));
         }
-        return returnMe;
+
+        /**
+         * For cursors that skip some events: the timestamp of the last event skipped before the
+         * next one we get, or {@link Long#MIN_VALUE} if none.
+         */
+        void skippedTo(long timestamp) {
+            if (timestamp == Long.MIN_VALUE
+                    || (haveCurrentTimestamp && timestamp <= currentTimestamp))
+            {
+                return;
+            }
+            haveCurrentTimestamp = true;
+            currentTimestamp = timestamp;
+        }
+
+        List<PlotEvent> getEvents() {
+            return plotEvents;
+        }
+    }
+
+    /**
+     * Archived events from before the oldest history segment.
+     */
+    private HistoryCursor getArchivedEvents(long fromMs, long toMs) throws IOException {
+        if (storage == null || archive == null) {
+            return new EventColumns(0).cursor();
+        }
+
+        importLegacyStorage();
+        storage.rescan();
+        Long oldestDay = storage.getOldestDay();
+        if (oldestDay != null) {
+            toMs = Math.min(toMs, oldestDay * HistorySegments.DAY_MS - 1);
+        }
+        if (toMs < fromMs) {
+            return new EventColumns(0).cursor();
+        }
+
+        return archive.read(fromMs, toMs).cursor();
     }
 
     public boolean isEmpty() throws IOException {
-        if (eventsFromStorage == null) {
-            eventsFromStorage = readEventsFromStorage();
+        if (storage == null) {
+            return getEventsInMemory().isEmpty();
         }
 
-        return eventsFromStorage.isEmpty();
+        importLegacyStorage();
+        storage.rescan();
+        return storage.isEmpty();
     }
 
     /**
@@ -350,11 +1002,23 @@ public class History {
     private History() {
         // We don't want to persist the fake history
         storage = null;
+        directory = null;
+        cache = null;
+        archive = null;
+        legacyStorage = null;
+        packages = new PackageDictionary();
     }
 
-    public static History createFakeHistory() throws IOException {
+    /**
+     * Fake history for running in the emulator. Generated once per process and then shared.
+     */
+    public static synchronized History createFakeHistory() throws IOException {
+        if (fakeHistory != null) {
+            return fakeHistory;
+        }
+
         History history = new History();
-        history.eventsFromStorage = new ArrayList<>();
+        history.eventsFromStorage = new EventColumns();
         //noinspection ConstantConditions
         if (FAKE_HISTORY_DAYS_OLD_START == FAKE_HISTORY_DAYS_OLD_END) {
             return history;
@@ -366,17 +1030,19 @@ public class History {
         Calendar end = new GregorianCalendar();
         end.add(Calendar.DAY_OF_MONTH, -FAKE_HISTORY_DAYS_OLD_END);
 
-        long timeSpanMs = end.getTime().getTime() - now.getTime().getTime();
-        Date upgradeTimestamp = new Date(now.getTime().getTime() + timeSpanMs * 2 / 7);
-        Date downtimeStart = new Date(now.getTime().getTime() + timeSpanMs * 3 / 7);
-        Date downtimeEnd = new Date(now.getTime().getTime() + timeSpanMs * 4 / 7);
+        long timeSpanMs = end.getTimeInMillis() - now.getTimeInMillis();
 
-        Date bootTimestamp = new Date(now.getTime().getTime() - 86400 * 1000);
+        // These are set to Long.MAX_VALUE once they have happened
+        long upgradeTimestamp = now.getTimeInMillis() + timeSpanMs * 2 / 7;
+        long downtimeStart = now.getTimeInMillis() + timeSpanMs * 3 / 7;
+
+        long downtimeEnd = now.getTimeInMillis() + timeSpanMs * 4 / 7;
+        long bootTimestamp = now.getTimeInMillis() - 86400 * 1000;
 
         int charge = 50;
         Random random = new Random();
 
-        SystemState previous = new SystemState(now.getTime(), charge, false, bootTimestamp);
+        SystemState previous = new SystemState(now.getTimeInMillis(), charge, false, bootTimestamp);
         String packageVersion = "5.6.160sp.1258283";
         previous.addInstalledApp("a.b.c", "Google Play Music", packageVersion);
 
@@ -385,12 +1051,12 @@ public class History {
             int hourOfDay = now.get(Calendar.HOUR_OF_DAY);
             boolean charging = hourOfDay < 8 || hourOfDay > 21;
 
-            if (downtimeStart != null && now.getTime().getTime() > downtimeStart.getTime()) {
+            if (now.getTimeInMillis() > downtimeStart) {
                 bootTimestamp = downtimeEnd;
-                downtimeStart = null;
+                downtimeStart = Long.MAX_VALUE;
                 continue;
             }
-            if (now.getTime().getTime() < bootTimestamp.getTime()) {
+            if (now.getTimeInMillis() < bootTimestamp) {
                 continue;
             }
 
@@ -406,21 +1072,21 @@ public class History {
                 }
             }
 
-            if (upgradeTimestamp != null && now.getTime().getTime() > upgradeTimestamp.getTime()) {
-                upgradeTimestamp = null;
+            if (now.getTimeInMillis() > upgradeTimestamp) {
+                upgradeTimestamp = Long.MAX_VALUE;
                 packageVersion = "5.6.160sp.1258284";
             }
 
-            SystemState current = new SystemState(now.getTime(), charge, charging, bootTimestamp);
+            SystemState current =
+                    new SystemState(now.getTimeInMillis(), charge, charging, bootTimestamp);
             current.addInstalledApp("a.b.c", "Google Play Music", packageVersion);
 
-            for (HistoryEvent event : current.getEventsSince(previous)) {
-                history.addEvent(event);
-            }
+            history.addEventsSince(current, previous);
 
             previous = current;
         }
 
+        fakeHistory = history;
         return history;
     }
 
@@ -428,28 +1094,31 @@ public class History {
      * Returns the age of the oldest history entry in days.
      */
     public int getHistoryAgeDays() {
-        HistoryEvent firstEvent;
+        long firstTimestamp;
 
-        if (eventsFromStorage != null) {
-            if (eventsFromStorage.isEmpty()) {
+        if (storage == null) {
+            EventColumns.Snapshot events = getEventsInMemory();
+            if (events.isEmpty()) {
                 return 0;
             }
 
-            firstEvent = eventsFromStorage.get(0);
+            firstTimestamp = events.getTimestamp(0);
         } else {
+            HistoryEvent firstEvent;
             try {
                 firstEvent = readFirstEventFromStorage();
             } catch (IOException e) {
                 Timber.e(e, "Unable to read first event from storage file");
                 return 0;
             }
-        }
 
-        if (firstEvent == null) {
-            return 0;
+            if (firstEvent == null) {
+                return 0;
+            }
+            firstTimestamp = firstEvent.getTimestamp();
         }
 
-        long ageMs = System.currentTimeMillis() - firstEvent.getTimestamp().getTime();
+        long ageMs = System.currentTimeMillis() - firstTimestamp;
 
         return (int)(ageMs / (86400 * 1000));
     }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Events read from a history storage directory, shared by all {@link History} instances in this
+ * process.
+ * <p>
+ * Reading is safe from any thread, also while another thread or process is writing to storage.
+ */
+class HistoryCache {
+    private static final Map<File, HistoryCache> CACHES = new HashMap<>();
+
+    /**
+     * Our own instance, used only for reading.
+     */
+    private final HistorySegments storage;
+
+    @Nullable
+    private EventColumns events;
+
+    /**
+     * Where in storage {@link #events} ends.
+     */
+    @Nullable
+    private HistorySegments.ReadPosition readPosition;
+
+    /**
+     * What storage looked like when we last read from it.
+     */
+    @Nullable
+    private String storageState;
+
+    private HistoryCache(File directory) {
+        storage = new HistorySegments(directory);
+    }
+
+    static HistoryCache get(File directory) {
+        synchronized (CACHES) {
+            File key = directory.getAbsoluteFile();
+            HistoryCache cache = CACHES.get(key);
+            if (cache == null) {
+                cache = new HistoryCache(key);
+                CACHES.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    synchronized boolean isLoaded() {
+        return events != null;
+    }
+
+    /**
+     * Segment names plus size and modification time of the newest segment. Events are only ever
+     * appended to the newest segment, so if this hasn't changed, neither have the events.
+     */
+    private String getStorageState() {
+        storage.rescan();
+        List<File> segments = storage.getSegmentFiles();
+        if (segments.isEmpty()) {
+            return "";
+        }
+
+        File oldest = segments.get(0);
+        File newest = segments.get(segments.size() - 1);
+        return oldest.getName() + "-" + newest.getName() + "/" + segments.size()
+                + ":" + newest.length() + "@" + newest.lastModified();
+    }
+
+    /**
+     * A cursor over the events with timestamps from fromMs up to and including toMs.
+     * <p>
+     * The first call reads all of storage. Later calls only read what has been appended since,
+     * unless storage has been changed in some other way.
+     */
+    synchronized EventColumns.Cursor cursor(long fromMs, long toMs) throws IOException {
+        return getEvents().cursor(fromMs, toMs);
+    }
+
+    /**
+     * Like {@link #cursor(long, long)}, but only for events of the given types.
+     */
+    synchronized EventColumns.Cursor cursor(
+            long fromMs, long toMs, EnumSet<HistoryEvent.Type> types) throws IOException
+    {
+        return getEvents().cursor(fromMs, toMs, types);
+    }
+
+    /**
+     * All events, as a snapshot that later reads won't change.
+     */
+    synchronized EventColumns.Snapshot snapshot() throws IOException {
+        return getEvents().snapshot();
+    }
+
+    /**
+     * Timestamp of the last event before timestampMs, or {@link Long#MIN_VALUE} if there is no
+     * such event.
+     */
+    synchronized long findTimestampBefore(long timestampMs) throws IOException {
+        return getEvents().findTimestampBefore(timestampMs);
+    }
+
+    private EventColumns getEvents() throws IOException {
+        String state = getStorageState();
+        if (events == null || !state.equals(storageState)) {
+            try {
+                refresh();
+            } catch (IOException e) {
+                String newState = getStorageState();
+                if (newState.equals(state)) {
+                    throw e;
+                }
+
+                // We don't lock out writers, and old history was dropped while we were reading
+                Timber.i(e, "History storage changed while reading, reading it again");
+                state = newState;
+                refresh();
+            }
+            storageState = state;
+        }
+
+        //noinspection ConstantConditions
+        return events;
+    }
+
+    private void refresh() throws IOException {
+        try {
+            if (events != null && readPosition != null) {
+                HistorySegments.ReadPosition position = storage.readSince(readPosition, events);
+                if (position != null) {
+                    readPosition = position;
+                    return;
+                }
+                Timber.i("History storage changed, re-reading all of it");
+            }
+
+            EventColumns newEvents = new EventColumns();
+            readPosition = storage.readAll(newEvents);
+            events = newEvents;
+        } catch (IOException e) {
+            // We don't know how far we got, start over next time
+            events = null;
+            readPosition = null;
+            storageState = null;
+            throw e;
+        }
+    }
+}
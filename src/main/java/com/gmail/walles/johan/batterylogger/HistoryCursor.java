@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+/**
+ * Walks over history events one by one. Call {@link #moveToNext()} before accessing the first
+ * event.
+ * <p>
+ * The accessors describe the current event only, moving the cursor may reuse whatever they
+ * returned their values from. Cursors reading from storage only decode events as they move, so
+ * stopping early saves the work of reading the rest.
+ */
+public interface HistoryCursor {
+    /**
+     * @return false if we've moved past the last event
+     */
+    boolean moveToNext();
+
+    long getTimestamp();
+
+    HistoryEvent.Type getType();
+
+    int getPercentage();
+
+    boolean isCharging();
+
+    String getMessage();
+
+    /**
+     * @see HistoryEvent#getPackageId()
+     */
+    int getPackageId();
+
+    /**
+     * @see HistoryEvent#getVersionId()
+     */
+    int getVersionId();
+
+    /**
+     * @see HistoryEvent#getPreviousVersionId()
+     */
+    int getPreviousVersionId();
+
+    /**
+     * Create a {@link HistoryEvent} for the current event. Mostly useful for logging.
+     */
+    HistoryEvent toHistoryEvent();
+}
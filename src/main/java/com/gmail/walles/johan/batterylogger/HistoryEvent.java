@@ -19,223 +19,672 @@ package com.gmail.walles.johan.batterylogger;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.Date;
 
-public class HistoryEvent implements Comparable<HistoryEvent> {
+public abstract class HistoryEvent implements Comparable<HistoryEvent> {
     @Override
     public int compareTo(@NonNull HistoryEvent historyEvent) {
-        return getTimestamp().compareTo(historyEvent.getTimestamp());
+        long a = getTimestamp();
+        long b = historyEvent.getTimestamp();
+        return a < b ? -1 : (a == b ? 0 : 1);
     }
 
+    /**
+     * Timestamp for events that will get theirs later through {@link #withTimestamp(long)}.
+     */
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Previous version id of package events that aren't upgrades.
+     */
+    static final int NO_VERSION = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public enum Type {
-        BATTERY_LEVEL,
-        SYSTEM_SHUTDOWN,
-        SYSTEM_BOOT,
-        INFO,
-        START_CHARGING,
-        STOP_CHARGING
-    }
+        BATTERY_LEVEL(1),
+        SYSTEM_SHUTDOWN(2),
+        SYSTEM_BOOT(3),
+        INFO(4),
+        START_CHARGING(5),
+        STOP_CHARGING(6),
+        PACKAGE_INSTALLED(7),
+        PACKAGE_UPGRADED(8),
+        PACKAGE_REMOVED(9);
+
+        /**
+         * Identifies this type in binary history files. Must never change for an existing type.
+         */
+        final byte tag;
+
+        /**
+         * Cached since {@link #values()} returns a new array on every call.
+         */
+        private static final Type[] VALUES = values();
+
+        private static final Type[] BY_TAG;
+        static {
+            int maxTag = 0;
+            for (Type type : VALUES) {
+                maxTag = Math.max(maxTag, type.tag);
+            }
+            BY_TAG = new Type[maxTag + 1];
+            for (Type type : VALUES) {
+                BY_TAG[type.tag] = type;
+            }
+        }
 
-    @Nullable
-    private Date timestamp;
+        Type(int tag) {
+            this.tag = (byte)tag;
+        }
 
-    private final Type type;
-    private int percentage;
-    private String message;
-    private boolean charging;
+        /**
+         * Whether events of this type refer to a package in the {@link PackageDictionary}.
+         */
+        boolean isPackageChange() {
+            return this == PACKAGE_INSTALLED || this == PACKAGE_UPGRADED || this == PACKAGE_REMOVED;
+        }
 
-    public Date getTimestamp() {
-        if (timestamp == null) {
+        static Type fromTag(int tag) throws ParseException {
+            if (tag < 0 || tag >= BY_TAG.length || BY_TAG[tag] == null) {
+                throw new ParseException("Unknown event type tag " + tag, -1);
+            }
+            return BY_TAG[tag];
+        }
+
+        /**
+         * Like {@link #valueOf(String)}, but for part of a string and without allocating.
+         *
+         * @return null if there is no type with that name
+         */
+        @Nullable
+        static Type fromName(CharSequence chars, int start, int end) {
+            for (Type type : VALUES) {
+                String name = type.name();
+                if (name.length() != end - start) {
+                    continue;
+                }
+
+                int i = 0;
+                while (i < name.length() && name.charAt(i) == chars.charAt(start + i)) {
+                    i++;
+                }
+                if (i == name.length()) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Milliseconds since the epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * @return Milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        if (timestamp == NO_TIMESTAMP) {
             throw new IllegalStateException("Must set timestamp first");
         }
 
         return timestamp;
     }
 
-    public void setTimestamp(@NonNull Date timestamp) {
-        if (this.timestamp != null) {
+    /**
+     * A copy of this event with its timestamp set.
+     */
+    public HistoryEvent withTimestamp(long timestamp) {
+        if (this.timestamp != NO_TIMESTAMP) {
             throw new IllegalStateException("Timestamp already set");
         }
 
-        this.timestamp = timestamp;
+        switch (getType()) {
+            case BATTERY_LEVEL:
+                return createBatteryLevelEvent(timestamp, getPercentage());
+            case SYSTEM_BOOT:
+                return createSystemBootingEvent(timestamp, isCharging());
+            case INFO:
+                return createInfoEvent(timestamp, getMessage());
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                PackageEvent packageEvent = (PackageEvent)this;
+                return new PackageEvent(timestamp, getType(), packageEvent.packageId,
+                        packageEvent.versionId, packageEvent.previousVersionId);
+            default:
+                return new PayloadFreeEvent(timestamp, getType());
+        }
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean isComplete() {
-        return timestamp != null;
+        return timestamp != NO_TIMESTAMP;
     }
 
-    public Type getType() {
-        return type;
-    }
+    public abstract Type getType();
 
     public int getPercentage() {
-        if (type != Type.BATTERY_LEVEL) {
-            throw new UnsupportedOperationException(
-                    "Percentage only available for BATTERY_LEVEL events but I'm a " + type);
-        }
-        return percentage;
+        throw new UnsupportedOperationException(
+                "Percentage only available for BATTERY_LEVEL events but I'm a " + getType());
     }
 
     public String getMessage() {
-        if (type != Type.INFO) {
-            throw new UnsupportedOperationException(
-                    "Message only available for INFO events but I'm a " + type);
-        }
-        return message;
+        throw new UnsupportedOperationException(
+                "Message only available for INFO events but I'm a " + getType());
     }
 
     public boolean isCharging() {
-        if (type != Type.SYSTEM_BOOT) {
-            throw new UnsupportedOperationException(
-                    "Charging state only available for SYSTEM_BOOT events, but I'm a " + type);
-        }
-        return charging;
+        throw new UnsupportedOperationException(
+                "Charging state only available for SYSTEM_BOOT events, but I'm a " + getType());
+    }
+
+    /**
+     * @return The {@link PackageDictionary} id of the package this event is about
+     */
+    public int getPackageId() {
+        throw new UnsupportedOperationException(
+                "Package only available for PACKAGE_ events but I'm a " + getType());
     }
 
-    private HistoryEvent(@Nullable Date timestamp, Type type) {
+    /**
+     * @return The {@link PackageDictionary} id of the installed, upgraded-to or removed version
+     */
+    public int getVersionId() {
+        throw new UnsupportedOperationException(
+                "Version only available for PACKAGE_ events but I'm a " + getType());
+    }
+
+    /**
+     * @return The {@link PackageDictionary} id of the version that was upgraded from
+     */
+    public int getPreviousVersionId() {
+        throw new UnsupportedOperationException(
+                "Previous version only available for PACKAGE_UPGRADED events but I'm a "
+                        + getType());
+    }
+
+    /**
+     * Events are immutable, and each type only has fields for its own payload. On a 64 bit VM
+     * with compressed references that fits every event type in 24 bytes.
+     *
+     * @param timestamp Milliseconds since the epoch, or {@link #NO_TIMESTAMP}
+     */
+    private HistoryEvent(long timestamp) {
         this.timestamp = timestamp;
-        this.type = type;
     }
 
-    public static HistoryEvent createBatteryLevelEvent(@Nullable Date timestamp, int percentage) {
-        HistoryEvent event = new HistoryEvent(timestamp, Type.BATTERY_LEVEL);
-        event.percentage = percentage;
-        return event;
+    private static class BatteryLevelEvent extends HistoryEvent {
+        private final int percentage;
+
+        BatteryLevelEvent(long timestamp, int percentage) {
+            super(timestamp);
+            this.percentage = percentage;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.BATTERY_LEVEL;
+        }
+
+        @Override
+        public int getPercentage() {
+            return percentage;
+        }
+    }
+
+    private static class SystemBootEvent extends HistoryEvent {
+        private final boolean charging;
+
+        SystemBootEvent(long timestamp, boolean charging) {
+            super(timestamp);
+            this.charging = charging;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.SYSTEM_BOOT;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+    }
+
+    private static class InfoEvent extends HistoryEvent {
+        private final String message;
+
+        InfoEvent(long timestamp, String message) {
+            super(timestamp);
+            this.message = message;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.INFO;
+        }
+
+        @Override
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Package installs, upgrades and removals. The package and its versions are ids in the
+     * {@link PackageDictionary}, so these don't repeat any names.
+     */
+    private static class PackageEvent extends HistoryEvent {
+        private final Type type;
+        private final int packageId;
+        private final int versionId;
+
+        /**
+         * {@link #NO_VERSION} for anything but upgrades.
+         */
+        private final int previousVersionId;
+
+        PackageEvent(
+                long timestamp, Type type, int packageId, int versionId, int previousVersionId)
+        {
+            super(timestamp);
+            this.type = type;
+            this.packageId = packageId;
+            this.versionId = versionId;
+            this.previousVersionId = previousVersionId;
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+
+        @Override
+        public int getPackageId() {
+            return packageId;
+        }
+
+        @Override
+        public int getVersionId() {
+            return versionId;
+        }
+
+        @Override
+        public int getPreviousVersionId() {
+            if (type != Type.PACKAGE_UPGRADED) {
+                return super.getPreviousVersionId();
+            }
+            return previousVersionId;
+        }
+    }
+
+    /**
+     * Shutdown and charging events, which are just a type and a timestamp.
+     */
+    private static class PayloadFreeEvent extends HistoryEvent {
+        private final Type type;
+
+        PayloadFreeEvent(long timestamp, Type type) {
+            super(timestamp);
+            this.type = type;
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+    }
+
+    public static HistoryEvent createBatteryLevelEvent(long timestamp, int percentage) {
+        return new BatteryLevelEvent(timestamp, percentage);
     }
 
-    public static HistoryEvent createInfoEvent(@Nullable Date timestamp, String message) {
-        HistoryEvent event = new HistoryEvent(timestamp, Type.INFO);
-        event.message = message;
-        return event;
+    public static HistoryEvent createInfoEvent(long timestamp, String message) {
+        return new InfoEvent(timestamp, message);
     }
 
-    public static HistoryEvent createSystemHaltingEvent(@Nullable Date timestamp) {
-        return new HistoryEvent(timestamp, Type.SYSTEM_SHUTDOWN);
+    public static HistoryEvent createSystemHaltingEvent(long timestamp) {
+        return new PayloadFreeEvent(timestamp, Type.SYSTEM_SHUTDOWN);
     }
 
-    public static HistoryEvent createSystemBootingEvent(@Nullable Date timestamp, boolean isCharging) {
-        HistoryEvent event = new HistoryEvent(timestamp, Type.SYSTEM_BOOT);
-        event.charging = isCharging;
-        return event;
+    public static HistoryEvent createSystemBootingEvent(long timestamp, boolean isCharging) {
+        return new SystemBootEvent(timestamp, isCharging);
     }
 
-    public static HistoryEvent createStartChargingEvent(@Nullable Date timestamp) {
-        return new HistoryEvent(timestamp, Type.START_CHARGING);
+    public static HistoryEvent createStartChargingEvent(long timestamp) {
+        return new PayloadFreeEvent(timestamp, Type.START_CHARGING);
     }
 
-    public static HistoryEvent createStopChargingEvent(@Nullable Date timestamp) {
-        return new HistoryEvent(timestamp, Type.STOP_CHARGING);
+    public static HistoryEvent createStopChargingEvent(long timestamp) {
+        return new PayloadFreeEvent(timestamp, Type.STOP_CHARGING);
+    }
+
+    public static HistoryEvent createPackageInstalledEvent(
+            long timestamp, int packageId, int versionId)
+    {
+        return new PackageEvent(
+                timestamp, Type.PACKAGE_INSTALLED, packageId, versionId, NO_VERSION);
+    }
+
+    public static HistoryEvent createPackageUpgradedEvent(
+            long timestamp, int packageId, int previousVersionId, int versionId)
+    {
+        return new PackageEvent(
+                timestamp, Type.PACKAGE_UPGRADED, packageId, versionId, previousVersionId);
+    }
+
+    public static HistoryEvent createPackageRemovedEvent(
+            long timestamp, int packageId, int versionId)
+    {
+        return new PackageEvent(timestamp, Type.PACKAGE_REMOVED, packageId, versionId, NO_VERSION);
+    }
+
+    /**
+     * Create any kind of package event, for decoders.
+     *
+     * @param previousVersionId Ignored unless type is PACKAGE_UPGRADED
+     */
+    static HistoryEvent createPackageEvent(
+            long timestamp, Type type, int packageId, int versionId, int previousVersionId)
+    {
+        if (!type.isPackageChange()) {
+            throw new IllegalArgumentException("Not a package event type: " + type);
+        }
+        if (type != Type.PACKAGE_UPGRADED) {
+            previousVersionId = NO_VERSION;
+        }
+        return new PackageEvent(timestamp, type, packageId, versionId, previousVersionId);
     }
 
     @Override
     public String toString() {
+        Type type = getType();
         return "HistoryEvent{" +
-                timestamp +
+                (timestamp == NO_TIMESTAMP ? "null" : new Date(timestamp)) +
                 ", " + type +
-                ", " + percentage + "%" +
-                ", " + (charging ? "charging" : "discharging") +
-                ", '" + message + '\'' +
+                (type == Type.BATTERY_LEVEL ? ", " + getPercentage() + "%" : "") +
+                (type == Type.SYSTEM_BOOT ? (isCharging() ? ", charging" : ", discharging") : "") +
+                (type == Type.INFO ? ", '" + getMessage() + '\'' : "") +
+                (type.isPackageChange() ? ", package #" + getPackageId() : "") +
+                (type == Type.PACKAGE_UPGRADED ? ", from version #" + getPreviousVersionId() : "") +
+                (type.isPackageChange() ? ", version #" + getVersionId() : "") +
                 '}';
     }
 
     public static HistoryEvent deserializeFromString(String serialization) throws ParseException {
-        int firstSpaceIndex = serialization.indexOf(' ');
-        int secondSpaceIndex = serialization.indexOf(' ', firstSpaceIndex + 1);
+        EventRecord record = new EventRecord();
+        if (!parseInto(serialization, record)) {
+            throw new ParseException("Parse failed, string: <" + serialization + ">", -1);
+        }
+        return record.toHistoryEvent();
+    }
 
+    /**
+     * Parse a line written by {@link #serializeToString()} into a reusable record. Only INFO
+     * events allocate, for their message.
+     *
+     * @return false if the line couldn't be parsed, in which case record is undefined
+     */
+    static boolean parseInto(CharSequence line, EventRecord record) {
+        int length = line.length();
+        int firstSpaceIndex = indexOf(line, ' ', 0);
         if (firstSpaceIndex == -1) {
-            throw new ParseException(
-                    "Parse failed, firstSpace=" + firstSpaceIndex
-                            + ", string: <" + serialization + ">", -1);
-        }
-
-        Type type;
-        String typeString = serialization.substring(0, firstSpaceIndex);
-        try {
-            type = Type.valueOf(typeString);
-        } catch (IllegalArgumentException e) {
-            ParseException throwMe = new ParseException("Parsing type failed: " + serialization, -1);
-            throwMe.initCause(e);
-            throw throwMe;
-        }
-
-        long timestamp;
-        String timestampString;
-        if (secondSpaceIndex != -1) {
-            timestampString = serialization.substring(firstSpaceIndex + 1, secondSpaceIndex);
-        } else {
-            timestampString = serialization.substring(firstSpaceIndex + 1);
-        }
-        try {
-            timestamp = Long.valueOf(timestampString);
-        } catch (NumberFormatException e) {
-            ParseException throwMe = new ParseException("Parsing timestamp failed: " + serialization, -1);
-            throwMe.initCause(e);
-            throw throwMe;
-        }
-
-        HistoryEvent returnMe = new HistoryEvent(new Date(timestamp), type);
-
-        if (type == Type.BATTERY_LEVEL) {
-            if (secondSpaceIndex == -1) {
-                throw new ParseException(
-                        "Parse failed, firstSpace=" + firstSpaceIndex
-                                + ", secondSpace=" + secondSpaceIndex
-                                + ", string: <" + serialization + ">", -1);
-            }
+            return false;
+        }
+        Type type = Type.fromName(line, 0, firstSpaceIndex);
+        if (type == null) {
+            return false;
+        }
 
-            int percentage;
-            String percentageString = serialization.substring(secondSpaceIndex + 1);
-            try {
-                percentage = Integer.valueOf(percentageString);
-            } catch (NumberFormatException e) {
-                ParseException throwMe = new ParseException("Parsing percentage failed: " + serialization, -1);
-                throwMe.initCause(e);
-                throw throwMe;
-            }
+        int secondSpaceIndex = indexOf(line, ' ', firstSpaceIndex + 1);
+        int timestampEnd = secondSpaceIndex == -1 ? length : secondSpaceIndex;
+        long timestamp = parseLong(line, firstSpaceIndex + 1, timestampEnd, Long.MAX_VALUE);
+        if (timestamp == Long.MIN_VALUE) {
+            return false;
+        }
 
-            returnMe.percentage = percentage;
-        } else if (type == Type.INFO) {
-            if (secondSpaceIndex == -1) {
-                throw new ParseException(
-                        "Parse failed, firstSpace=" + firstSpaceIndex
-                                + ", secondSpace=" + secondSpaceIndex
-                                + ", string: <" + serialization + ">", -1);
-            }
+        int payloadStart = secondSpaceIndex + 1;
+        switch (type) {
+            case BATTERY_LEVEL:
+                if (secondSpaceIndex == -1) {
+                    return false;
+                }
+                long percentage = parseLong(line, payloadStart, length, Integer.MAX_VALUE);
+                if (percentage == Long.MIN_VALUE) {
+                    return false;
+                }
+                record.set(timestamp, type, (int)percentage, null);
+                return true;
+            case INFO:
+                if (secondSpaceIndex == -1) {
+                    return false;
+                }
+                record.set(timestamp, type, 0, line.subSequence(payloadStart, length).toString());
+                return true;
+            case SYSTEM_BOOT:
+                if (secondSpaceIndex == -1) {
+                    return false;
+                }
+                // Same as Boolean.valueOf(), anything but "true" is false
+                boolean charging = length - payloadStart == 4
+                        && Character.toLowerCase(line.charAt(payloadStart)) == 't'
+                        && Character.toLowerCase(line.charAt(payloadStart + 1)) == 'r'
+                        && Character.toLowerCase(line.charAt(payloadStart + 2)) == 'u'
+                        && Character.toLowerCase(line.charAt(payloadStart + 3)) == 'e';
+                record.set(timestamp, type, charging ? 1 : 0, null);
+                return true;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                if (secondSpaceIndex == -1) {
+                    return false;
+                }
+                return parsePackageChangeInto(line, payloadStart, timestamp, type, record);
+            default:
+                record.set(timestamp, type, 0, null);
+                return true;
+        }
+    }
 
-            returnMe.message = serialization.substring(secondSpaceIndex + 1);
-        } else if (type == Type.SYSTEM_BOOT) {
-            if (secondSpaceIndex == -1) {
-                throw new ParseException(
-                        "Parse failed, firstSpace=" + firstSpaceIndex
-                                + ", secondSpace=" + secondSpaceIndex
-                                + ", string: <" + serialization + ">", -1);
+    /**
+     * Parse the package id, version id and for upgrades previous version id of a package event.
+     */
+    private static boolean parsePackageChangeInto(
+            CharSequence line, int start, long timestamp, Type type, EventRecord record)
+    {
+        boolean upgrade = type == Type.PACKAGE_UPGRADED;
+        int packageEnd = indexOf(line, ' ', start);
+        if (packageEnd == -1) {
+            return false;
+        }
+        int versionEnd = upgrade ? indexOf(line, ' ', packageEnd + 1) : line.length();
+        if (versionEnd == -1) {
+            return false;
+        }
+
+        // Ids are never negative, so this also catches parse failures
+        long packageId = parseLong(line, start, packageEnd, Integer.MAX_VALUE);
+        long versionId = parseLong(line, packageEnd + 1, versionEnd, Integer.MAX_VALUE);
+        long previousVersionId = NO_VERSION;
+        if (upgrade) {
+            previousVersionId = parseLong(line, versionEnd + 1, line.length(), Integer.MAX_VALUE);
+        }
+        if (packageId < 0 || versionId < 0 || (upgrade && previousVersionId < 0)) {
+            return false;
+        }
+
+        record.setPackageChange(
+                timestamp, type, (int)packageId, (int)versionId, (int)previousVersionId);
+        return true;
+    }
+
+    private static int indexOf(CharSequence chars, char c, int start) {
+        for (int i = start; i < chars.length(); i++) {
+            if (chars.charAt(i) == c) {
+                return i;
             }
+        }
+        return -1;
+    }
 
-            returnMe.charging = Boolean.valueOf(serialization.substring(secondSpaceIndex + 1));
+    /**
+     * Parse an optionally signed decimal number, like {@link Long#parseLong(String)} but for part
+     * of a string and without allocating.
+     *
+     * @param max Largest allowed absolute value
+     * @return Long.MIN_VALUE if there's no valid number in that range of chars
+     */
+    private static long parseLong(CharSequence chars, int start, int end, long max) {
+        boolean negative = false;
+        if (start < end && (chars.charAt(start) == '-' || chars.charAt(start) == '+')) {
+            negative = chars.charAt(start) == '-';
+            start++;
+        }
+        if (start >= end) {
+            return Long.MIN_VALUE;
         }
 
-        return returnMe;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = chars.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (max - digit) / 10) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
     }
 
     public String serializeToString() {
-        if (timestamp == null) {
+        if (timestamp == NO_TIMESTAMP) {
             throw new IllegalStateException("Must set timestamp before serializing");
         }
 
+        Type type = getType();
+        switch (type) {
+            case INFO:
+                return type.name() + " " + timestamp + " " + getMessage();
+            case BATTERY_LEVEL:
+                return type.name() + " " + timestamp + " " + getPercentage();
+            case SYSTEM_BOOT:
+                return type.name() + " " + timestamp + " " + isCharging();
+            case PACKAGE_UPGRADED:
+                return type.name() + " " + timestamp + " " + getPackageId()
+                        + " " + getVersionId() + " " + getPreviousVersionId();
+            case PACKAGE_INSTALLED:
+            case PACKAGE_REMOVED:
+                return type.name() + " " + timestamp + " " + getPackageId() + " " + getVersionId();
+            default:
+                return type.name() + " " + timestamp;
+        }
+    }
+
+    /**
+     * Write this event in the binary format read by {@link #readInto(ByteBuffer, EventRecord)}.
+     * <p>
+     * All event types except INFO are fixed width: a type tag byte, the timestamp as a long and
+     * an int payload. INFO events have a length prefixed UTF-8 message in place of the payload.
+     * Package events have their package id as payload, followed by their version id and previous
+     * version id ints.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        if (timestamp == NO_TIMESTAMP) {
+            throw new IllegalStateException("Must set timestamp before serializing");
+        }
+
+        Type type = getType();
+        out.writeByte(type.tag);
+        out.writeLong(timestamp);
+
         switch (type) {
             case INFO:
-                return type.name() + " " + timestamp.getTime() + " " + message;
+                byte[] messageBytes = getMessage().getBytes(UTF_8);
+                out.writeInt(messageBytes.length);
+                out.write(messageBytes);
+                break;
             case BATTERY_LEVEL:
-                return type.name() + " " + timestamp.getTime() + " " + percentage;
+                out.writeInt(getPercentage());
+                break;
             case SYSTEM_BOOT:
-                return type.name() + " " + timestamp.getTime() + " " + charging;
+                out.writeInt(isCharging() ? 1 : 0);
+                break;
+            case PACKAGE_UPGRADED:
+                out.writeInt(getPackageId());
+                out.writeInt(getVersionId());
+                out.writeInt(getPreviousVersionId());
+                break;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_REMOVED:
+                out.writeInt(getPackageId());
+                out.writeInt(getVersionId());
+                out.writeInt(NO_VERSION);
+                break;
             default:
-                return type.name() + " " + timestamp.getTime();
+                out.writeInt(0);
         }
     }
 
+    /**
+     * Read one event written by {@link #writeTo(DataOutput)} from a buffer into a reusable
+     * record, advancing the buffer's position past the event. Only INFO events allocate, for
+     * their message.
+     *
+     * @return false if there are no more bytes in the buffer
+     * @throws BufferUnderflowException if the buffer ends in the middle of an event
+     */
+    static boolean readInto(ByteBuffer buffer, EventRecord record) throws ParseException {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+
+        Type type = Type.fromTag(buffer.get());
+        long timestamp = buffer.getLong();
+        int payload = buffer.getInt();
+
+        String message = null;
+        switch (type) {
+            case INFO:
+                if (payload < 0) {
+                    throw new ParseException("Negative INFO message length " + payload, -1);
+                }
+                if (payload > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                byte[] messageBytes = new byte[payload];
+                buffer.get(messageBytes);
+                message = new String(messageBytes, UTF_8);
+                payload = 0;
+                break;
+            case SYSTEM_BOOT:
+                payload = payload != 0 ? 1 : 0;
+                break;
+            case BATTERY_LEVEL:
+                break;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                int versionId = buffer.getInt();
+                int previousVersionId = buffer.getInt();
+                record.setPackageChange(timestamp, type, payload, versionId, previousVersionId);
+                return true;
+            default:
+                // No payload for this type
+                payload = 0;
+        }
+
+        record.set(timestamp, type, payload, message);
+        return true;
+    }
+
     @Override
     public boolean equals(Object b) {
         if (b.getClass() != getClass()) {
@@ -243,26 +692,36 @@ public class HistoryEvent implements Comparable<HistoryEvent> {
         }
         HistoryEvent eventB = (HistoryEvent)b;
 
-        if (!type.equals(eventB.type)) {
+        Type type = getType();
+        if (!type.equals(eventB.getType())) {
             return false;
         }
 
-        if (timestamp == null && eventB.timestamp != null) {
+        if (timestamp != eventB.timestamp) {
             return false;
         }
-        if (timestamp != eventB.timestamp && !timestamp.equals(eventB.timestamp)) {
+
+        if (type.equals(Type.BATTERY_LEVEL) && getPercentage() != eventB.getPercentage()) {
+            return false;
+        }
+
+        if (type.equals(Type.INFO) && !getMessage().equals(eventB.getMessage())) {
             return false;
         }
 
-        if (type.equals(Type.BATTERY_LEVEL) && percentage != eventB.percentage) {
+        if (type.equals(Type.SYSTEM_BOOT) && isCharging() != eventB.isCharging()) {
             return false;
         }
 
-        if (type.equals(Type.INFO) && !message.equals(eventB.message)) {
+        if (type.isPackageChange() && (getPackageId() != eventB.getPackageId()
+                || getVersionId() != eventB.getVersionId()))
+        {
             return false;
         }
 
-        if (type.equals(Type.SYSTEM_BOOT) && charging != eventB.charging) {
+        if (type.equals(Type.PACKAGE_UPGRADED)
+                && getPreviousVersionId() != eventB.getPreviousVersionId())
+        {
             return false;
         }
 
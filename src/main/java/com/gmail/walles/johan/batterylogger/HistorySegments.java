@@ -0,0 +1,1204 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * History events stored in one binary file per UTC day.
+ * <p>
+ * Events go into the segment for their day, or into the newest segment if that is for a later
+ * day. That way reading the segments oldest first always returns events in the order they were
+ * added, and old history can be dropped by deleting whole files.
+ */
+class HistorySegments implements HistoryStore {
+    static final long DAY_MS = 86400 * 1000;
+
+    /**
+     * First four bytes of a binary history file, "BLOG" in ASCII.
+     */
+    static final int FILE_MAGIC = 0x424c4f47;
+
+    /**
+     * Events one after the other, as written by {@link HistoryEvent#writeTo(DataOutput)}.
+     */
+    static final int FORMAT_PLAIN = 1;
+
+    /**
+     * Events in {@link EventFrames frames} with checksums.
+     */
+    static final int FORMAT_FRAMED = 2;
+
+    /**
+     * Framed events in the {@link CompactEventCodec compact encoding}.
+     */
+    static final int FORMAT_COMPACT = 3;
+
+    /**
+     * The newest format we know how to read.
+     */
+    static final int FILE_FORMAT_VERSION = FORMAT_COMPACT;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int DECODER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Decodes segments in parallel when reading all of history, lazily initialized by {@link
+     * #getDecoders()}.
+     */
+    @Nullable
+    private static ExecutorService decoders;
+
+    private final File directory;
+
+    /**
+     * Format to create new segments in. Existing segments are appended to in their own format.
+     */
+    private final int formatVersion;
+
+    /**
+     * Day number (days since the epoch) of each segment, oldest first. Lazily initialized by
+     * {@link #getSegmentDays()}.
+     */
+    @Nullable
+    private List<Long> segmentDays;
+
+    private final Map<File, MappedHistoryEvents> mappedSegments = new HashMap<>();
+    private final Map<Long, SegmentIndex> indexes = new HashMap<>();
+
+    /**
+     * Total size of all segments, lazily initialized by {@link #getSize()}.
+     */
+    private long size = -1;
+
+    /**
+     * The newest segment, kept open between appends.
+     */
+    @Nullable
+    private FileOutputStream appender;
+    private long appenderDay;
+
+    /**
+     * Length of the segment we're appending to after our last write to it.
+     */
+    private long appenderLength;
+    private int appenderFormatVersion;
+    private boolean appenderNeedsKeyframe;
+
+    /**
+     * Null for segments with unframed events.
+     */
+    @Nullable
+    private EventFrames appenderFrames;
+
+    /**
+     * Where a read of all events stopped, for picking up events appended after that.
+     */
+    static class ReadPosition {
+        /**
+         * Oldest segment at the time of reading. If this segment is gone, history has been
+         * dropped and we need to start over.
+         */
+        private final long oldestDay;
+
+        /**
+         * The segment we read last, and the offset after the last complete event in it.
+         */
+        private final long day;
+        private final long offset;
+
+        /**
+         * Offset and checksum of the last event we read, used for checking that the segment
+         * hasn't been rewritten. Offset is negative if we didn't read any event.
+         */
+        private final long lastEventOffset;
+        private final int lastEventChecksum;
+
+        /**
+         * What compact events after offset are relative to.
+         */
+        private final long previousTimestamp;
+        private final int previousPercentage;
+
+        private ReadPosition(long oldestDay, long day, long offset,
+                             long lastEventOffset, int lastEventChecksum,
+                             long previousTimestamp, int previousPercentage)
+        {
+            this.oldestDay = oldestDay;
+            this.day = day;
+            this.offset = offset;
+            this.lastEventOffset = lastEventOffset;
+            this.lastEventChecksum = lastEventChecksum;
+            this.previousTimestamp = previousTimestamp;
+            this.previousPercentage = previousPercentage;
+        }
+    }
+
+    HistorySegments(File directory) {
+        this(directory, FILE_FORMAT_VERSION);
+    }
+
+    /**
+     * @param formatVersion Format for new segments, one of the FORMAT_ constants
+     */
+    HistorySegments(File directory, int formatVersion) {
+        if (formatVersion < FORMAT_PLAIN || formatVersion > FILE_FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported format version " + formatVersion);
+        }
+        this.directory = directory;
+        this.formatVersion = formatVersion;
+    }
+
+    private static SimpleDateFormat createSegmentNameFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    static long getDay(long timestampMs) {
+        // Round towards minus infinity, even for pre-1970 timestamps
+        long day = timestampMs / DAY_MS;
+        if (timestampMs < 0 && timestampMs % DAY_MS != 0) {
+            day--;
+        }
+        return day;
+    }
+
+    File getSegmentFile(long day) {
+        return new File(directory,
+                createSegmentNameFormat().format(day * DAY_MS) + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> getSegmentDays() {
+        if (segmentDays != null) {
+            return segmentDays;
+        }
+
+        List<Long> days = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            SimpleDateFormat format = createSegmentNameFormat();
+            for (String name : names) {
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                String date = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+                try {
+                    days.add(getDay(format.parse(date).getTime()));
+                } catch (ParseException e) {
+                    Timber.w(e, "Ignoring unexpected file in history directory: %s", name);
+                }
+            }
+        }
+        Collections.sort(days);
+
+        segmentDays = days;
+        return segmentDays;
+    }
+
+    /**
+     * Forget which segments we know about, so that segments created by other {@link
+     * HistorySegments} instances will be found.
+     */
+    @Override
+    public void rescan() {
+        segmentDays = null;
+        size = -1;
+    }
+
+    /**
+     * All segment files, oldest first.
+     */
+    List<File> getSegmentFiles() {
+        List<File> returnMe = new ArrayList<>();
+        for (long day : getSegmentDays()) {
+            returnMe.add(getSegmentFile(day));
+        }
+        return returnMe;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (File segment : getSegmentFiles()) {
+            if (segment.length() > MappedHistoryEvents.HEADER_SIZE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Total size in bytes of all segments.
+     */
+    @Override
+    public long getSize() {
+        if (size >= 0) {
+            return size;
+        }
+
+        long sum = 0;
+        for (File segment : getSegmentFiles()) {
+            sum += segment.length();
+        }
+        size = sum;
+        return size;
+    }
+
+    /**
+     * Write events to storage, with one write per affected segment.
+     */
+    @Override
+    public void append(Collection<HistoryEvent> events) throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        DataOutputStream chunkWriter = new DataOutputStream(chunk);
+        long chunkDay = 0;
+        long chunkOffset = 0;
+
+        for (HistoryEvent event : events) {
+            List<Long> days = getSegmentDays();
+            long day = getDay(event.getTimestamp());
+            if (!days.isEmpty() && days.get(days.size() - 1) > day) {
+                day = days.get(days.size() - 1);
+            }
+
+            if (chunk.size() > 0 && day != chunkDay) {
+                write(chunkDay, chunk);
+                chunk.reset();
+            }
+            chunkDay = day;
+
+            if (days.isEmpty() || days.get(days.size() - 1) != day) {
+                days.add(day);
+            }
+            if (chunk.size() == 0) {
+                openAppender(day);
+                chunkOffset = getSegmentFile(day).length();
+                if (chunkOffset == 0) {
+                    chunkWriter.writeInt(FILE_MAGIC);
+                    chunkWriter.writeInt(appenderFormatVersion);
+                }
+            }
+
+            // Compact events can only be decoded from a keyframe, so start each append session
+            // with one, and make sure every indexed event is one
+            SegmentIndex index = getIndex(day);
+            boolean keyframe = appenderNeedsKeyframe || index.wantsEntry();
+            index.add(event.getTimestamp(), chunkOffset + chunk.size(), keyframe);
+            if (appenderFrames == null) {
+                event.writeTo(chunkWriter);
+            } else {
+                appenderFrames.write(event, keyframe, chunkWriter);
+            }
+            appenderNeedsKeyframe = false;
+        }
+
+        if (chunk.size() > 0) {
+            write(chunkDay, chunk);
+        }
+    }
+
+    /**
+     * Make {@link #appender} append to the segment for day.
+     * <p>
+     * Before appending to an existing segment, it is recovered from any torn write at its end.
+     * Only the events after the last index entry are checked.
+     */
+    private void openAppender(long day) throws IOException {
+        File segment = getSegmentFile(day);
+        if (appender != null && appenderDay == day && segment.length() == appenderLength) {
+            return;
+        }
+        close();
+
+        // If some other instance has appended to the segment since we indexed it, our index
+        // would take its events for a torn write
+        SegmentIndex cachedIndex = indexes.get(day);
+        if (cachedIndex != null && cachedIndex.getValidLength() != segment.length()) {
+            indexes.remove(day);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Creating history directory failed: " + directory.getAbsolutePath());
+        }
+
+        appenderFormatVersion = formatVersion;
+        if (segment.length() >= MappedHistoryEvents.HEADER_SIZE) {
+            // Keep appending in the format the segment was started in
+            appenderFormatVersion = MappedHistoryEvents.map(segment).getFormatVersion();
+
+            long validLength = getIndex(day).getValidLength();
+            if (validLength < segment.length()) {
+                Timber.w("Truncating torn write of %d bytes: %s",
+                        segment.length() - validLength, segment.getAbsolutePath());
+                truncate(day, validLength);
+            }
+        } else if (segment.length() > 0) {
+            Timber.w("Truncating torn segment header: %s", segment.getAbsolutePath());
+            truncate(day, 0);
+        }
+
+        appender = new FileOutputStream(segment, true);
+        appenderDay = day;
+        appenderLength = segment.length();
+        appenderNeedsKeyframe = true;
+        appenderFrames = null;
+        if (appenderFormatVersion >= FORMAT_FRAMED) {
+            appenderFrames = new EventFrames(appenderFormatVersion);
+        }
+    }
+
+    private void truncate(long day, long length) throws IOException {
+        File segment = getSegmentFile(day);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+
+        mappedSegments.remove(segment);
+        indexes.remove(day);
+        size = -1;
+    }
+
+    private void write(long day, ByteArrayOutputStream bytes) throws IOException {
+        if (appender == null || appenderDay != day) {
+            throw new IllegalStateException("Not appending to segment for day " + day);
+        }
+
+        // Unbuffered on purpose, we want all of this to hit the file system as one write
+        try {
+            bytes.writeTo(appender);
+        } catch (IOException e) {
+            // The index already knows about these events, have it reloaded from the segment. Also
+            // reopen the segment before the next append, to recover from any partial write.
+            indexes.remove(day);
+            size = -1;
+            close();
+            throw e;
+        }
+
+        if (size >= 0) {
+            size += bytes.size();
+        }
+
+        // Index after writing the events, a missing index entry can be recreated from the
+        // segment but an entry pointing outside of the segment would be useless
+        appenderLength = getSegmentFile(day).length();
+        SegmentIndex index = getIndex(day);
+        index.setValidLength(appenderLength);
+        index.flush();
+    }
+
+    private SegmentIndex getIndex(long day) throws IOException {
+        SegmentIndex index = indexes.get(day);
+        if (index == null) {
+            index = SegmentIndex.load(getSegmentFile(day));
+            indexes.put(day, index);
+        }
+        return index;
+    }
+
+    /**
+     * Close the file we keep open for appending events.
+     */
+    @Override
+    public void close() throws IOException {
+        if (appender == null) {
+            return;
+        }
+
+        try {
+            appender.close();
+        } finally {
+            appender = null;
+        }
+    }
+
+    /**
+     * Delete the oldest segment.
+     *
+     * @return The day number of the deleted segment
+     */
+    @Override
+    public long dropOldestSegment() throws IOException {
+        List<Long> days = getSegmentDays();
+        if (days.isEmpty()) {
+            throw new IllegalStateException("No segments to drop");
+        }
+
+        long day = days.remove(0);
+        if (appender != null && appenderDay == day) {
+            close();
+        }
+
+        File segment = getSegmentFile(day);
+        mappedSegments.remove(segment);
+        if (size >= 0) {
+            size -= segment.length();
+        }
+        deleteFile(segment);
+
+        indexes.remove(day);
+        deleteFile(SegmentIndex.getIndexFile(segment));
+
+        return day;
+    }
+
+    /**
+     * All events in the oldest segment, for saving what's worth saving before dropping it.
+     */
+    @Override
+    public Iterable<HistoryEvent> readOldestSegment() throws IOException {
+        List<Long> days = getSegmentDays();
+        if (days.isEmpty()) {
+            throw new IllegalStateException("No segments to read");
+        }
+
+        File segment = getSegmentFile(days.get(0));
+        if (segment.length() < MappedHistoryEvents.HEADER_SIZE) {
+            return Collections.emptyList();
+        }
+        return map(segment);
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return getSegmentDays().size();
+    }
+
+    /**
+     * Day number of the oldest segment, or null if there are no segments.
+     */
+    @Override
+    @Nullable
+    public Long getOldestDay() {
+        List<Long> days = getSegmentDays();
+        if (days.isEmpty()) {
+            return null;
+        }
+        return days.get(0);
+    }
+
+    private MappedHistoryEvents map(File segment) throws IOException {
+        MappedHistoryEvents mapped = mappedSegments.get(segment);
+        if (mapped == null || mapped.getFileSize() != segment.length()) {
+            mapped = MappedHistoryEvents.map(segment);
+            mappedSegments.put(segment, mapped);
+        }
+        return mapped;
+    }
+
+    /**
+     * A cursor over the events with timestamps from fromMs up to and including toMs.
+     * <p>
+     * Only segments overlapping the requested range are mapped, and the start of the range is
+     * looked up in the segment index. Events are decoded one at a time as the cursor moves, so
+     * memory usage doesn't depend on the size of the range.
+     */
+    @Override
+    public HistoryCursor cursor(long fromMs, long toMs) throws IOException {
+        return cursor(fromMs, toMs, EnumSet.allOf(HistoryEvent.Type.class));
+    }
+
+    /**
+     * Events of other types are still decoded to get past them, but the cursor stops only at the
+     * ones of the requested types.
+     */
+    @Override
+    public HistoryCursor cursor(long fromMs, long toMs, EnumSet<HistoryEvent.Type> types)
+            throws IOException
+    {
+        List<Long> days = getSegmentDays();
+        List<MappedHistoryEvents.EventIterator> iterators = new ArrayList<>();
+        for (int i = 0; i < days.size(); i++) {
+            long segmentStartMs = days.get(i) * DAY_MS;
+            if (segmentStartMs > toMs) {
+                break;
+            }
+
+            boolean hasNext = i + 1 < days.size();
+            if (hasNext && days.get(i + 1) * DAY_MS <= fromMs) {
+                // Next segment starts before the requested range, skip this one
+                continue;
+            }
+
+            File segment = getSegmentFile(days.get(i));
+            if (segment.length() < MappedHistoryEvents.HEADER_SIZE) {
+                Timber.w("Skipping history segment without header: %s", segment.getAbsolutePath());
+                continue;
+            }
+
+            long startOffset = MappedHistoryEvents.HEADER_SIZE;
+            if (fromMs > segmentStartMs) {
+                startOffset = getIndex(days.get(i)).findOffset(fromMs);
+            }
+            iterators.add(map(segment).iterator(startOffset));
+        }
+
+        return new SegmentCursor(iterators, fromMs, toMs, types);
+    }
+
+    /**
+     * Decodes events from one segment after the other into a single reused record.
+     */
+    private static class SegmentCursor implements HistoryCursor {
+        private final List<MappedHistoryEvents.EventIterator> iterators;
+        private final long fromMs;
+        private final long toMs;
+        private final EnumSet<HistoryEvent.Type> types;
+
+        private int iteratorIndex = 0;
+        private boolean done = false;
+
+        @Nullable
+        private EventRecord current;
+
+        SegmentCursor(List<MappedHistoryEvents.EventIterator> iterators,
+                long fromMs, long toMs, EnumSet<HistoryEvent.Type> types)
+        {
+            this.iterators = iterators;
+            this.fromMs = fromMs;
+            this.toMs = toMs;
+            this.types = EnumSet.copyOf(types);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            current = null;
+            while (!done) {
+                if (iteratorIndex >= iterators.size()) {
+                    done = true;
+                    break;
+                }
+
+                MappedHistoryEvents.EventIterator iterator = iterators.get(iteratorIndex);
+                if (!iterator.hasNext()) {
+                    iteratorIndex++;
+                    continue;
+                }
+
+                EventRecord record = iterator.nextRecord();
+                long timestamp = record.getTimestamp();
+                if (timestamp > toMs) {
+                    // Events are sorted, we're past the end of the range
+                    done = true;
+                } else if (timestamp >= fromMs && types.contains(record.getType())) {
+                    current = record;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private EventRecord getCurrent() {
+            if (current == null) {
+                throw new IllegalStateException("Not at an event");
+            }
+            return current;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return getCurrent().getTimestamp();
+        }
+
+        @Override
+        public HistoryEvent.Type getType() {
+            return getCurrent().getType();
+        }
+
+        @Override
+        public int getPercentage() {
+            return getCurrent().getPercentage();
+        }
+
+        @Override
+        public boolean isCharging() {
+            return getCurrent().isCharging();
+        }
+
+        @Override
+        public String getMessage() {
+            return getCurrent().getMessage();
+        }
+
+        @Override
+        public int getPackageId() {
+            return getCurrent().getPackageId();
+        }
+
+        @Override
+        public int getVersionId() {
+            return getCurrent().getVersionId();
+        }
+
+        @Override
+        public int getPreviousVersionId() {
+            return getCurrent().getPreviousVersionId();
+        }
+
+        @Override
+        public HistoryEvent toHistoryEvent() {
+            return getCurrent().toHistoryEvent();
+        }
+    }
+
+    /**
+     * A cursor over the events with timestamps at or after fromMs, newest first.
+     * <p>
+     * Segments are walked backwards one index block of about {@link SegmentIndex#INTERVAL}
+     * events at a time, so getting the most recent events only decodes the end of the newest
+     * segment.
+     */
+    @Override
+    public HistoryCursor reverseCursor(long fromMs) throws IOException {
+        List<Long> days = getSegmentDays();
+        List<MappedHistoryEvents> segments = new ArrayList<>();
+        List<long[]> blockStarts = new ArrayList<>();
+        for (int i = days.size() - 1; i >= 0; i--) {
+            File segment = getSegmentFile(days.get(i));
+            if (segment.length() < MappedHistoryEvents.HEADER_SIZE) {
+                Timber.w("Skipping history segment without header: %s", segment.getAbsolutePath());
+                continue;
+            }
+
+            SegmentIndex index = getIndex(days.get(i));
+            long[] starts = new long[Math.max(1, index.getEntryCount())];
+            starts[0] = MappedHistoryEvents.HEADER_SIZE;
+            for (int entry = 1; entry < starts.length; entry++) {
+                starts[entry] = index.getEntryOffset(entry);
+            }
+            segments.add(map(segment));
+            blockStarts.add(starts);
+
+            if (days.get(i) * DAY_MS <= fromMs) {
+                // Older segments are all before the requested range
+                break;
+            }
+        }
+
+        return new ReverseSegmentCursor(segments, blockStarts, fromMs);
+    }
+
+    /**
+     * Decodes one block of events at a time, starting with the last block of the newest segment,
+     * and walks each block backwards.
+     */
+    private static class ReverseSegmentCursor implements HistoryCursor {
+        private final List<MappedHistoryEvents> segments;
+        private final List<long[]> blockStarts;
+        private final long fromMs;
+
+        /**
+         * Index into {@link #segments} of the segment we're in, newest first.
+         */
+        private int segmentIndex = 0;
+
+        /**
+         * Index into the current segment's block starts of the block we're in.
+         */
+        private int blockIndex;
+
+        private EventColumns.Cursor block = new EventColumns(0).reverseCursor();
+        private boolean done = false;
+
+        ReverseSegmentCursor(
+                List<MappedHistoryEvents> segments, List<long[]> blockStarts, long fromMs)
+        {
+            this.segments = segments;
+            this.blockStarts = blockStarts;
+            this.fromMs = fromMs;
+            if (!blockStarts.isEmpty()) {
+                blockIndex = blockStarts.get(0).length;
+            }
+        }
+
+        @Override
+        public boolean moveToNext() {
+            while (!done) {
+                if (block.moveToNext()) {
+                    if (block.getTimestamp() < fromMs) {
+                        // Events are sorted, everything else is older
+                        done = true;
+                        break;
+                    }
+                    return true;
+                }
+
+                if (!readPreviousBlock()) {
+                    done = true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return false if there are no more blocks
+         */
+        private boolean readPreviousBlock() {
+            blockIndex--;
+            while (blockIndex < 0) {
+                segmentIndex++;
+                if (segmentIndex >= segments.size()) {
+                    return false;
+                }
+                blockIndex = blockStarts.get(segmentIndex).length - 1;
+            }
+
+            long[] starts = blockStarts.get(segmentIndex);
+            long end = Long.MAX_VALUE;
+            if (blockIndex + 1 < starts.length) {
+                end = starts[blockIndex + 1];
+            }
+
+            EventColumns events = new EventColumns(SegmentIndex.INTERVAL);
+            MappedHistoryEvents.EventIterator iterator =
+                    segments.get(segmentIndex).iterator(starts[blockIndex]);
+            while (iterator.hasNext() && iterator.getNextOffset() < end) {
+                events.add(iterator.nextRecord());
+            }
+            block = events.reverseCursor();
+            return true;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return block.getTimestamp();
+        }
+
+        @Override
+        public HistoryEvent.Type getType() {
+            return block.getType();
+        }
+
+        @Override
+        public int getPercentage() {
+            return block.getPercentage();
+        }
+
+        @Override
+        public boolean isCharging() {
+            return block.isCharging();
+        }
+
+        @Override
+        public String getMessage() {
+            return block.getMessage();
+        }
+
+        @Override
+        public int getPackageId() {
+            return block.getPackageId();
+        }
+
+        @Override
+        public int getVersionId() {
+            return block.getVersionId();
+        }
+
+        @Override
+        public int getPreviousVersionId() {
+            return block.getPreviousVersionId();
+        }
+
+        @Override
+        public HistoryEvent toHistoryEvent() {
+            return block.toHistoryEvent();
+        }
+    }
+
+    /**
+     * Decode all events into columns.
+     *
+     * @return Where reading stopped, or null if there are no segments
+     */
+    @Nullable
+    ReadPosition readAll(EventColumns into) throws IOException {
+        rescan();
+        List<Long> days = getSegmentDays();
+        if (days.isEmpty()) {
+            return null;
+        }
+
+        // All but the newest segment can be decoded in parallel. The newest one is read the
+        // normal way, since that's what we need a position in for reading appended events later.
+        long firstDay = days.get(0);
+        if (days.size() > 2 && DECODER_THREADS > 1) {
+            decodeInParallel(days.subList(0, days.size() - 1), into);
+            firstDay = days.get(days.size() - 1);
+        }
+
+        ReadPosition start = new ReadPosition(
+                days.get(0), firstDay, MappedHistoryEvents.HEADER_SIZE, -1, 0, 0, 0);
+        return readSegments(start, into);
+    }
+
+    private static synchronized ExecutorService getDecoders() {
+        if (decoders == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    DECODER_THREADS, DECODER_THREADS, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "History decoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+            // Don't keep idle threads around once history has been read
+            executor.allowCoreThreadTimeOut(true);
+            decoders = executor;
+        }
+        return decoders;
+    }
+
+    /**
+     * Decode whole segments on one thread per core, and add their events to into in order.
+     * <p>
+     * Each segment starts with a keyframe, so they can be decoded independently of each other.
+     */
+    private void decodeInParallel(List<Long> days, EventColumns into) throws IOException {
+        List<Future<EventColumns>> decoded = new ArrayList<>();
+        for (long day : days) {
+            File segment = getSegmentFile(day);
+            if (segment.length() < MappedHistoryEvents.HEADER_SIZE) {
+                Timber.w("Skipping history segment without header: %s", segment.getAbsolutePath());
+                continue;
+            }
+
+            // Map on this thread, our map of mapped segments isn't thread safe
+            final MappedHistoryEvents mapped = map(segment);
+            decoded.add(getDecoders().submit(new Callable<EventColumns>() {
+                @Override
+                public EventColumns call() {
+                    EventColumns events = new EventColumns();
+                    MappedHistoryEvents.EventIterator iterator =
+                            mapped.iterator(MappedHistoryEvents.HEADER_SIZE);
+                    while (iterator.hasNext()) {
+                        events.add(iterator.nextRecord());
+                    }
+                    return events;
+                }
+            }));
+        }
+
+        try {
+            for (Future<EventColumns> events : decoded) {
+                into.addAll(events.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding history");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException("Decoding history failed", cause);
+        } finally {
+            for (Future<EventColumns> events : decoded) {
+                events.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Decode events appended since an earlier read into columns.
+     *
+     * @return Where reading stopped, or null if history has been dropped, truncated or rewritten
+     * since position was returned. In that case nothing is added to into.
+     */
+    @Nullable
+    ReadPosition readSince(ReadPosition position, EventColumns into) throws IOException {
+        rescan();
+        List<Long> days = getSegmentDays();
+        if (days.isEmpty() || days.get(0) != position.oldestDay) {
+            return null;
+        }
+        if (!days.contains(position.day)) {
+            return null;
+        }
+
+        File segment = getSegmentFile(position.day);
+        if (segment.length() < position.offset) {
+            Timber.i("History segment truncated: %s", segment.getAbsolutePath());
+            return null;
+        }
+
+        if (position.lastEventOffset >= 0
+                && map(segment).checksum(position.lastEventOffset, position.offset)
+                != position.lastEventChecksum)
+        {
+            Timber.i("History segment rewritten: %s", segment.getAbsolutePath());
+            return null;
+        }
+
+        return readSegments(position, into);
+    }
+
+    /**
+     * Decode events into columns, starting at start and continuing through all newer segments.
+     */
+    private ReadPosition readSegments(ReadPosition start, EventColumns into) throws IOException {
+        long day = start.day;
+        long offset = start.offset;
+        long lastEventOffset = start.lastEventOffset;
+        int lastEventChecksum = start.lastEventChecksum;
+        long previousTimestamp = start.previousTimestamp;
+        int previousPercentage = start.previousPercentage;
+
+        for (long segmentDay : getSegmentDays()) {
+            if (segmentDay < start.day) {
+                continue;
+            }
+
+            File segment = getSegmentFile(segmentDay);
+            if (segment.length() < MappedHistoryEvents.HEADER_SIZE) {
+                Timber.w("Skipping history segment without header: %s", segment.getAbsolutePath());
+                continue;
+            }
+
+            long startOffset = MappedHistoryEvents.HEADER_SIZE;
+            if (segmentDay == start.day) {
+                startOffset = start.offset;
+            } else {
+                lastEventOffset = -1;
+            }
+
+            MappedHistoryEvents mapped = map(segment);
+            MappedHistoryEvents.EventIterator iterator = mapped.iterator(startOffset);
+            if (segmentDay == start.day) {
+                iterator.setPrevious(start.previousTimestamp, start.previousPercentage);
+            }
+            while (iterator.hasNext()) {
+                lastEventOffset = iterator.getNextOffset();
+                into.add(iterator.nextRecord());
+            }
+
+            day = segmentDay;
+            offset = iterator.getNextOffset();
+            previousTimestamp = iterator.getPreviousTimestamp();
+            previousPercentage = iterator.getPreviousPercentage();
+            if (lastEventOffset >= 0) {
+                lastEventChecksum = mapped.checksum(lastEventOffset, offset);
+            }
+        }
+
+        return new ReadPosition(start.oldestDay, day, offset, lastEventOffset, lastEventChecksum,
+                previousTimestamp, previousPercentage);
+    }
+
+    /**
+     * Check all events in all segments, including their checksums.
+     * <p>
+     * This reads everything, so it's a maintenance operation rather than something to do on
+     * every read.
+     *
+     * @return The number of damaged events and torn writes found
+     */
+    @Override
+    public int verify() throws IOException {
+        int damaged = 0;
+        for (File segment : getSegmentFiles()) {
+            if (segment.length() < MappedHistoryEvents.HEADER_SIZE) {
+                Timber.w("History segment without header: %s", segment.getAbsolutePath());
+                damaged++;
+                continue;
+            }
+
+            MappedHistoryEvents.EventIterator iterator =
+                    map(segment).iterator(MappedHistoryEvents.HEADER_SIZE, true);
+            int count = 0;
+            while (iterator.hasNext()) {
+                iterator.nextRecord();
+                count++;
+            }
+            damaged += iterator.getDamagedCount();
+            if (iterator.getNextOffset() < segment.length()) {
+                damaged++;
+            }
+
+            Timber.v("Verified %d events, %d damaged: %s",
+                    count, iterator.getDamagedCount(), segment.getAbsolutePath());
+        }
+        return damaged;
+    }
+
+    /**
+     * @return The first HistoryEvent, or null if no events could be read.
+     */
+    @Override
+    @Nullable
+    public HistoryEvent readFirstEvent() throws IOException {
+        for (File segment : getSegmentFiles()) {
+            if (segment.length() <= MappedHistoryEvents.HEADER_SIZE) {
+                continue;
+            }
+
+            Iterator<HistoryEvent> iterator = map(segment).iterator();
+            if (iterator.hasNext()) {
+                return iterator.next();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Read all events from a single file history, as written by older versions of this app. Both
+     * the original text format and the single file binary format are supported.
+     */
+    static List<HistoryEvent> readLegacyFile(File legacyFile) throws IOException {
+        int magic = 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(legacyFile));
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            // Too short to be binary, treat as text
+        } finally {
+            in.close();
+        }
+
+        List<HistoryEvent> events = new ArrayList<>();
+        if (magic == FILE_MAGIC) {
+            for (HistoryEvent event : MappedHistoryEvents.map(legacyFile)) {
+                events.add(event);
+            }
+        } else {
+            BufferedReader reader = new BufferedReader(new FileReader(legacyFile));
+            try {
+                String line;
+                int lineNumber = 1;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        events.add(HistoryEvent.deserializeFromString(line));
+                    } catch (ParseException e) {
+                        // Log this but keep going and hope we get the gist of it
+                        Timber.w(e, "Reading legacy storage file failed at line %d: %s", lineNumber, legacyFile.getAbsolutePath());
+                    }
+                    lineNumber++;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Move events from a single file history, as written by older versions of this app, into
+     * segments in directory.
+     * <p>
+     * Segments are written to a temporary directory that is renamed into place when done, so an
+     * interrupted import will be redone from scratch.
+     */
+    static void importLegacyFile(File legacyFile, File directory) throws IOException {
+        if (directory.exists()) {
+            // Left behind by an import that was interrupted after renaming the directory
+            Timber.w("Deleting already imported history file: %s", legacyFile.getAbsolutePath());
+            deleteFile(legacyFile);
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        long legacySize = legacyFile.length();
+
+        File importDirectory = new File(directory.getPath() + ".importing");
+        String[] leftovers = importDirectory.list();
+        if (leftovers != null) {
+            for (String leftover : leftovers) {
+                deleteFile(new File(importDirectory, leftover));
+            }
+        }
+        HistorySegments importer = new HistorySegments(importDirectory);
+
+        List<HistoryEvent> events = readLegacyFile(legacyFile);
+
+        try {
+            importer.append(events);
+        } finally {
+            importer.close();
+        }
+
+        if (!importDirectory.isDirectory() && !importDirectory.mkdirs()) {
+            throw new IOException("Creating history directory failed: " + importDirectory.getAbsolutePath());
+        }
+        if (!importDirectory.renameTo(directory)) {
+            throw new IOException("Renaming " + importDirectory.getAbsolutePath()
+                    + " to " + directory.getAbsolutePath()
+                    + " failed while importing history");
+        }
+        deleteFile(legacyFile);
+
+        Timber.i("Imported %d events into %d segments in %dms, %d bytes -> %d bytes: %s",
+                events.size(),
+                importer.getSegmentCount(),
+                System.currentTimeMillis() - t0,
+                legacySize,
+                importer.getSize(),
+                legacyFile.getAbsolutePath());
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Deleting file failed: " + file.getAbsolutePath());
+        }
+    }
+}
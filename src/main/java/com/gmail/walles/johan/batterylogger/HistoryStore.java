@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumSet;
+
+/**
+ * Where {@link History} keeps its events.
+ * <p>
+ * Retention works in segments of one UTC day each, identified by their day number (days since
+ * the epoch). Events are assumed to be added in timestamp order.
+ */
+interface HistoryStore extends Closeable {
+    /**
+     * Write a batch of events to storage.
+     */
+    void append(Collection<HistoryEvent> events) throws IOException;
+
+    /**
+     * A cursor over the events with timestamps from fromMs up to and including toMs.
+     */
+    HistoryCursor cursor(long fromMs, long toMs) throws IOException;
+
+    /**
+     * Like {@link #cursor(long, long)}, but only for events of the given types.
+     */
+    HistoryCursor cursor(long fromMs, long toMs, EnumSet<HistoryEvent.Type> types)
+            throws IOException;
+
+    /**
+     * A cursor over the events with timestamps at or after fromMs, newest first.
+     */
+    HistoryCursor reverseCursor(long fromMs) throws IOException;
+
+    /**
+     * @return The first HistoryEvent, or null if no events could be read.
+     */
+    @Nullable
+    HistoryEvent readFirstEvent() throws IOException;
+
+    boolean isEmpty() throws IOException;
+
+    /**
+     * Forget anything cached about storage, so that changes made through other instances will be
+     * seen.
+     */
+    void rescan();
+
+    /**
+     * Check all of storage for damage.
+     *
+     * @return The number of problems found
+     */
+    int verify() throws IOException;
+
+    /**
+     * Size of storage in bytes.
+     */
+    long getSize() throws IOException;
+
+    int getSegmentCount() throws IOException;
+
+    /**
+     * Day number of the oldest segment, or null if there are no segments.
+     */
+    @Nullable
+    Long getOldestDay() throws IOException;
+
+    /**
+     * All events in the oldest segment, for saving what's worth saving before dropping it.
+     */
+    Iterable<HistoryEvent> readOldestSegment() throws IOException;
+
+    /**
+     * Delete the oldest segment.
+     *
+     * @return The day number of the deleted segment
+     */
+    long dropOldestSegment() throws IOException;
+}
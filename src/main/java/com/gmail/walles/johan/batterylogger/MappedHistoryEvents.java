@@ -0,0 +1,391 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Events from a memory mapped binary history file, decoded one by one while iterating.
+ */
+class MappedHistoryEvents implements Iterable<HistoryEvent> {
+    static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final int formatVersion;
+    private final ByteBuffer events;
+
+    private MappedHistoryEvents(File file, int formatVersion, ByteBuffer events) {
+        this.file = file;
+        this.formatVersion = formatVersion;
+        this.events = events;
+    }
+
+    /**
+     * Map a binary history file into memory. Nothing is decoded until somebody iterates over the
+     * result.
+     */
+    static MappedHistoryEvents map(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        ByteBuffer mapped;
+        try {
+            FileChannel channel = inputStream.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the channel has been closed
+            inputStream.close();
+        }
+
+        if (mapped.remaining() < HEADER_SIZE) {
+            throw new IOException("History file too short for a header: " + file.getAbsolutePath());
+        }
+        int magic = mapped.getInt();
+        if (magic != HistorySegments.FILE_MAGIC) {
+            throw new IOException(String.format("Bad magic 0x%08x in history file %s",
+                    magic, file.getAbsolutePath()));
+        }
+        int version = mapped.getInt();
+        if (version < 1 || version > HistorySegments.FILE_FORMAT_VERSION) {
+            throw new IOException("Unsupported history file format version " + version
+                    + ": " + file.getAbsolutePath());
+        }
+
+        return new MappedHistoryEvents(file, version, mapped.slice());
+    }
+
+    int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Size of the mapped file in bytes, including the header.
+     */
+    long getFileSize() {
+        return HEADER_SIZE + events.capacity();
+    }
+
+    boolean isEmpty() {
+        return events.capacity() == 0;
+    }
+
+    @Override
+    public EventIterator iterator() {
+        return iterator(HEADER_SIZE);
+    }
+
+    /**
+     * CRC32 of the bytes between two file offsets.
+     */
+    int checksum(long fromOffset, long toOffset) {
+        if (fromOffset < HEADER_SIZE || toOffset > getFileSize() || fromOffset > toOffset) {
+            throw new IllegalArgumentException("Range " + fromOffset + "-" + toOffset
+                    + " outside of events in " + file.getAbsolutePath()
+                    + ", size " + getFileSize());
+        }
+
+        int start = (int)(fromOffset - HEADER_SIZE);
+        byte[] bytes = new byte[(int)(toOffset - fromOffset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = events.get(start + i);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Iterate over events starting at a file offset where an event starts.
+     */
+    EventIterator iterator(long fileOffset) {
+        return iterator(fileOffset, false);
+    }
+
+    /**
+     * Iterate over events starting at a file offset where an event starts.
+     * <p>
+     * From format version 3, the event at fileOffset must be a keyframe unless {@link
+     * EventIterator#setPrevious(long, int)} is called before iterating.
+     *
+     * @param verifyChecksums If true, events with bad checksums are skipped. Only supported by
+     *                        format version 2 and later, for earlier versions this does nothing.
+     */
+    EventIterator iterator(long fileOffset, boolean verifyChecksums) {
+        if (fileOffset < HEADER_SIZE || fileOffset > getFileSize()) {
+            throw new IllegalArgumentException("Offset " + fileOffset + " outside of events in "
+                    + file.getAbsolutePath() + ", size " + getFileSize());
+        }
+
+        ByteBuffer buffer = events.duplicate();
+        buffer.position((int)(fileOffset - HEADER_SIZE));
+        return new EventIterator(buffer, verifyChecksums);
+    }
+
+    /**
+     * Iterates over events either as {@link HistoryEvent}s, or without allocating through {@link
+     * #nextRecord()}.
+     */
+    class EventIterator implements Iterator<HistoryEvent> {
+        private final ByteBuffer buffer;
+
+        /**
+         * A view of the current frame, so that a damaged event can't make us read past it.
+         */
+        private final ByteBuffer frame;
+
+        private final boolean verifyChecksums;
+
+        /**
+         * The next event, valid if {@link #haveNext} is set.
+         */
+        private final EventRecord next = new EventRecord();
+        private boolean haveNext;
+        private long nextOffset;
+        private int eventCount = 0;
+        private int damagedCount = 0;
+        private boolean done = false;
+
+        private final CRC32 crc = new CRC32();
+        private byte[] checksummed = new byte[0];
+
+        private final CompactEventCodec codec = new CompactEventCodec();
+
+        /**
+         * Set after skipping a damaged compact event, since the deltas in the following events
+         * are unusable until the next keyframe.
+         */
+        private boolean needKeyframe = false;
+
+        private EventIterator(ByteBuffer buffer, boolean verifyChecksums) {
+            this.buffer = buffer;
+            this.frame = buffer.duplicate();
+            this.verifyChecksums = verifyChecksums;
+        }
+
+        /**
+         * How many damaged events have been skipped so far.
+         */
+        int getDamagedCount() {
+            return damagedCount;
+        }
+
+        /**
+         * Set what the first event's deltas are relative to, see {@link
+         * CompactEventCodec#setPrevious(long, int)}.
+         */
+        void setPrevious(long timestamp, int percentage) {
+            codec.setPrevious(timestamp, percentage);
+        }
+
+        long getPreviousTimestamp() {
+            return codec.getPreviousTimestamp();
+        }
+
+        int getPreviousPercentage() {
+            return codec.getPreviousPercentage();
+        }
+
+        /**
+         * Whether the most recently returned event can be decoded without knowing about earlier
+         * events.
+         */
+        boolean isKeyframe() {
+            return formatVersion < HistorySegments.FORMAT_COMPACT || codec.isKeyframe();
+        }
+
+        /**
+         * File offset of the event that will be returned by {@link #next()}. Only valid after
+         * {@link #hasNext()} has been called.
+         * <p>
+         * Once {@link #hasNext()} has returned false, this is where the last complete event ends.
+         */
+        long getNextOffset() {
+            return nextOffset;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (haveNext) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
+
+            nextOffset = HEADER_SIZE + buffer.position();
+            try {
+                if (formatVersion == HistorySegments.FORMAT_PLAIN) {
+                    haveNext = HistoryEvent.readInto(buffer, next);
+                } else {
+                    haveNext = readFrame();
+                }
+            } catch (BufferUnderflowException e) {
+                // Either we're racing a write in progress, or the last write was torn and will be
+                // truncated by the next append. Neither is a problem for readers.
+                Timber.d("Ignoring truncated last event after %d events: %s",
+                        eventCount, file.getAbsolutePath());
+                buffer.position(buffer.limit());
+            } catch (ParseException e) {
+                // Binary events can't be resynchronized, keep what we have
+                Timber.w(e, "Reading storage file failed after %d events: %s",
+                        eventCount, file.getAbsolutePath());
+                buffer.position(buffer.limit());
+            }
+
+            done = !haveNext;
+            return haveNext;
+        }
+
+        /**
+         * Read the next event from a frame into {@link #next}, skipping damaged frames.
+         *
+         * @return false if there are no more frames
+         * @throws BufferUnderflowException if the last frame doesn't fit in the file
+         */
+        private boolean readFrame() throws ParseException {
+            int checksumSize = EventFrames.getChecksumSize(formatVersion);
+            while (buffer.hasRemaining()) {
+                long length = Varints.readUnsigned(buffer);
+                if (length < 0) {
+                    // Only damage gives us lengths this large
+                    Timber.w("Skipping event with bad length at offset %d: %s",
+                            nextOffset, file.getAbsolutePath());
+                    skipDamaged();
+                    continue;
+                }
+                int start = buffer.position();
+                if (length > buffer.remaining() - checksumSize) {
+                    throw new BufferUnderflowException();
+                }
+                int end = start + (int)length;
+                buffer.position(end + checksumSize);
+
+                if (verifyChecksums && !isChecksumValid(start, end)) {
+                    Timber.w("Skipping event with bad checksum at offset %d: %s",
+                            nextOffset, file.getAbsolutePath());
+                    skipDamaged();
+                    continue;
+                }
+
+                frame.limit(end);
+                frame.position(start);
+                try {
+                    if (decode(frame)) {
+                        return true;
+                    }
+                } catch (BufferUnderflowException | ParseException e) {
+                    Timber.w(e, "Skipping undecodable event at offset %d: %s",
+                            nextOffset, file.getAbsolutePath());
+                    skipDamaged();
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Decode the contents of a frame into {@link #next}.
+         *
+         * @return false if the event should be skipped
+         */
+        private boolean decode(ByteBuffer encoded) throws ParseException {
+            if (formatVersion < HistorySegments.FORMAT_COMPACT) {
+                if (!HistoryEvent.readInto(encoded, next)) {
+                    Timber.w("Skipping empty event at offset %d: %s",
+                            nextOffset, file.getAbsolutePath());
+                    skipDamaged();
+                    return false;
+                }
+                return true;
+            }
+
+            if (!codec.decodeInto(encoded, next)) {
+                Timber.w("Skipping empty event at offset %d: %s",
+                        nextOffset, file.getAbsolutePath());
+                skipDamaged();
+                return false;
+            }
+            if (needKeyframe && !codec.isKeyframe()) {
+                // Relative to a damaged event
+                damagedCount++;
+                nextOffset = HEADER_SIZE + buffer.position();
+                return false;
+            }
+            needKeyframe = false;
+            return true;
+        }
+
+        private void skipDamaged() {
+            damagedCount++;
+            needKeyframe = true;
+            nextOffset = HEADER_SIZE + buffer.position();
+        }
+
+        private boolean isChecksumValid(int start, int end) {
+            int length = end - start;
+            if (checksummed.length < length) {
+                checksummed = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                checksummed[i] = buffer.get(start + i);
+            }
+
+            crc.reset();
+            crc.update(checksummed, 0, length);
+            int checksum = (int)crc.getValue();
+            if (EventFrames.getChecksumSize(formatVersion) == 2) {
+                return buffer.getShort(end) == (short)checksum;
+            }
+            return buffer.getInt(end) == checksum;
+        }
+
+        @Override
+        public HistoryEvent next() {
+            return nextRecord().toHistoryEvent();
+        }
+
+        /**
+         * Like {@link #next()}, but without allocating anything for most events.
+         *
+         * @return A record that is reused by the next call
+         */
+        EventRecord nextRecord() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            haveNext = false;
+            eventCount++;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("History events are read only");
+        }
+    }
+}
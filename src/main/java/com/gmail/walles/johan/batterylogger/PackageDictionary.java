@@ -0,0 +1,344 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * The packages and version strings that package events refer to by id.
+ * <p>
+ * Ids are indices into lists that only ever grow, so an id means the same thing forever. Each
+ * version string is kept once however many packages and events use it. Apps may change their
+ * names, so each name a package has had gets an id of its own, and old events keep the name the
+ * app had back then.
+ * <p>
+ * The dictionary is stored as a small text file next to the history segments, and rewritten as
+ * a whole by {@link #flush()} when something has been added. Add things only while holding the
+ * history's {@link WriterLock}, and flush before releasing it, so that writers in other
+ * processes don't hand out the same ids for something else. {@link
+ * History#addEventsSince(SystemState, SystemState)} does this.
+ */
+public class PackageDictionary {
+    static final String FILE_NAME = "packages.txt";
+
+    /**
+     * Returned by {@link #findPackageId(String)} for packages we have never seen.
+     */
+    public static final int NOT_FOUND = -1;
+
+    private static final String PACKAGE_PREFIX = "P ";
+    private static final String VERSION_PREFIX = "V ";
+
+    @Nullable
+    private final File file;
+
+    private final List<String> dottedNames = new ArrayList<>();
+    private final List<String> displayNames = new ArrayList<>();
+
+    /**
+     * Id of each (dotted name, display name) pair.
+     */
+    private final Map<String, Integer> packageIds = new HashMap<>();
+
+    /**
+     * Id of the most recently added display name for each dotted name.
+     */
+    private final Map<String, Integer> latestPackageIds = new HashMap<>();
+
+    private final List<String> versionNames = new ArrayList<>();
+    private final Map<String, Integer> versionIds = new HashMap<>();
+
+    /**
+     * Set while there are changes that haven't been written to our file.
+     */
+    private boolean dirty = false;
+
+    /**
+     * What our file looked like when we last read or wrote it, for noticing changes made by
+     * other instances.
+     */
+    private long fileLastModified = -1;
+    private long fileLength = -1;
+
+    /**
+     * A dictionary that only lives in memory.
+     */
+    PackageDictionary() {
+        this.file = null;
+    }
+
+    private PackageDictionary(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param file Normally {@link #FILE_NAME} in the history storage directory. A missing file
+     *             is an empty dictionary.
+     */
+    static PackageDictionary load(File file) throws IOException {
+        PackageDictionary returnMe = new PackageDictionary(file);
+        returnMe.read();
+        return returnMe;
+    }
+
+    private boolean isFileChanged() {
+        //noinspection ConstantConditions
+        if (!file.exists()) {
+            return fileLength != -1;
+        }
+        return file.lastModified() != fileLastModified || file.length() != fileLength;
+    }
+
+    /**
+     * Re-read our file if some other instance has changed it since we last read or wrote it.
+     * <p>
+     * Anything we added but failed to flush is dropped in that case, since the other instance may
+     * have handed out the same ids.
+     */
+    synchronized void refresh() throws IOException {
+        if (file == null || !isFileChanged()) {
+            return;
+        }
+        if (dirty) {
+            Timber.w("Dropping unflushed packages, %s was changed by another writer", file);
+        }
+        read();
+    }
+
+    private void read() throws IOException {
+        dirty = false;
+        dottedNames.clear();
+        displayNames.clear();
+        packageIds.clear();
+        latestPackageIds.clear();
+        versionNames.clear();
+        versionIds.clear();
+
+        //noinspection ConstantConditions
+        if (!file.exists()) {
+            fileLastModified = -1;
+            fileLength = -1;
+            return;
+        }
+
+        fileLastModified = file.lastModified();
+        fileLength = file.length();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PACKAGE_PREFIX)) {
+                    int space = line.indexOf(' ', PACKAGE_PREFIX.length());
+                    if (space == -1) {
+                        throw new IOException("Package without display name in "
+                                + file.getAbsolutePath() + ": <" + line + ">");
+                    }
+                    String dottedName = URLDecoder.decode(
+                            line.substring(PACKAGE_PREFIX.length(), space), "UTF-8");
+                    String displayName = URLDecoder.decode(line.substring(space + 1), "UTF-8");
+                    addPackage(dottedName, displayName);
+                } else if (line.startsWith(VERSION_PREFIX)) {
+                    addVersion(URLDecoder.decode(
+                            line.substring(VERSION_PREFIX.length()), "UTF-8"));
+                } else {
+                    throw new IOException("Unexpected line in "
+                            + file.getAbsolutePath() + ": <" + line + ">");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write additions to our file. Do this before storing any events referring to them.
+     *
+     * @throws IOException if another instance has changed the file since we last read it; our
+     * additions may have the same ids as theirs then
+     */
+    synchronized void flush() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        if (isFileChanged()) {
+            throw new IOException("Not overwriting packages added by another writer to "
+                    + file.getAbsolutePath());
+        }
+
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(
+                    "Creating history directory failed: " + directory.getAbsolutePath());
+        }
+
+        // Write to a temporary file and rename it into place, so we never lose all of it
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = new FileWriter(tempFile);
+        try {
+            for (int i = 0; i < dottedNames.size(); i++) {
+                writer.append(PACKAGE_PREFIX)
+                        .append(URLEncoder.encode(dottedNames.get(i), "UTF-8"))
+                        .append(' ')
+                        .append(URLEncoder.encode(displayNames.get(i), "UTF-8"))
+                        .append('\n');
+            }
+            for (String versionName : versionNames) {
+                writer.append(VERSION_PREFIX)
+                        .append(URLEncoder.encode(versionName, "UTF-8"))
+                        .append('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Renaming " + tempFile.getAbsolutePath()
+                    + " to " + file.getAbsolutePath() + " failed");
+        }
+
+        dirty = false;
+        fileLastModified = file.lastModified();
+        fileLength = file.length();
+    }
+
+    /**
+     * Package names can't contain newlines, so this is unique for each pair.
+     */
+    private static String getPackageKey(String dottedName, String displayName) {
+        return dottedName + '\n' + displayName;
+    }
+
+    private int addPackage(String dottedName, String displayName) {
+        String key = getPackageKey(dottedName, displayName);
+        Integer id = packageIds.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        id = dottedNames.size();
+        dottedNames.add(dottedName);
+        displayNames.add(displayName);
+        packageIds.put(key, id);
+        latestPackageIds.put(dottedName, id);
+        return id;
+    }
+
+    private int addVersion(String versionName) {
+        Integer id = versionIds.get(versionName);
+        if (id != null) {
+            return id;
+        }
+
+        id = versionNames.size();
+        versionNames.add(versionName);
+        versionIds.put(versionName, id);
+        return id;
+    }
+
+    /**
+     * Id of an app's package under its current display name, adding it to the dictionary if
+     * needed.
+     */
+    public synchronized int getPackageId(InstalledApp app) {
+        Integer id = packageIds.get(getPackageKey(app.dottedName, app.displayName));
+        if (id != null) {
+            return id;
+        }
+
+        dirty = true;
+        return addPackage(app.dottedName, app.displayName);
+    }
+
+    /**
+     * Id of a version string, adding it to the dictionary if needed.
+     */
+    public synchronized int getVersionId(String versionName) {
+        Integer id = versionIds.get(versionName);
+        if (id != null) {
+            return id;
+        }
+
+        dirty = true;
+        return addVersion(versionName);
+    }
+
+    /**
+     * Events about a package may refer to any of its names, so to find all of them compare
+     * {@link #getDottedName(int)} instead.
+     *
+     * @return The id of the package under the display name it got most recently, or {@link
+     * #NOT_FOUND} if we have never seen it
+     */
+    public synchronized int findPackageId(String dottedName) {
+        Integer id = latestPackageIds.get(dottedName);
+        return id != null ? id : NOT_FOUND;
+    }
+
+    public synchronized String getDottedName(int packageId) {
+        if (packageId < 0 || packageId >= dottedNames.size()) {
+            return "package #" + packageId;
+        }
+        return dottedNames.get(packageId);
+    }
+
+    public synchronized String getDisplayName(int packageId) {
+        if (packageId < 0 || packageId >= displayNames.size()) {
+            return "package #" + packageId;
+        }
+        return displayNames.get(packageId);
+    }
+
+    public synchronized String getVersionName(int versionId) {
+        if (versionId < 0 || versionId >= versionNames.size()) {
+            return "version #" + versionId;
+        }
+        return versionNames.get(versionId);
+    }
+
+    /**
+     * A human readable description of a package event.
+     */
+    String describe(HistoryCursor event) {
+        String displayName = getDisplayName(event.getPackageId());
+        String versionName = getVersionName(event.getVersionId());
+        switch (event.getType()) {
+            case PACKAGE_INSTALLED:
+                return displayName + " " + versionName + " installed";
+            case PACKAGE_UPGRADED:
+                return displayName + " upgraded from "
+                        + getVersionName(event.getPreviousVersionId()) + " to " + versionName;
+            case PACKAGE_REMOVED:
+                return displayName + " " + versionName + " uninstalled";
+            default:
+                throw new IllegalArgumentException("Not a package event: " + event.getType());
+        }
+    }
+}
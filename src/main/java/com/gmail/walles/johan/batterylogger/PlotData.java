@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import com.gmail.walles.johan.batterylogger.plot.DrainSample;
+import com.gmail.walles.johan.batterylogger.plot.PlotEvent;
+
+import java.util.List;
+
+/**
+ * The series shown in the battery plot, see {@link History#getPlotData(long, long)}.
+ */
+public class PlotData {
+    /**
+     * Same as {@link History#getBatteryDrain()}.
+     */
+    public final List<DrainSample> drainDots;
+
+    /**
+     * Same as {@link History#getDrainLines()}.
+     */
+    public final List<DrainSample> drainLines;
+
+    /**
+     * Same as {@link History#getEvents()}.
+     */
+    public final List<PlotEvent> events;
+
+    private final boolean empty;
+
+    PlotData(List<DrainSample> drainDots, List<DrainSample> drainLines, List<PlotEvent> events,
+             boolean empty)
+    {
+        this.drainDots = drainDots;
+        this.drainLines = drainLines;
+        this.events = events;
+        this.empty = empty;
+    }
+
+    /**
+     * True if there were no events in the requested range, not counting archived ones.
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * Sparse index of a history segment, mapping the timestamp of every {@link #INTERVAL}th event to
+ * the file offset of that event.
+ * <p>
+ * Only {@link MappedHistoryEvents.EventIterator#isKeyframe() keyframes} are indexed, so that
+ * decoding can start at any indexed event.
+ * <p>
+ * The index is stored in a file next to its segment. Entries missing from the index file, or the
+ * whole index file, are recreated from the segment when loading.
+ */
+class SegmentIndex {
+    static final int INTERVAL = 64;
+
+    /**
+     * "BIDX" in ASCII.
+     */
+    private static final int INDEX_MAGIC = 0x42494458;
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File segment;
+    private final File indexFile;
+
+    private long[] timestamps = new long[16];
+    private long[] offsets = new long[16];
+    private int size;
+
+    /**
+     * How many entries are in the index file. Negative if the index file needs to be rewritten.
+     */
+    private int persistedSize;
+
+    /**
+     * Number of events in the segment.
+     */
+    private int eventCount;
+
+    /**
+     * Number of events since the last index entry, including the indexed event.
+     */
+    private int eventsSinceEntry;
+
+    /**
+     * Where the last complete event in the segment ends, as found by {@link #catchUp()}.
+     */
+    private long validLength;
+
+    private SegmentIndex(File segment) {
+        this.segment = segment;
+        this.indexFile = getIndexFile(segment);
+    }
+
+    static File getIndexFile(File segment) {
+        return new File(segment.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Load the index for a segment, bringing it up to date with the segment if needed.
+     */
+    static SegmentIndex load(File segment) throws IOException {
+        SegmentIndex index = new SegmentIndex(segment);
+        index.readIndexFile();
+        index.catchUp();
+        return index;
+    }
+
+    private void readIndexFile() throws IOException {
+        if (!indexFile.exists()) {
+            persistedSize = -1;
+            return;
+        }
+
+        long segmentSize = segment.length();
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INTERVAL) {
+                Timber.w("Discarding incompatible history index: %s", indexFile.getAbsolutePath());
+                persistedSize = -1;
+                return;
+            }
+
+            while (true) {
+                long timestamp = in.readLong();
+                long offset = in.readLong();
+                if (offset >= segmentSize || (size > 0 && offset <= offsets[size - 1])) {
+                    Timber.w("Discarding history index entries from #%d on: %s",
+                            size, indexFile.getAbsolutePath());
+                    persistedSize = -1;
+                    return;
+                }
+                addEntry(timestamp, offset);
+            }
+        } catch (EOFException e) {
+            // A partially written last entry will be rewritten on the next flush
+            persistedSize = size;
+            if (indexFile.length() != 8 + size * 16L) {
+                persistedSize = -1;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Index events that have been added to the segment since the last indexed event.
+     * <p>
+     * This also validates the checksums of those events, and finds out whether the segment ends
+     * with a torn write.
+     */
+    private void catchUp() throws IOException {
+        validLength = segment.length();
+        if (segment.length() <= MappedHistoryEvents.HEADER_SIZE) {
+            eventCount = 0;
+            return;
+        }
+
+        long startOffset = MappedHistoryEvents.HEADER_SIZE;
+        eventCount = 0;
+        eventsSinceEntry = 0;
+        if (size > 0) {
+            startOffset = offsets[size - 1];
+            eventCount = (size - 1) * INTERVAL;
+        }
+
+        MappedHistoryEvents.EventIterator iterator =
+                MappedHistoryEvents.map(segment).iterator(startOffset, true);
+        int caughtUp = 0;
+        while (iterator.hasNext()) {
+            long offset = iterator.getNextOffset();
+            HistoryEvent event = iterator.next();
+            if (offset == startOffset && size > 0) {
+                // Already indexed
+                eventCount++;
+                eventsSinceEntry = 1;
+                continue;
+            }
+
+            add(event.getTimestamp(), offset, iterator.isKeyframe());
+            caughtUp++;
+        }
+
+        validLength = iterator.getNextOffset();
+
+        if (caughtUp > INTERVAL) {
+            Timber.i("Indexed %d events in %s", caughtUp, segment.getAbsolutePath());
+        }
+    }
+
+    private void addEntry(long timestamp, long offset) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        timestamps[size] = timestamp;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * Whether the next event added should be a keyframe, so that it can be indexed.
+     */
+    boolean wantsEntry() {
+        return size == 0 || eventsSinceEntry >= INTERVAL;
+    }
+
+    /**
+     * Tell the index about an event that has been appended to the segment.
+     */
+    void add(long timestampMs, long offset, boolean keyframe) {
+        if (keyframe && wantsEntry()) {
+            addEntry(timestampMs, offset);
+            eventsSinceEntry = 0;
+        }
+        eventsSinceEntry++;
+        eventCount++;
+    }
+
+    int getEntryCount() {
+        return size;
+    }
+
+    /**
+     * File offset of an indexed event.
+     */
+    long getEntryOffset(int entry) {
+        return offsets[entry];
+    }
+
+    int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Where the last complete event in the segment ended when this index was loaded. If the
+     * segment is longer than this, it ends with a torn write.
+     */
+    long getValidLength() {
+        return validLength;
+    }
+
+    /**
+     * Tell the index that events up to length have been written to the segment.
+     */
+    void setValidLength(long length) {
+        validLength = length;
+    }
+
+    /**
+     * Write new entries to the index file.
+     */
+    void flush() throws IOException {
+        if (persistedSize == size) {
+            return;
+        }
+
+        boolean rewrite = persistedSize < 0;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile, !rewrite)));
+        try {
+            if (rewrite) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INTERVAL);
+                persistedSize = 0;
+            }
+            for (int i = persistedSize; i < size; i++) {
+                out.writeLong(timestamps[i]);
+                out.writeLong(offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        persistedSize = size;
+    }
+
+    /**
+     * Find where to start reading to get all events at or after a point in time.
+     * <p>
+     * This assumes events in the segment are sorted by timestamp.
+     *
+     * @return A file offset in the segment where an event starts
+     */
+    long findOffset(long fromMs) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < fromMs) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (found == -1) {
+            return MappedHistoryEvents.HEADER_SIZE;
+        }
+        return offsets[found];
+    }
+}
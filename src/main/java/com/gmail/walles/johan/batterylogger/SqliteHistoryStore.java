@@ -0,0 +1,512 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * History events in an SQLite table, indexed on timestamp and type.
+ * <p>
+ * Segments are UTC days, and dropping the oldest segment drops all events from the oldest day
+ * that has any. Events with the same timestamp are returned in the order they were added.
+ */
+class SqliteHistoryStore implements HistoryStore {
+    static final String FILE_NAME = "events.db";
+
+    /**
+     * How many events cursors fetch per query. Cursors don't keep any database cursor open between
+     * pages, so abandoning one half way is fine.
+     */
+    private static final int PAGE_SIZE = 256;
+
+    private static final int SCHEMA_VERSION = 1;
+
+    private static final String COLUMNS =
+            "rowid, timestamp, type, payload, message, version, previous_version";
+
+    private static final EnumSet<HistoryEvent.Type> ALL_TYPES =
+            EnumSet.allOf(HistoryEvent.Type.class);
+
+    private final File file;
+
+    @Nullable
+    private SQLiteDatabase database;
+
+    /**
+     * @param file Normally {@link #FILE_NAME} in the history storage directory
+     */
+    SqliteHistoryStore(File file) {
+        this.file = file;
+    }
+
+    private SQLiteDatabase getDatabase() throws IOException {
+        if (database != null) {
+            return database;
+        }
+
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(
+                    "Creating history directory failed: " + directory.getAbsolutePath());
+        }
+
+        try {
+            SQLiteDatabase opened = SQLiteDatabase.openOrCreateDatabase(file, null);
+            opened.execSQL("CREATE TABLE IF NOT EXISTS events ("
+                    + "timestamp INTEGER NOT NULL, "
+                    + "type INTEGER NOT NULL, "
+                    + "payload INTEGER NOT NULL, "
+                    + "message TEXT, "
+                    + "version INTEGER, "
+                    + "previous_version INTEGER)");
+            opened.execSQL(
+                    "CREATE INDEX IF NOT EXISTS events_timestamp_type ON events (timestamp, type)");
+            if (opened.getVersion() == 0) {
+                // Just created
+                opened.setVersion(SCHEMA_VERSION);
+            }
+            database = opened;
+        } catch (SQLException e) {
+            throw new IOException("Opening history database failed: " + file.getAbsolutePath(), e);
+        }
+        return database;
+    }
+
+    @Override
+    public void append(Collection<HistoryEvent> events) throws IOException {
+        SQLiteDatabase db = getDatabase();
+        try {
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO events"
+                            + " (timestamp, type, payload, message, version, previous_version)"
+                            + " VALUES (?, ?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (HistoryEvent event : events) {
+                    insert.bindLong(1, event.getTimestamp());
+                    insert.bindLong(2, event.getType().tag);
+                    insert.bindLong(3, getPayload(event));
+                    if (event.getType() == HistoryEvent.Type.INFO) {
+                        insert.bindString(4, event.getMessage());
+                    } else {
+                        insert.bindNull(4);
+                    }
+                    if (event.getType().isPackageChange()) {
+                        insert.bindLong(5, event.getVersionId());
+                    } else {
+                        insert.bindNull(5);
+                    }
+                    if (event.getType() == HistoryEvent.Type.PACKAGE_UPGRADED) {
+                        insert.bindLong(6, event.getPreviousVersionId());
+                    } else {
+                        insert.bindNull(6);
+                    }
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Adding events to history database failed", e);
+        }
+    }
+
+    private static int getPayload(HistoryEvent event) {
+        switch (event.getType()) {
+            case BATTERY_LEVEL:
+                return event.getPercentage();
+            case SYSTEM_BOOT:
+                return event.isCharging() ? 1 : 0;
+            case PACKAGE_INSTALLED:
+            case PACKAGE_UPGRADED:
+            case PACKAGE_REMOVED:
+                return event.getPackageId();
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public HistoryCursor cursor(long fromMs, long toMs) throws IOException {
+        return new PagedCursor(getDatabase(), fromMs, toMs, ALL_TYPES, true);
+    }
+
+    @Override
+    public HistoryCursor cursor(long fromMs, long toMs, EnumSet<HistoryEvent.Type> types)
+            throws IOException
+    {
+        return new PagedCursor(getDatabase(), fromMs, toMs, types, true);
+    }
+
+    @Override
+    public HistoryCursor reverseCursor(long fromMs) throws IOException {
+        return new PagedCursor(getDatabase(), fromMs, Long.MAX_VALUE, ALL_TYPES, false);
+    }
+
+    @Override
+    @Nullable
+    public HistoryEvent readFirstEvent() throws IOException {
+        HistoryCursor cursor = cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        if (!cursor.moveToNext()) {
+            return null;
+        }
+        return cursor.toHistoryEvent();
+    }
+
+    @Override
+    public boolean isEmpty() throws IOException {
+        return queryLong("SELECT EXISTS (SELECT 1 FROM events)") == 0;
+    }
+
+    @Override
+    public void rescan() {
+        // The database always knows what's in it
+    }
+
+    @Override
+    public int verify() throws IOException {
+        try {
+            if (getDatabase().isDatabaseIntegrityOk()) {
+                return 0;
+            }
+        } catch (SQLException e) {
+            Timber.w(e, "Checking history database integrity failed: %s", file.getAbsolutePath());
+        }
+        return 1;
+    }
+
+    /**
+     * Bytes of the database in use. Deleted events leave free pages that new events will reuse,
+     * but the file doesn't shrink, so its length would never go down.
+     */
+    @Override
+    public long getSize() throws IOException {
+        return (queryLong("PRAGMA page_count") - queryLong("PRAGMA freelist_count"))
+                * queryLong("PRAGMA page_size");
+    }
+
+    /**
+     * The number of days from the oldest event up to and including the newest one, counting any
+     * days without events in between. Looking up the oldest and newest events only needs the
+     * timestamp index, while counting the days that have events would visit every event.
+     */
+    @Override
+    public int getSegmentCount() throws IOException {
+        Long oldestDay = getOldestDay();
+        if (oldestDay == null) {
+            return 0;
+        }
+
+        long newestDay = HistorySegments.getDay(queryLong("SELECT MAX(timestamp) FROM events"));
+        return (int)(newestDay - oldestDay + 1);
+    }
+
+    @Override
+    @Nullable
+    public Long getOldestDay() throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+
+        // Alone in its query, MIN() is looked up in the timestamp index
+        return HistorySegments.getDay(queryLong("SELECT MIN(timestamp) FROM events"));
+    }
+
+    @Override
+    public Iterable<HistoryEvent> readOldestSegment() throws IOException {
+        Long oldestDay = getOldestDay();
+        if (oldestDay == null) {
+            throw new IllegalStateException("No segments to read");
+        }
+
+        List<HistoryEvent> returnMe = new ArrayList<>();
+        HistoryCursor cursor =
+                cursor(Long.MIN_VALUE, (oldestDay + 1) * HistorySegments.DAY_MS - 1);
+        while (cursor.moveToNext()) {
+            returnMe.add(cursor.toHistoryEvent());
+        }
+        return returnMe;
+    }
+
+    @Override
+    public long dropOldestSegment() throws IOException {
+        Long oldestDay = getOldestDay();
+        if (oldestDay == null) {
+            throw new IllegalStateException("No segments to drop");
+        }
+
+        try {
+            getDatabase().delete("events", "timestamp < ?",
+                    new String[] { Long.toString((oldestDay + 1) * HistorySegments.DAY_MS) });
+        } catch (SQLException e) {
+            throw new IOException("Dropping events from history database failed", e);
+        }
+        return oldestDay;
+    }
+
+    /**
+     * Move events from a single file history, as written by older versions of this app, into the
+     * database.
+     * <p>
+     * Only events older than the ones already in the database are added. So if we're interrupted
+     * after adding the events but before deleting legacyFile, the next import adds nothing.
+     */
+    void importLegacyFile(File legacyFile) throws IOException {
+        long t0 = System.currentTimeMillis();
+
+        long oldestMs = Long.MAX_VALUE;
+        if (!isEmpty()) {
+            oldestMs = queryLong("SELECT MIN(timestamp) FROM events");
+        }
+        List<HistoryEvent> events = new ArrayList<>();
+        for (HistoryEvent event : HistorySegments.readLegacyFile(legacyFile)) {
+            if (event.getTimestamp() < oldestMs) {
+                events.add(event);
+            }
+        }
+        append(events);
+
+        if (!legacyFile.delete() && legacyFile.exists()) {
+            throw new IOException("Deleting file failed: " + legacyFile.getAbsolutePath());
+        }
+        Timber.i("Imported %d events in %dms: %s",
+                events.size(), System.currentTimeMillis() - t0, legacyFile.getAbsolutePath());
+    }
+
+    private long queryLong(String sql) throws IOException {
+        try {
+            return DatabaseUtils.longForQuery(getDatabase(), sql, null);
+        } catch (SQLException e) {
+            throw new IOException("Querying history database failed: " + sql, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (database == null) {
+            return;
+        }
+
+        try {
+            database.close();
+        } finally {
+            database = null;
+        }
+    }
+
+    /**
+     * Fetches one page of events at a time, continuing after the last event of the previous page.
+     */
+    private static class PagedCursor implements HistoryCursor {
+        private final SQLiteDatabase database;
+        private final long fromMs;
+        private final long toMs;
+        private final boolean forwards;
+
+        /**
+         * SQL restricting the type column, empty if we want all types.
+         */
+        private final String typeCondition;
+
+        private EventColumns.Cursor page = new EventColumns(0).cursor();
+
+        /**
+         * Where the last page ended, null before the first page.
+         */
+        @Nullable
+        private long[] lastTimestampAndRowid;
+        private boolean lastPage = false;
+
+        PagedCursor(SQLiteDatabase database, long fromMs, long toMs,
+                EnumSet<HistoryEvent.Type> types, boolean forwards)
+        {
+            this.database = database;
+            this.fromMs = fromMs;
+            this.toMs = toMs;
+            this.forwards = forwards;
+            this.typeCondition = toTypeCondition(types);
+        }
+
+        private static String toTypeCondition(EnumSet<HistoryEvent.Type> types) {
+            if (types.size() == HistoryEvent.Type.values().length) {
+                return "";
+            }
+
+            StringBuilder returnMe = new StringBuilder(" AND type IN (");
+            boolean first = true;
+            for (HistoryEvent.Type type : types) {
+                if (!first) {
+                    returnMe.append(", ");
+                }
+                returnMe.append(type.tag);
+                first = false;
+            }
+            return returnMe.append(')').toString();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            while (!page.moveToNext()) {
+                if (lastPage) {
+                    return false;
+                }
+                readPage();
+            }
+            return true;
+        }
+
+        private void readPage() {
+            String order = forwards ? "ASC" : "DESC";
+            String after = forwards ? ">" : "<";
+            StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM events"
+                    + " WHERE timestamp >= ? AND timestamp <= ?" + typeCondition);
+            List<String> args = new ArrayList<>();
+            args.add(Long.toString(fromMs));
+            args.add(Long.toString(toMs));
+            if (lastTimestampAndRowid != null) {
+                sql.append(" AND (timestamp ").append(after).append(" ?")
+                        .append(" OR (timestamp = ? AND rowid ").append(after).append(" ?))");
+                args.add(Long.toString(lastTimestampAndRowid[0]));
+                args.add(Long.toString(lastTimestampAndRowid[0]));
+                args.add(Long.toString(lastTimestampAndRowid[1]));
+            }
+            sql.append(" ORDER BY timestamp ").append(order).append(", rowid ").append(order)
+                    .append(" LIMIT ").append(PAGE_SIZE);
+
+            EventColumns events = new EventColumns(PAGE_SIZE);
+            int count = 0;
+            try {
+                Cursor rows =
+                        database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+                try {
+                    while (rows.moveToNext()) {
+                        count++;
+                        long rowid = rows.getLong(0);
+                        long timestamp = rows.getLong(1);
+                        lastTimestampAndRowid = new long[] { timestamp, rowid };
+
+                        int versionId = rows.isNull(5) ? HistoryEvent.NO_VERSION : rows.getInt(5);
+                        int previousVersionId =
+                                rows.isNull(6) ? HistoryEvent.NO_VERSION : rows.getInt(6);
+                        HistoryEvent event = toHistoryEvent(timestamp,
+                                rows.getInt(2), rows.getInt(3), rows.getString(4),
+                                versionId, previousVersionId);
+                        if (event != null) {
+                            events.add(event);
+                        }
+                    }
+                } finally {
+                    rows.close();
+                }
+            } catch (SQLException e) {
+                // Same as for the history segments, keep what we have read so far
+                Timber.w(e, "Reading history database failed after %d events on this page: %s",
+                        count, database.getPath());
+                lastPage = true;
+                page = events.cursor();
+                return;
+            }
+
+            lastPage = count < PAGE_SIZE;
+            page = events.cursor();
+        }
+
+        @Nullable
+        private static HistoryEvent toHistoryEvent(long timestamp, int tag, int payload,
+                @Nullable String message, int versionId, int previousVersionId)
+        {
+            HistoryEvent.Type type;
+            try {
+                type = HistoryEvent.Type.fromTag(tag);
+            } catch (ParseException e) {
+                Timber.w(e, "Skipping history database event at %s", new Date(timestamp));
+                return null;
+            }
+
+            EventRecord record = new EventRecord();
+            if (type.isPackageChange()) {
+                record.setPackageChange(timestamp, type, payload, versionId, previousVersionId);
+            } else {
+                record.set(timestamp, type, payload, message);
+            }
+            return record.toHistoryEvent();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return page.getTimestamp();
+        }
+
+        @Override
+        public HistoryEvent.Type getType() {
+            return page.getType();
+        }
+
+        @Override
+        public int getPercentage() {
+            return page.getPercentage();
+        }
+
+        @Override
+        public boolean isCharging() {
+            return page.isCharging();
+        }
+
+        @Override
+        public String getMessage() {
+            return page.getMessage();
+        }
+
+        @Override
+        public int getPackageId() {
+            return page.getPackageId();
+        }
+
+        @Override
+        public int getVersionId() {
+            return page.getVersionId();
+        }
+
+        @Override
+        public int getPreviousVersionId() {
+            return page.getPreviousVersionId();
+        }
+
+        @Override
+        public HistoryEvent toHistoryEvent() {
+            return page.toHistoryEvent();
+        }
+    }
+}
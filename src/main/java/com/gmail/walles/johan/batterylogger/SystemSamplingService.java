@@ -41,6 +41,12 @@ public class SystemSamplingService extends IntentService {
     private static final String SYSTEM_STATE_FILE_NAME = "system-state.txt";
     private long lastSamplingEndTimestamp = 0;
 
+    /**
+     * Kept open for as long as this service lives to save us from re-opening storage on every
+     * sample.
+     */
+    private History history;
+
     public SystemSamplingService() {
         super("System Sampling Service");
     }
@@ -82,6 +88,19 @@ public class SystemSamplingService extends IntentService {
         super.onCreate();
 
         LoggingUtils.setUpLogging(this);
+
+        history = new History(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        try {
+            history.close();
+        } catch (IOException e) {
+            Timber.w(e, "Closing history failed");
+        }
+
+        super.onDestroy();
     }
 
     private void handleIntent(Intent intent) throws IOException {
@@ -111,18 +130,15 @@ public class SystemSamplingService extends IntentService {
             return;
         }
 
-        if (!previousState.getTimestamp().before(currentState.getTimestamp())) {
+        if (previousState.getTimestamp() >= currentState.getTimestamp()) {
             Timber.w(new RuntimeException(),
                 "Current state older than previous state:\nprev: %s\ncurr: %s",
                 previousState, currentState);
             return;
         }
 
-        History history = new History(this);
         try {
-            for (HistoryEvent event : currentState.getEventsSince(previousState)) {
-                history.addEvent(event);
-            }
+            history.addEventsSince(currentState, previousState);
         } catch (IllegalArgumentException | IOException e) {
             Timber.e(e, "Adding history events since last system state failed");
             return;
@@ -44,6 +44,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -65,7 +66,10 @@ public class SystemState {
 
     private static final long TWO_HOURS_MS = 2 * 60 * 60 * 1000;
 
-    private final Date timestamp;
+    /**
+     * Milliseconds since the epoch.
+     */
+    private final long timestamp;
 
     public int getBatteryPercentage() {
         return batteryPercentage;
@@ -73,7 +77,7 @@ public class SystemState {
 
     private final int batteryPercentage;
     private final boolean charging;
-    private final Date bootTimestamp;
+    private final long bootTimestamp;
 
     public Collection<InstalledApp> getInstalledApps() {
         return installedApps.values();
@@ -81,8 +85,14 @@ public class SystemState {
 
     private final Map<String, InstalledApp> installedApps = new HashMap<>();
 
-    public SystemState(Date timestamp, int batteryPercentage, boolean charging, Date bootTimestamp) {
-        if (timestamp.before(bootTimestamp)) {
+    /**
+     * @param timestamp Milliseconds since the epoch
+     * @param bootTimestamp Milliseconds since the epoch
+     */
+    public SystemState(
+            long timestamp, int batteryPercentage, boolean charging, long bootTimestamp)
+    {
+        if (timestamp < bootTimestamp) {
             throw new IllegalArgumentException("Sample timestamp must be after boot timestamp");
         }
 
@@ -97,35 +107,40 @@ public class SystemState {
     }
 
     /**
-     * Create amount dates between (but not including) t0 and t1.
+     * Create amount timestamps between (but not including) t0 and t1.
      */
-    static Date[] between(Date t0, Date t1, int amount) {
-        Date returnMe[] = new Date[amount];
-        long span = t1.getTime() - t0.getTime();
+    static long[] between(long t0, long t1, int amount) {
+        long returnMe[] = new long[amount];
+        long span = t1 - t0;
         for (int i = 0; i < amount; i++) {
-            returnMe[i] = new Date(t0.getTime() + ((i + 1) * span) / (amount + 1));
+            returnMe[i] = t0 + ((i + 1) * span) / (amount + 1);
         }
         return returnMe;
     }
 
     /**
      * @param events Packaging events will be added to this collection
+     * @param packages Packages and versions will be added to this dictionary as needed
      */
-    private void addPackagingEventsSince(SystemState then, Collection<HistoryEvent> events) {
+    private void addPackagingEventsSince(
+            SystemState then, Collection<HistoryEvent> events, PackageDictionary packages)
+    {
         Set<String> added = new HashSet<>(installedApps.keySet());
         added.removeAll(then.installedApps.keySet());
         for (String dottedName : added) {
             InstalledApp installedApp = installedApps.get(dottedName);
-            events.add(HistoryEvent.createInfoEvent(null,
-                    installedApp.displayName + " " + installedApp.versionName + " installed"));
+            events.add(HistoryEvent.createPackageInstalledEvent(HistoryEvent.NO_TIMESTAMP,
+                    packages.getPackageId(installedApp),
+                    packages.getVersionId(installedApp.versionName)));
         }
 
         Set<String> removed = new HashSet<>(then.installedApps.keySet());
         removed.removeAll(installedApps.keySet());
         for (String dottedName : removed) {
             InstalledApp installedApp = then.installedApps.get(dottedName);
-            events.add(HistoryEvent.createInfoEvent(null,
-                    installedApp.displayName + " " + installedApp.versionName + " uninstalled"));
+            events.add(HistoryEvent.createPackageRemovedEvent(HistoryEvent.NO_TIMESTAMP,
+                    packages.getPackageId(installedApp),
+                    packages.getVersionId(installedApp.versionName)));
         }
 
         Set<String> retained = new HashSet<>(installedApps.keySet());
@@ -136,18 +151,18 @@ public class SystemState {
             if (installedThen.equals(installedNow)) {
                 continue;
             }
-            events.add(HistoryEvent.createInfoEvent(null,
-                    installedNow.displayName
-                            + " upgraded from " + installedThen.versionName
-                            + " to " + installedNow.versionName));
+            events.add(HistoryEvent.createPackageUpgradedEvent(HistoryEvent.NO_TIMESTAMP,
+                    packages.getPackageId(installedNow),
+                    packages.getVersionId(installedThen.versionName),
+                    packages.getVersionId(installedNow.versionName)));
         }
     }
 
-    private String toIsoString(Date date) {
+    private String toIsoString(long timestamp) {
         TimeZone tz = TimeZone.getTimeZone("UTC");
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'", Locale.ENGLISH);
         df.setTimeZone(tz);
-        return df.format(date);
+        return df.format(new Date(timestamp));
     }
 
     private String toDescriptionString() {
@@ -171,14 +186,23 @@ public class SystemState {
             before.toDescriptionString());
     }
 
-    public Collection<HistoryEvent> getEventsSince(SystemState before) {
-        if (before.timestamp.after(timestamp)) {
+    /**
+     * For stored histories, use {@link History#addEventsSince(SystemState, SystemState)} rather
+     * than calling this directly.
+     *
+     * @param packages What package events should refer to, new packages and versions are added
+     *                 to it
+     */
+    public Collection<HistoryEvent> getEventsSince(
+            SystemState before, PackageDictionary packages)
+    {
+        if (before.timestamp > timestamp) {
             throw new IllegalArgumentException(
                 String.format("Timestamp of previous state (%s) must be before mine (%s)",
-                    before.timestamp.toString(), timestamp.toString()));
+                    new Date(before.timestamp), new Date(timestamp)));
         }
 
-        if (timestamp.getTime() - before.timestamp.getTime() > TWO_HOURS_MS &&
+        if (timestamp - before.timestamp > TWO_HOURS_MS &&
             SystemClock.elapsedRealtime() > TWO_HOURS_MS)
         {
             logSamplingGap(before);
@@ -188,7 +212,7 @@ public class SystemState {
 
         boolean reboot = false;
         if (!bootTimestampsMatch(before)) {
-            returnMe.add(HistoryEvent.createSystemHaltingEvent(new Date(before.timestamp.getTime() + 1)));
+            returnMe.add(HistoryEvent.createSystemHaltingEvent(before.timestamp + 1));
             returnMe.add(HistoryEvent.createSystemBootingEvent(bootTimestamp, charging));
             reboot = true;
         }
@@ -202,17 +226,17 @@ public class SystemState {
         if (!reboot) {
             HistoryEvent chargingEvent = null;
             if (charging && !before.charging) {
-                chargingEvent = HistoryEvent.createStartChargingEvent(null);
+                chargingEvent = HistoryEvent.createStartChargingEvent(HistoryEvent.NO_TIMESTAMP);
             }
             if (before.charging && !charging) {
-                chargingEvent = HistoryEvent.createStopChargingEvent(null);
+                chargingEvent = HistoryEvent.createStopChargingEvent(HistoryEvent.NO_TIMESTAMP);
             }
             if (chargingEvent != null) {
                 returnMe.add(chargingEvent);
             }
         }
 
-        addPackagingEventsSince(before, returnMe);
+        addPackagingEventsSince(before, returnMe, packages);
 
         // Add dates to all events that need it
         int needTimestampCount = 0;
@@ -222,11 +246,12 @@ public class SystemState {
             }
         }
         if (needTimestampCount > 0) {
-            Date timestamps[] = between(before.timestamp, timestamp, needTimestampCount);
+            long timestamps[] = between(before.timestamp, timestamp, needTimestampCount);
             int nextFreeTimestampIndex = 0;
-            for (HistoryEvent event : returnMe) {
+            for (ListIterator<HistoryEvent> events = returnMe.listIterator(); events.hasNext(); ) {
+                HistoryEvent event = events.next();
                 if (!event.isComplete()) {
-                    event.setTimestamp(timestamps[nextFreeTimestampIndex++]);
+                    events.set(event.withTimestamp(timestamps[nextFreeTimestampIndex++]));
                 }
             }
         }
@@ -245,17 +270,17 @@ public class SystemState {
     @Override
     public String toString() {
         return "SystemState{" +
-                "timestamp=" + timestamp +
+                "timestamp=" + new Date(timestamp) +
                 ", " + batteryPercentage + "%" +
                 ", charging=" + charging +
-                ", bootTimestamp=" + bootTimestamp +
+                ", bootTimestamp=" + new Date(bootTimestamp) +
                 ", installedApps=" + installedApps +
                 '}';
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     private boolean bootTimestampsMatch(SystemState that) {
-        long bootMsDelta = Math.abs(this.bootTimestamp.getTime() - that.bootTimestamp.getTime());
+        long bootMsDelta = Math.abs(this.bootTimestamp - that.bootTimestamp);
         if (bootMsDelta > 20 * 1000) {
             // Boot time differs by more than 20s
             return false;
@@ -276,7 +301,7 @@ public class SystemState {
         if (this.batteryPercentage != that.batteryPercentage) {
             return false;
         }
-        if (!this.timestamp.equals(that.timestamp)) {
+        if (this.timestamp != that.timestamp) {
             return false;
         }
         if (!bootTimestampsMatch(that)) {
@@ -332,9 +357,9 @@ public class SystemState {
         try {
             writer = new FileWriter(tmp);
 
-            writer.append(Long.toString(timestamp.getTime())).append("\n");
+            writer.append(Long.toString(timestamp)).append("\n");
             writer.append(Integer.toString(batteryPercentage)).append("\n");
-            writer.append(Long.toString(bootTimestamp.getTime())).append("\n");
+            writer.append(Long.toString(bootTimestamp)).append("\n");
             writer.append(Boolean.toString(charging)).append("\n");
             for (InstalledApp app : installedApps.values()) {
                 app.println(writer);
@@ -352,9 +377,9 @@ public class SystemState {
         BufferedReader reader = null;
         try {
             reader = new BufferedReader(new FileReader(file));
-            Date timestamp = new Date(Long.valueOf(reader.readLine()));
+            long timestamp = Long.valueOf(reader.readLine());
             int batteryPercentage = Integer.valueOf(reader.readLine());
-            Date bootTimestamp = new Date(Long.valueOf(reader.readLine()));
+            long bootTimestamp = Long.valueOf(reader.readLine());
             boolean charging = Boolean.valueOf(reader.readLine());
             SystemState returnMe = new SystemState(timestamp, batteryPercentage, charging, bootTimestamp);
 
@@ -377,8 +402,11 @@ public class SystemState {
         }
     }
 
-    public static Date getBootTimestamp() {
-        return new Date(System.currentTimeMillis() - SystemClock.elapsedRealtime());
+    /**
+     * @return Milliseconds since the epoch
+     */
+    public static long getBootTimestamp() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
     }
 
     @NonNull
@@ -455,7 +483,8 @@ public class SystemState {
         }
         int batteryPercentage = (100 * batteryLevel) / batteryScale;
 
-        SystemState returnMe = new SystemState(new Date(), batteryPercentage, charging, getBootTimestamp());
+        SystemState returnMe = new SystemState(
+                System.currentTimeMillis(), batteryPercentage, charging, getBootTimestamp());
 
         // Add installed apps
         PackageManager packageManager = context.getPackageManager();
@@ -518,7 +547,10 @@ public class SystemState {
         return installedApps.size();
     }
 
-    public Date getTimestamp() {
+    /**
+     * @return Milliseconds since the epoch
+     */
+    public long getTimestamp() {
         return timestamp;
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Variable length integers, seven bits per byte with the high bit set on all bytes but the last.
+ */
+class Varints {
+    private Varints() {
+        // Only static methods in here
+    }
+
+    static void writeUnsigned(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    /**
+     * @throws BufferUnderflowException if the buffer ends in the middle of the number
+     * @throws ParseException if the number is too long to fit in a long
+     */
+    static long readUnsigned(ByteBuffer buffer) throws ParseException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ParseException("Varint too long", buffer.position());
+    }
+
+    /**
+     * Like {@link #writeUnsigned(DataOutput, long)}, but small negative numbers are short too.
+     */
+    static void writeSigned(DataOutput out, long value) throws IOException {
+        writeUnsigned(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSigned(ByteBuffer buffer) throws ParseException {
+        long zigZag = readUnsigned(buffer);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes sure only one thread in one process at a time changes a history directory.
+ * <p>
+ * Readers don't take this lock, so they never hold up the sampling service. Writers only append
+ * whole events in single writes, rename finished files into place and delete whole files, so
+ * readers always see history as it was either before or after each change.
+ */
+class WriterLock {
+    private static final Map<File, ReentrantLock> THREAD_LOCKS = new HashMap<>();
+
+    private final ReentrantLock threadLock;
+
+    /**
+     * Null if this thread was already holding the lock when it was acquired.
+     */
+    @Nullable
+    private final FileLock fileLock;
+
+    private WriterLock(ReentrantLock threadLock, @Nullable FileLock fileLock) {
+        this.threadLock = threadLock;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Next to the directory rather than in it, since importing legacy history creates the
+     * directory by renaming another one into place.
+     */
+    static File getLockFile(File directory) {
+        return new File(directory.getPath() + ".lock");
+    }
+
+    /**
+     * Wait until nobody else is changing directory, then lock it. Call {@link #release()} when
+     * done.
+     * <p>
+     * A thread already holding the lock for a directory may lock it again.
+     */
+    static WriterLock acquire(File directory) throws IOException {
+        File key = directory.getAbsoluteFile();
+        ReentrantLock threadLock;
+        synchronized (THREAD_LOCKS) {
+            threadLock = THREAD_LOCKS.get(key);
+            if (threadLock == null) {
+                threadLock = new ReentrantLock();
+                THREAD_LOCKS.put(key, threadLock);
+            }
+        }
+
+        // File locks are held by the whole process, so threads need to take turns first
+        threadLock.lock();
+        if (threadLock.getHoldCount() > 1) {
+            return new WriterLock(threadLock, null);
+        }
+
+        FileChannel channel = null;
+        boolean locked = false;
+        try {
+            File lockFile = getLockFile(key);
+            File parent = lockFile.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Creating directory failed: " + parent.getAbsolutePath());
+            }
+
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            WriterLock returnMe = new WriterLock(threadLock, channel.lock());
+            locked = true;
+            return returnMe;
+        } finally {
+            if (!locked) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } finally {
+                    threadLock.unlock();
+                }
+            }
+        }
+    }
+
+    void release() throws IOException {
+        try {
+            if (fileLock != null) {
+                // Closing the channel releases the lock
+                fileLock.channel().close();
+            }
+        } finally {
+            threadLock.unlock();
+        }
+    }
+}
@@ -28,14 +28,18 @@ public class DrainSample {
      */
     public final double drainSpeed;
 
-    public DrainSample(Date start, Date end, double drainSpeedPercentPerHour) {
-        if (!end.after(start)) {
+    /**
+     * @param startMs Milliseconds since the epoch
+     * @param endMs Milliseconds since the epoch
+     */
+    public DrainSample(long startMs, long endMs, double drainSpeedPercentPerHour) {
+        if (endMs <= startMs) {
             throw new IllegalArgumentException(String.format(Locale.ENGLISH,
-                "Start must be before end: start=%s, end=%s", start, end));
+                "Start must be before end: start=%s, end=%s", new Date(startMs), new Date(endMs)));
         }
 
-        startMsSinceEpoch = start.getTime();
-        endMsSinceEpoch = end.getTime();
+        startMsSinceEpoch = startMs;
+        endMsSinceEpoch = endMs;
         drainSpeed = drainSpeedPercentPerHour;
     }
 }
@@ -18,15 +18,16 @@ package com.gmail.walles.johan.batterylogger.plot;
 
 import com.gmail.walles.johan.batterylogger.HistoryEvent;
 
-import java.util.Date;
-
 public class PlotEvent {
     public final double msSinceEpoch;
     public final HistoryEvent.Type type;
     public final String description;
 
-    public PlotEvent(Date timestamp, String description, HistoryEvent.Type type) {
-        this.msSinceEpoch = timestamp.getTime();
+    /**
+     * @param timestamp Milliseconds since the epoch
+     */
+    public PlotEvent(long timestamp, String description, HistoryEvent.Type type) {
+        this.msSinceEpoch = timestamp;
         this.description = description;
         this.type = type;
     }
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
@@ -27,6 +28,7 @@ import android.view.View;
 import com.gmail.walles.johan.batterylogger.HistoryEvent;
 
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -34,6 +36,12 @@ import java.util.Locale;
 public class XYPlot extends View {
     private static final int EVENT_TEXT_SIZE_SP = 11;
 
+    /**
+     * When showing more than this, we draw {@link #zoomedOutDrainDots} and {@link
+     * #zoomedOutDrainLines} instead of {@link #drainDots} and {@link #drainLines}.
+     */
+    private static final double ZOOMED_OUT_MS = 3 * 86400 * 1000;
+
     private final Paint BACKGROUND;
     private final Paint DRAINLINE;
     private final Paint DRAINDOTS;
@@ -58,9 +66,15 @@ public class XYPlot extends View {
     private boolean showDrainDots = true;
     private boolean showEvents;
     private String yLabel;
-    private List<DrainSample> drainDots;
-    private List<DrainSample> drainLines;
-    private List<PlotEvent> events;
+
+    // Empty until the data has been loaded, we draw the axes meanwhile
+    private List<DrainSample> drainDots = Collections.emptyList();
+    @Nullable
+    private List<DrainSample> zoomedOutDrainDots;
+    private List<DrainSample> drainLines = Collections.emptyList();
+    @Nullable
+    private List<DrainSample> zoomedOutDrainLines;
+    private List<PlotEvent> events = Collections.emptyList();
 
     public XYPlot(Context context, AttributeSet attrs) {
         this(context, attrs, 0);
@@ -139,15 +153,24 @@ public class XYPlot extends View {
 
         clear(canvas);
 
+        boolean zoomedOut = maxX - minX > ZOOMED_OUT_MS;
         if (showDrainDots) {
-            drawSamples(canvas, drainDots, DRAINDOTS);
+            if (zoomedOutDrainDots != null && zoomedOut) {
+                drawSamples(canvas, zoomedOutDrainDots, DRAINDOTS);
+            } else {
+                drawSamples(canvas, drainDots, DRAINDOTS);
+            }
         }
 
         if (showEvents) {
             drawRestarts(canvas);
         }
 
-        drawSamples(canvas, drainLines, DRAINLINE);
+        if (zoomedOutDrainLines != null && zoomedOut) {
+            drawSamples(canvas, zoomedOutDrainLines, DRAINLINE);
+        } else {
+            drawSamples(canvas, drainLines, DRAINLINE);
+        }
 
         if (showEvents) {
             drawPackagingEvents(canvas);
@@ -337,10 +360,26 @@ public class XYPlot extends View {
         this.drainDots = drainDots;
     }
 
+    /**
+     * Coarser drain dots to draw instead of the ones from {@link #setDrainDots(List)} when zoomed
+     * out.
+     */
+    public void setZoomedOutDrainDots(@Nullable List<DrainSample> zoomedOutDrainDots) {
+        this.zoomedOutDrainDots = zoomedOutDrainDots;
+    }
+
     public void setDrainLines(List<DrainSample> drainLines) {
         this.drainLines = drainLines;
     }
 
+    /**
+     * Coarser drain lines to draw instead of the ones from {@link #setDrainLines(List)} when
+     * zoomed out.
+     */
+    public void setZoomedOutDrainLines(@Nullable List<DrainSample> zoomedOutDrainLines) {
+        this.zoomedOutDrainLines = zoomedOutDrainLines;
+    }
+
     public void setEvents(List<PlotEvent> events) {
         this.events = events;
     }
@@ -365,6 +404,9 @@ public class XYPlot extends View {
         if (!drainDots.isEmpty()) {
             return false;
         }
+        if (zoomedOutDrainDots != null && !zoomedOutDrainDots.isEmpty()) {
+            return false;
+        }
         if (!drainLines.isEmpty()) {
             return false;
         }
@@ -379,6 +421,9 @@ public class XYPlot extends View {
         if (!drainDots.isEmpty()) {
             leftmostX = Math.min(leftmostX, drainDots.get(0).startMsSinceEpoch);
         }
+        if (zoomedOutDrainDots != null && !zoomedOutDrainDots.isEmpty()) {
+            leftmostX = Math.min(leftmostX, zoomedOutDrainDots.get(0).startMsSinceEpoch);
+        }
         if (!drainLines.isEmpty()) {
             leftmostX = Math.min(leftmostX, drainLines.get(0).startMsSinceEpoch);
         }
@@ -24,19 +24,20 @@ import org.junit.Assert;
 
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
 public class DrainLinesCreatorTest extends TestCase {
-    private static final Date BEFORE = new Date(System.currentTimeMillis() - 3600 * 1000);
-    private static final Date NOW = new Date();
+    private static final long BEFORE = System.currentTimeMillis() - 3600 * 1000;
+    private static final long NOW = System.currentTimeMillis();
 
     /**
      * How close do dates need to be for us to be satisfied?
      */
     private static final double DELTA_MS = 1000.0;
 
+    private final PackageDictionary packages = new PackageDictionary();
+
     public void testMedianLine() {
         try {
             DrainLinesCreator.median(Collections.<Double>emptyList());
@@ -80,7 +81,7 @@ public class DrainLinesCreatorTest extends TestCase {
     }
 
     public void testDischargeLineWithTwoEvents() {
-        Date dates[] = SystemState.between(BEFORE, NOW, 3);
+        long dates[] = SystemState.between(BEFORE, NOW, 3);
         DrainLinesCreator testMe = new DrainLinesCreator(Arrays.asList(
                 HistoryEvent.createStopChargingEvent(dates[0]),
                 HistoryEvent.createBatteryLevelEvent(dates[1], 50),
@@ -93,13 +94,13 @@ public class DrainLinesCreatorTest extends TestCase {
         Assert.assertTrue(drainLine.drainSpeed > 0.0);
         Assert.assertFalse(Double.isInfinite(drainLine.drainSpeed));
 
-        Assert.assertEquals(drainLine.startMsSinceEpoch, dates[0].getTime(), DELTA_MS);
-        Assert.assertEquals(drainLine.endMsSinceEpoch, dates[2].getTime(), DELTA_MS);
+        Assert.assertEquals(drainLine.startMsSinceEpoch, dates[0], DELTA_MS);
+        Assert.assertEquals(drainLine.endMsSinceEpoch, dates[2], DELTA_MS);
     }
 
     public void testZeroPercentDischarge() {
-        Date dates[] = SystemState.between(BEFORE, NOW, 6);
-        Date bootTimestamp = dates[0];
+        long dates[] = SystemState.between(BEFORE, NOW, 6);
+        long bootTimestamp = dates[0];
         SystemState a = new SystemState(dates[1], 50, true, bootTimestamp);
         SystemState b = new SystemState(dates[2], 50, false, bootTimestamp);
         SystemState c = new SystemState(dates[3], 50, false, bootTimestamp);
@@ -107,10 +108,10 @@ public class DrainLinesCreatorTest extends TestCase {
         SystemState e = new SystemState(dates[5], 50, false, bootTimestamp);
 
         List<HistoryEvent> events = new LinkedList<>();
-        events.addAll(b.getEventsSince(a));
-        events.addAll(c.getEventsSince(b));
-        events.addAll(d.getEventsSince(c));
-        events.addAll(e.getEventsSince(d));
+        events.addAll(b.getEventsSince(a, packages));
+        events.addAll(c.getEventsSince(b, packages));
+        events.addAll(d.getEventsSince(c, packages));
+        events.addAll(e.getEventsSince(d, packages));
 
         DrainLinesCreator testMe = new DrainLinesCreator(events);
         Assert.assertEquals(0, testMe.getDrainLines().size());
@@ -120,8 +121,8 @@ public class DrainLinesCreatorTest extends TestCase {
      * Regression test for https://github.com/walles/batterylogger/issues/1
      */
     public void testNegativeDischarge1() {
-        Date dates[] = SystemState.between(BEFORE, NOW, 6);
-        Date bootTimestamp = dates[0];
+        long dates[] = SystemState.between(BEFORE, NOW, 6);
+        long bootTimestamp = dates[0];
         SystemState a = new SystemState(dates[1], 50, true, bootTimestamp);
         SystemState b = new SystemState(dates[2], 50, false, bootTimestamp);
         // b -> c = charging
@@ -132,10 +133,10 @@ public class DrainLinesCreatorTest extends TestCase {
         SystemState e = new SystemState(dates[5], 51, false, bootTimestamp);
 
         List<HistoryEvent> events = new LinkedList<>();
-        events.addAll(b.getEventsSince(a));
-        events.addAll(c.getEventsSince(b));
-        events.addAll(d.getEventsSince(c));
-        events.addAll(e.getEventsSince(d));
+        events.addAll(b.getEventsSince(a, packages));
+        events.addAll(c.getEventsSince(b, packages));
+        events.addAll(d.getEventsSince(c, packages));
+        events.addAll(e.getEventsSince(d, packages));
 
         DrainLinesCreator testMe = new DrainLinesCreator(events);
 
@@ -149,8 +150,8 @@ public class DrainLinesCreatorTest extends TestCase {
      * Regression test for https://github.com/walles/batterylogger/issues/2
      */
     public void testNegativeDischarge2() {
-        Date dates[] = SystemState.between(BEFORE, NOW, 6);
-        Date bootTimestamp = dates[0];
+        long dates[] = SystemState.between(BEFORE, NOW, 6);
+        long bootTimestamp = dates[0];
         SystemState a = new SystemState(dates[1], 50, true, bootTimestamp);
         SystemState b = new SystemState(dates[2], 50, false, bootTimestamp);
         // b -> c = charging
@@ -161,9 +162,9 @@ public class DrainLinesCreatorTest extends TestCase {
         SystemState e = new SystemState(dates[5], 51, false, bootTimestamp);
 
         List<HistoryEvent> events = new LinkedList<>();
-        events.addAll(b.getEventsSince(a));
-        events.addAll(d.getEventsSince(c));
-        events.addAll(e.getEventsSince(d));
+        events.addAll(b.getEventsSince(a, packages));
+        events.addAll(d.getEventsSince(c, packages));
+        events.addAll(e.getEventsSince(d, packages));
 
         DrainLinesCreator testMe = new DrainLinesCreator(events);
 
@@ -182,8 +183,8 @@ public class DrainLinesCreatorTest extends TestCase {
         DrainSample drainLine = testMe.getDrainLines().get(0);
 
         Assert.assertEquals(0.0, drainLine.drainSpeed, 0.0);
-        Assert.assertEquals(drainLine.startMsSinceEpoch, BEFORE.getTime(), DELTA_MS);
-        Assert.assertEquals(drainLine.endMsSinceEpoch, NOW.getTime(), DELTA_MS);
+        Assert.assertEquals(drainLine.startMsSinceEpoch, BEFORE, DELTA_MS);
+        Assert.assertEquals(drainLine.endMsSinceEpoch, NOW, DELTA_MS);
     }
 
     @SuppressWarnings("ConstantConditions")
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DrainRollupsTest extends TestCase {
+    // Start of an hour
+    private static final long START = 1000 * History.HOUR_MS;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = File.createTempFile("drainrollupstest", ".rollups");
+        Assert.assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            Assert.assertTrue(!file.exists() || file.delete());
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    private static EventColumns.Cursor cursor(HistoryEvent ... events) {
+        return EventColumns.of(Arrays.asList(events)).cursor();
+    }
+
+    private static String toString(List<DrainRollup> rollups) {
+        StringBuilder builder = new StringBuilder();
+        for (DrainRollup rollup : rollups) {
+            builder.append(rollup.startMsSinceEpoch).append('-').append(rollup.endMsSinceEpoch)
+                    .append(" drain=").append(rollup.getMeanDrain())
+                    .append(" discharge=").append(rollup.dischargeMs)
+                    .append(" charge=").append(rollup.chargeMs)
+                    .append(" boots=").append(rollup.bootCount)
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+
+    public void testDrainSpreadOverHours() {
+        DrainRollups testMe = new DrainRollups(History.HOUR_MS);
+        testMe.add(cursor(
+                HistoryEvent.createSystemBootingEvent(START, false),
+                HistoryEvent.createBatteryLevelEvent(START, 100),
+                HistoryEvent.createBatteryLevelEvent(START + 2 * History.HOUR_MS, 90)));
+
+        List<DrainRollup> rollups = testMe.getRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(2, rollups.size());
+
+        Assert.assertEquals(START, rollups.get(0).startMsSinceEpoch);
+        Assert.assertEquals(5.0, rollups.get(0).getMeanDrain(), 0.001);
+        Assert.assertEquals(History.HOUR_MS, rollups.get(0).dischargeMs);
+        Assert.assertEquals(1, rollups.get(0).bootCount);
+
+        Assert.assertEquals(START + History.HOUR_MS, rollups.get(1).startMsSinceEpoch);
+        Assert.assertEquals(5.0, rollups.get(1).getMeanDrain(), 0.001);
+        Assert.assertEquals(0, rollups.get(1).bootCount);
+    }
+
+    public void testCharging() {
+        DrainRollups testMe = new DrainRollups(History.HOUR_MS);
+        testMe.add(cursor(
+                HistoryEvent.createSystemBootingEvent(START, true),
+                HistoryEvent.createBatteryLevelEvent(START, 50),
+                HistoryEvent.createBatteryLevelEvent(START + 30 * 60 * 1000, 70),
+                HistoryEvent.createStopChargingEvent(START + 45 * 60 * 1000)));
+
+        List<DrainRollup> rollups = testMe.getRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(1, rollups.size());
+        Assert.assertNull(rollups.get(0).getMeanDrain());
+        Assert.assertEquals(45 * 60 * 1000, rollups.get(0).chargeMs);
+        Assert.assertEquals(0, rollups.get(0).dischargeMs);
+    }
+
+    public void testNothingCountedWhileDown() {
+        DrainRollups testMe = new DrainRollups(History.HOUR_MS);
+        testMe.add(cursor(
+                HistoryEvent.createSystemBootingEvent(START, false),
+                HistoryEvent.createBatteryLevelEvent(START, 50),
+                HistoryEvent.createSystemHaltingEvent(START + 1000),
+                HistoryEvent.createSystemBootingEvent(START + 3 * History.HOUR_MS, false),
+                HistoryEvent.createBatteryLevelEvent(START + 3 * History.HOUR_MS, 40)));
+
+        List<DrainRollup> rollups = testMe.getRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(2, rollups.size());
+        Assert.assertNull(rollups.get(0).getMeanDrain());
+        Assert.assertEquals(1000, rollups.get(0).dischargeMs);
+        Assert.assertEquals(START + 3 * History.HOUR_MS, rollups.get(1).startMsSinceEpoch);
+        Assert.assertEquals(1, rollups.get(1).bootCount);
+    }
+
+    /**
+     * Adding events a few at a time to persisted rollups should give the same result as adding
+     * them all at once in memory.
+     */
+    public void testPersistedMatchesInMemory() throws Exception {
+        List<HistoryEvent> events = new ArrayList<>();
+        long timestamp = START + 1234;
+        int level = 100;
+        events.add(HistoryEvent.createSystemBootingEvent(timestamp, false));
+        for (int i = 0; i < 500; i++) {
+            timestamp += 17 * 60 * 1000;
+            if (i % 100 == 50) {
+                events.add(HistoryEvent.createStartChargingEvent(timestamp));
+                level = 100;
+                events.add(HistoryEvent.createStopChargingEvent(
+                        timestamp + 3 * History.HOUR_MS));
+                timestamp += 3 * History.HOUR_MS;
+            }
+            if (i % 77 == 10) {
+                events.add(HistoryEvent.createSystemHaltingEvent(timestamp));
+                timestamp += 5 * History.HOUR_MS;
+                events.add(HistoryEvent.createSystemBootingEvent(timestamp, false));
+            }
+            level = Math.max(0, level - i % 3);
+            events.add(HistoryEvent.createBatteryLevelEvent(timestamp, level));
+        }
+
+        DrainRollups inMemory = new DrainRollups(History.HOUR_MS);
+        inMemory.add(EventColumns.of(events).cursor());
+
+        DrainRollups persisted = DrainRollups.create(file, History.HOUR_MS);
+        for (int start = 0; start < events.size(); start += 7) {
+            List<HistoryEvent> batch = events.subList(start, Math.min(start + 7, events.size()));
+            persisted.add(EventColumns.of(batch).cursor());
+            persisted.flush();
+
+            persisted = DrainRollups.openForAppending(file, History.HOUR_MS);
+            Assert.assertNotNull(persisted);
+        }
+
+        Assert.assertEquals(
+                toString(inMemory.getRollups(Long.MIN_VALUE, Long.MAX_VALUE)),
+                toString(DrainRollups.load(file, History.HOUR_MS)
+                        .getRollups(Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    public void testDropRowsBefore() throws Exception {
+        DrainRollups rollups = DrainRollups.create(file, History.HOUR_MS);
+        rollups.add(cursor(
+                HistoryEvent.createSystemBootingEvent(START, false),
+                HistoryEvent.createBatteryLevelEvent(START, 100),
+                HistoryEvent.createBatteryLevelEvent(START + 5 * History.HOUR_MS, 90)));
+        rollups.flush();
+
+        DrainRollups.dropRowsBefore(file, History.HOUR_MS, START + 2 * History.HOUR_MS + 1);
+        List<DrainRollup> left = DrainRollups.load(file, History.HOUR_MS)
+                .getRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(3, left.size());
+        Assert.assertEquals(START + 2 * History.HOUR_MS, left.get(0).startMsSinceEpoch);
+
+        // Adding more should continue where we left off
+        rollups = DrainRollups.openForAppending(file, History.HOUR_MS);
+        Assert.assertNotNull(rollups);
+        rollups.add(cursor(
+                HistoryEvent.createBatteryLevelEvent(START + 6 * History.HOUR_MS, 88)));
+        rollups.flush();
+        left = DrainRollups.load(file, History.HOUR_MS).getRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(4, left.size());
+        Assert.assertEquals(2.0, left.get(3).getMeanDrain(), 0.001);
+    }
+
+    public void testWrongBucketSize() throws Exception {
+        DrainRollups hourly = DrainRollups.create(file, History.HOUR_MS);
+        hourly.add(cursor(HistoryEvent.createSystemBootingEvent(START, false)));
+        hourly.flush();
+
+        Assert.assertNull(DrainRollups.openForAppending(file, HistorySegments.DAY_MS));
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] returnMe = new byte[(int)in.length()];
+            in.readFully(returnMe);
+            return returnMe;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void assertUnusable() throws IOException {
+        Assert.assertNull(DrainRollups.openForAppending(file, History.HOUR_MS));
+        try {
+            DrainRollups.load(file, History.HOUR_MS);
+            Assert.fail("Loading should have failed");
+        } catch (IOException e) {
+            // Expected exception intentionally ignored
+        }
+    }
+
+    public void testInterruptedFlushIsDetected() throws Exception {
+        DrainRollups rollups = DrainRollups.create(file, History.HOUR_MS);
+        rollups.add(cursor(
+                HistoryEvent.createSystemBootingEvent(START, false),
+                HistoryEvent.createBatteryLevelEvent(START, 100),
+                HistoryEvent.createBatteryLevelEvent(START + 2 * History.HOUR_MS + 1000, 90)));
+        rollups.flush();
+        byte[] before = readFile();
+
+        // Same rows, so the file length doesn't give it away
+        rollups.add(cursor(
+                HistoryEvent.createBatteryLevelEvent(START + 2 * History.HOUR_MS + 2000, 89)));
+        rollups.flush();
+        byte[] after = readFile();
+        Assert.assertEquals(before.length, after.length);
+        Assert.assertNotNull(DrainRollups.openForAppending(file, History.HOUR_MS));
+
+        // The new rows made it to disk but the new header didn't
+        byte[] torn = after.clone();
+        System.arraycopy(before, 0, torn, 0, DrainRollups.HEADER_SIZE);
+        writeFile(torn);
+        assertUnusable();
+
+        // The new header made it to disk but the new rows didn't
+        torn = before.clone();
+        System.arraycopy(after, 0, torn, 0, DrainRollups.HEADER_SIZE);
+        writeFile(torn);
+        assertUnusable();
+
+        // Truncated in the middle of a row
+        writeFile(Arrays.copyOf(after, after.length - 1));
+        assertUnusable();
+    }
+}
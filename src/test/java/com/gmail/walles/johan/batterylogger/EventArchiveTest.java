@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EventArchiveTest extends TestCase {
+    private File file;
+    private long now;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        now = System.currentTimeMillis();
+        file = File.createTempFile("eventarchivetest", ".events");
+        Assert.assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            Assert.assertTrue(!file.exists() || file.delete());
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testOnlyKeepsInterestingEvents() throws Exception {
+        EventArchive testMe = new EventArchive(file);
+        testMe.archive(Arrays.asList(
+                HistoryEvent.createSystemBootingEvent(now, true),
+                HistoryEvent.createBatteryLevelEvent(now + 1, 50),
+                HistoryEvent.createStopChargingEvent(now + 2),
+                HistoryEvent.createInfoEvent(now + 3, "Hello"),
+                HistoryEvent.createSystemHaltingEvent(now + 4)));
+        testMe.archive(Arrays.asList(
+                HistoryEvent.createInfoEvent(now + 5, "World")));
+
+        EventColumns.Cursor archived = testMe.read(Long.MIN_VALUE, Long.MAX_VALUE).cursor();
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals(HistoryEvent.Type.SYSTEM_BOOT, archived.getType());
+        Assert.assertTrue(archived.isCharging());
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals("Hello", archived.getMessage());
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals(HistoryEvent.Type.SYSTEM_SHUTDOWN, archived.getType());
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals("World", archived.getMessage());
+        Assert.assertEquals(now + 5, archived.getTimestamp());
+        Assert.assertFalse(archived.moveToNext());
+    }
+
+    public void testAppendAfterTornWrite() throws Exception {
+        EventArchive testMe = new EventArchive(file);
+        testMe.archive(Arrays.asList(HistoryEvent.createInfoEvent(now, "Hello")));
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[] { 10, 1, 2 });
+        } finally {
+            out.close();
+        }
+
+        testMe.archive(Arrays.asList(HistoryEvent.createInfoEvent(now + 1, "World")));
+        EventColumns.Cursor archived = testMe.read(Long.MIN_VALUE, Long.MAX_VALUE).cursor();
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals("Hello", archived.getMessage());
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals("World", archived.getMessage());
+        Assert.assertFalse(archived.moveToNext());
+    }
+
+    public void testSizeBounded() throws Exception {
+        EventArchive testMe = new EventArchive(file);
+        int count = 0;
+        while (count < 20000) {
+            List<HistoryEvent> batch = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                batch.add(HistoryEvent.createInfoEvent(now + count, "Event " + count));
+                count++;
+            }
+            testMe.archive(batch);
+            Assert.assertTrue(file.length() <= EventArchive.MAX_SIZE);
+        }
+
+        // The newest events should be kept
+        EventColumns.Cursor archived = testMe.read(now + count - 1, Long.MAX_VALUE).cursor();
+        Assert.assertTrue(archived.moveToNext());
+        Assert.assertEquals("Event " + (count - 1), archived.getMessage());
+    }
+}
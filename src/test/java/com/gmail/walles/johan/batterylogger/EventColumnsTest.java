@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+public class EventColumnsTest extends TestCase {
+    public void testRecycleEvents() {
+        List<HistoryEvent> events = Arrays.asList(
+                HistoryEvent.createBatteryLevelEvent(1000, 42),
+                HistoryEvent.createSystemBootingEvent(2000, true),
+                HistoryEvent.createSystemBootingEvent(3000, false),
+                HistoryEvent.createInfoEvent(4000, "Hej"),
+                HistoryEvent.createSystemHaltingEvent(5000),
+                HistoryEvent.createStartChargingEvent(6000),
+                HistoryEvent.createStopChargingEvent(7000),
+                HistoryEvent.createInfoEvent(8000, "Nej"),
+                HistoryEvent.createPackageInstalledEvent(9000, 1, 2),
+                HistoryEvent.createPackageUpgradedEvent(10000, 1, 2, 3),
+                HistoryEvent.createPackageRemovedEvent(11000, 1, 3));
+
+        // Start small to exercise growing the columns
+        EventColumns testMe = new EventColumns(1);
+        for (HistoryEvent event : events) {
+            testMe.add(event);
+        }
+        Assert.assertEquals(events.size(), testMe.size());
+
+        EventColumns.Cursor cursor = testMe.cursor();
+        for (HistoryEvent event : events) {
+            Assert.assertTrue(cursor.moveToNext());
+            Assert.assertEquals(event.getTimestamp(), cursor.getTimestamp());
+            Assert.assertEquals(event.getType(), cursor.getType());
+            Assert.assertEquals(event, cursor.toHistoryEvent());
+        }
+        Assert.assertFalse(cursor.moveToNext());
+        Assert.assertFalse(cursor.moveToNext());
+    }
+
+    public void testRangeCursor() {
+        EventColumns testMe = new EventColumns();
+        for (int i = 1; i <= 10; i++) {
+            testMe.add(HistoryEvent.createBatteryLevelEvent(i * 1000, 100 - i));
+        }
+
+        EventColumns.Cursor cursor = testMe.cursor(3000, 5000);
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(3000, cursor.getTimestamp());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(4000, cursor.getTimestamp());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(5000, cursor.getTimestamp());
+        Assert.assertEquals(95, cursor.getPercentage());
+        Assert.assertFalse(cursor.moveToNext());
+
+        Assert.assertFalse(testMe.cursor(11000, Long.MAX_VALUE).moveToNext());
+        Assert.assertFalse(testMe.cursor(Long.MIN_VALUE, 500).moveToNext());
+        Assert.assertFalse(testMe.cursor(5000, 3000).moveToNext());
+    }
+
+    public void testReverseCursor() {
+        EventColumns testMe = new EventColumns();
+        Assert.assertFalse(testMe.reverseCursor().moveToNext());
+
+        for (int i = 1; i <= 3; i++) {
+            testMe.add(HistoryEvent.createBatteryLevelEvent(i * 1000, 100 - i));
+        }
+
+        EventColumns.Cursor cursor = testMe.reverseCursor();
+        for (int i = 3; i >= 1; i--) {
+            Assert.assertTrue(cursor.moveToNext());
+            Assert.assertEquals(i * 1000, cursor.getTimestamp());
+        }
+        Assert.assertFalse(cursor.moveToNext());
+        Assert.assertFalse(cursor.moveToNext());
+    }
+
+    public void testAddAll() {
+        EventColumns testMe = new EventColumns(1);
+        testMe.add(HistoryEvent.createInfoEvent(1000, "One"));
+        testMe.add(HistoryEvent.createBatteryLevelEvent(2000, 42));
+
+        EventColumns other = new EventColumns(1);
+        other.add(HistoryEvent.createInfoEvent(3000, "Two"));
+        other.add(HistoryEvent.createSystemBootingEvent(4000, true));
+        other.add(HistoryEvent.createInfoEvent(5000, "Three"));
+        other.add(HistoryEvent.createPackageUpgradedEvent(6000, 4, 5, 6));
+
+        testMe.add(HistoryEvent.createPackageInstalledEvent(2500, 1, 2));
+        testMe.addAll(other);
+        testMe.addAll(new EventColumns(0));
+        Assert.assertEquals(7, testMe.size());
+
+        EventColumns.Cursor cursor = testMe.cursor();
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("One", cursor.getMessage());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(42, cursor.getPercentage());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(1, cursor.getPackageId());
+        Assert.assertEquals(2, cursor.getVersionId());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("Two", cursor.getMessage());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertTrue(cursor.isCharging());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("Three", cursor.getMessage());
+        Assert.assertEquals(5000, cursor.getTimestamp());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(4, cursor.getPackageId());
+        Assert.assertEquals(5, cursor.getPreviousVersionId());
+        Assert.assertEquals(6, cursor.getVersionId());
+        Assert.assertFalse(cursor.moveToNext());
+    }
+
+    public void testTypeCursor() {
+        // Enough events to span several bitmap words
+        EventColumns first = new EventColumns(1);
+        EventColumns second = new EventColumns(1);
+        for (int i = 0; i < 300; i++) {
+            EventColumns columns = i < 100 ? first : second;
+            if (i % 70 == 3) {
+                columns.add(HistoryEvent.createSystemBootingEvent(i * 1000, false));
+            } else if (i == 130) {
+                columns.add(HistoryEvent.createInfoEvent(i * 1000, "Hej"));
+            } else {
+                columns.add(HistoryEvent.createBatteryLevelEvent(i * 1000, 100 - i / 3));
+            }
+        }
+        EventColumns testMe = new EventColumns(1);
+        testMe.addAll(first);
+        testMe.addAll(second);
+
+        EnumSet<HistoryEvent.Type> types =
+                EnumSet.of(HistoryEvent.Type.SYSTEM_BOOT, HistoryEvent.Type.INFO);
+        EventColumns.Cursor cursor = testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE, types);
+        for (long expected : new long[] { 3000, 73000, 130000, 143000, 213000, 283000 }) {
+            Assert.assertTrue(cursor.moveToNext());
+            Assert.assertEquals(expected, cursor.getTimestamp());
+        }
+        Assert.assertFalse(cursor.moveToNext());
+        Assert.assertFalse(cursor.moveToNext());
+
+        cursor = testMe.cursor(73001, 213000, types);
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("Hej", cursor.getMessage());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(143000, cursor.getTimestamp());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(213000, cursor.getTimestamp());
+        Assert.assertFalse(cursor.moveToNext());
+
+        // Types we have never seen
+        types = EnumSet.of(HistoryEvent.Type.START_CHARGING);
+        Assert.assertFalse(testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE, types).moveToNext());
+
+        // Adding events doesn't change what existing cursors see
+        cursor = testMe.cursor(280000, Long.MAX_VALUE, EnumSet.of(HistoryEvent.Type.SYSTEM_BOOT));
+        testMe.add(HistoryEvent.createSystemBootingEvent(400000, true));
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(283000, cursor.getTimestamp());
+        Assert.assertFalse(cursor.moveToNext());
+
+        Assert.assertEquals(299000, testMe.findTimestampBefore(400000));
+        Assert.assertEquals(Long.MIN_VALUE, testMe.findTimestampBefore(0));
+    }
+
+    public void testSnapshot() {
+        EventColumns testMe = new EventColumns(1);
+        testMe.add(HistoryEvent.createInfoEvent(1000, "One"));
+        testMe.add(HistoryEvent.createBatteryLevelEvent(2000, 42));
+        EventColumns.Snapshot before = testMe.snapshot();
+        Assert.assertEquals(before.getVersion(), testMe.snapshot().getVersion());
+
+        // Adding events, growing the columns on the way, doesn't change the snapshot
+        for (int i = 0; i < 100; i++) {
+            testMe.add(HistoryEvent.createInfoEvent(3000 + i, "More"));
+        }
+        EventColumns.Snapshot after = testMe.snapshot();
+        Assert.assertTrue(after.getVersion() > before.getVersion());
+        Assert.assertEquals(102, after.size());
+
+        Assert.assertEquals(2, before.size());
+        EventColumns.Cursor cursor = before.cursor();
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("One", cursor.getMessage());
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(42, cursor.getPercentage());
+        Assert.assertFalse(cursor.moveToNext());
+
+        cursor = before.cursor(Long.MIN_VALUE, Long.MAX_VALUE, EnumSet.of(HistoryEvent.Type.INFO));
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals(1000, cursor.getTimestamp());
+        Assert.assertFalse(cursor.moveToNext());
+
+        try {
+            before.getTimestamp(2);
+            Assert.fail("Snapshot should end where it was taken");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+
+        // Versions keep growing also across different columns
+        Assert.assertTrue(new EventColumns().snapshot().getVersion() > after.getVersion());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+
+public class HistoryCacheTest extends TestCase {
+    private static final int EVENT_COUNT = 2000;
+
+    private File directory;
+    private long now;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        now = System.currentTimeMillis();
+        directory = File.createTempFile("historycachetest", ".dir");
+        Assert.assertTrue(directory.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Assert.assertTrue(file.delete());
+                }
+                Assert.assertTrue(directory.delete());
+            }
+            File lockFile = WriterLock.getLockFile(directory);
+            Assert.assertTrue(!lockFile.exists() || lockFile.delete());
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    private static int count(EventColumns.Cursor cursor) {
+        int count = 0;
+        while (cursor.moveToNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    public void testSharedByDirectory() {
+        Assert.assertSame(HistoryCache.get(directory), HistoryCache.get(directory));
+        Assert.assertSame(HistoryCache.get(directory),
+                HistoryCache.get(new File(directory.getParentFile(), directory.getName())));
+    }
+
+    public void testCursorUnaffectedByLaterEvents() throws Exception {
+        History writer = new History(directory);
+        writer.addEvent(HistoryEvent.createInfoEvent(now, "one"));
+
+        HistoryCache testMe = HistoryCache.get(directory);
+        EventColumns.Cursor before = testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        writer.addEvent(HistoryEvent.createInfoEvent(now + 1, "two"));
+        writer.close();
+        EventColumns.Cursor after = testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        Assert.assertEquals(1, count(before));
+        Assert.assertEquals(2, count(after));
+    }
+
+    public void testReadWhileAppending() throws Exception {
+        final History writer = new History(directory);
+        final IOException[] writerException = new IOException[1];
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < EVENT_COUNT; i++) {
+                        writer.addEvent(
+                                HistoryEvent.createBatteryLevelEvent(now + i, i % 100));
+                    }
+                    writer.close();
+                } catch (IOException e) {
+                    writerException[0] = e;
+                }
+            }
+        });
+        writerThread.start();
+
+        HistoryCache testMe = HistoryCache.get(directory);
+        int lastCount = 0;
+        do {
+            EventColumns.Cursor cursor = testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+            int count = 0;
+            while (cursor.moveToNext()) {
+                Assert.assertEquals(now + count, cursor.getTimestamp());
+                Assert.assertEquals(count % 100, cursor.getPercentage());
+                count++;
+            }
+            Assert.assertTrue(count >= lastCount);
+            lastCount = count;
+        } while (writerThread.isAlive());
+        writerThread.join();
+
+        Assert.assertNull(writerException[0]);
+        Assert.assertEquals(EVENT_COUNT, count(testMe.cursor(Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+}
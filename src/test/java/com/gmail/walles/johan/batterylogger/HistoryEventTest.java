@@ -20,36 +20,187 @@ import junit.framework.TestCase;
 
 import org.junit.Assert;
 
-import java.util.Date;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 
 public class HistoryEventTest extends TestCase {
     private void assertRecycling(HistoryEvent event) throws Exception {
         HistoryEvent recycled = HistoryEvent.deserializeFromString(event.serializeToString());
         Assert.assertEquals(event, recycled);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        event.writeTo(new DataOutputStream(bytes));
+        if (event.getType().isPackageChange()) {
+            Assert.assertEquals(21, bytes.size());
+        } else if (event.getType() != HistoryEvent.Type.INFO) {
+            Assert.assertEquals(13, bytes.size());
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        EventRecord record = new EventRecord();
+        Assert.assertTrue(HistoryEvent.readInto(buffer, record));
+        Assert.assertEquals(event, record.toHistoryEvent());
+        Assert.assertFalse(HistoryEvent.readInto(buffer, record));
     }
 
     public void testCreateBatteryLevelEvent() throws Exception {
-        assertRecycling(HistoryEvent.createBatteryLevelEvent(new Date(12345678), 42));
+        assertRecycling(HistoryEvent.createBatteryLevelEvent(12345678, 42));
     }
 
     public void testCreateInfoEvent() throws Exception {
-        assertRecycling(HistoryEvent.createInfoEvent(new Date(12345678), "some message"));
+        assertRecycling(HistoryEvent.createInfoEvent(12345678, "some message"));
+        assertRecycling(HistoryEvent.createInfoEvent(12345678, "Räksmörgås 1.2 installed"));
     }
 
     public void testCreateSystemHaltingEvent() throws Exception {
-        assertRecycling(HistoryEvent.createSystemHaltingEvent(new Date(12345678)));
+        assertRecycling(HistoryEvent.createSystemHaltingEvent(12345678));
     }
 
     public void testCreateSystemBootingEvent() throws Exception {
-        assertRecycling(HistoryEvent.createSystemBootingEvent(new Date(12345678), true));
-        assertRecycling(HistoryEvent.createSystemBootingEvent(new Date(12345678), false));
+        assertRecycling(HistoryEvent.createSystemBootingEvent(12345678, true));
+        assertRecycling(HistoryEvent.createSystemBootingEvent(12345678, false));
     }
 
     public void testCreateStartChargingEvent() throws Exception {
-        assertRecycling(HistoryEvent.createStartChargingEvent(new Date(12345678)));
+        assertRecycling(HistoryEvent.createStartChargingEvent(12345678));
     }
 
     public void testCreateStopChargingEvent() throws Exception {
-        assertRecycling(HistoryEvent.createStopChargingEvent(new Date(12345678)));
+        assertRecycling(HistoryEvent.createStopChargingEvent(12345678));
+    }
+
+    public void testCreatePackageEvents() throws Exception {
+        assertRecycling(HistoryEvent.createPackageInstalledEvent(12345678, 3, 5));
+        assertRecycling(HistoryEvent.createPackageUpgradedEvent(12345678, 3, 5, 7));
+        assertRecycling(HistoryEvent.createPackageRemovedEvent(12345678, 3, 7));
+
+        Assert.assertFalse(HistoryEvent.createPackageUpgradedEvent(12345678, 3, 5, 7).equals(
+                HistoryEvent.createPackageUpgradedEvent(12345678, 3, 6, 7)));
+    }
+
+    public void testParseMalformed() throws Exception {
+        EventRecord record = new EventRecord();
+        Assert.assertFalse(HistoryEvent.parseInto("", record));
+        Assert.assertFalse(HistoryEvent.parseInto("BATTERY_LEVEL", record));
+        Assert.assertFalse(HistoryEvent.parseInto("BATTERY_LEVEL 1234", record));
+        Assert.assertFalse(HistoryEvent.parseInto("BATTERY_LEVEL 12x4 42", record));
+        Assert.assertFalse(HistoryEvent.parseInto("NO_SUCH_TYPE 1234", record));
+        Assert.assertFalse(HistoryEvent.parseInto("PACKAGE_INSTALLED 1234 3", record));
+        Assert.assertFalse(HistoryEvent.parseInto("PACKAGE_UPGRADED 1234 3 5", record));
+        Assert.assertFalse(HistoryEvent.parseInto("PACKAGE_REMOVED 1234 3 -5", record));
+
+        Assert.assertTrue(HistoryEvent.parseInto("BATTERY_LEVEL 1234 42", record));
+        Assert.assertEquals(1234, record.getTimestamp());
+        Assert.assertEquals(42, record.getPercentage());
+    }
+
+    /**
+     * @return How many bytes a value of this type needs, assuming compressed references
+     */
+    private static int getSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return 4;
+    }
+
+    /**
+     * @return How many bytes the instance fields of a class need, not counting object headers
+     */
+    private static int getFieldBytes(Class<?> type) {
+        int returnMe = 0;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    returnMe += getSize(field.getType());
+                }
+            }
+        }
+        return returnMe;
+    }
+
+    /**
+     * @return How many bytes the contents of an array need, including any nested arrays
+     */
+    private static long getContentBytes(Object array) {
+        if (array == null) {
+            return 0;
+        }
+        Class<?> componentType = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+        long returnMe = (long)length * getSize(componentType);
+        if (componentType.isArray()) {
+            for (int i = 0; i < length; i++) {
+                returnMe += getContentBytes(Array.get(array, i));
+            }
+        }
+        return returnMe;
+    }
+
+    /**
+     * Each event should need little more than its primitive data. Before events got a class per
+     * type, every event carried fields for all types' payloads.
+     * <p>
+     * Measured from the class layouts rather than from the heap, since heap usage depends on when
+     * the garbage collector last ran.
+     */
+    public void testHeapFootprint() throws Exception {
+        final int count = 100000;
+        HistoryEvent[] events = new HistoryEvent[count];
+        for (int i = 0; i < count; i++) {
+            switch (i % 10) {
+                case 0:
+                    events[i] = HistoryEvent.createSystemBootingEvent(i, false);
+                    break;
+                case 1:
+                    events[i] = HistoryEvent.createStopChargingEvent(i);
+                    break;
+                case 2:
+                    events[i] = HistoryEvent.createInfoEvent(i, "Something happened");
+                    break;
+                case 9:
+                    events[i] = HistoryEvent.createSystemHaltingEvent(i);
+                    break;
+                default:
+                    events[i] = HistoryEvent.createBatteryLevelEvent(i, i % 100);
+            }
+        }
+
+        // A timestamp plus one payload field
+        for (int i = 0; i < 10; i++) {
+            Class<?> type = events[i].getClass();
+            int fieldBytes = getFieldBytes(type);
+            Assert.assertTrue(type.getSimpleName() + " needs " + fieldBytes + " bytes",
+                    fieldBytes <= 12);
+        }
+
+        // Loaded history is kept in columns, which is smaller still
+        EventColumns columns = new EventColumns(count);
+        for (HistoryEvent event : events) {
+            columns.add(event);
+        }
+        Assert.assertEquals(count, columns.size());
+
+        long columnBytes = 0;
+        for (Field field : EventColumns.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || !field.getType().isArray()) {
+                continue;
+            }
+            field.setAccessible(true);
+            columnBytes += getContentBytes(field.get(columns));
+        }
+        long bytesPerEvent = columnBytes / count;
+        Assert.assertTrue("Columns need " + bytesPerEvent + " bytes per event",
+                bytesPerEvent <= 16);
     }
 }
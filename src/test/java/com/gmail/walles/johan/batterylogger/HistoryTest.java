@@ -23,15 +23,23 @@ import junit.framework.TestCase;
 
 import org.junit.Assert;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 
 public class HistoryTest extends TestCase {
     private File testStorage;
+    private File legacyStorage;
     private long now;
     private History testMe;
 
@@ -40,14 +48,25 @@ public class HistoryTest extends TestCase {
         super.setUp();
 
         now = System.currentTimeMillis();
-        testStorage = File.createTempFile("historytest", ".txt");
+        testStorage = File.createTempFile("historytest", ".dir");
+        Assert.assertTrue(testStorage.delete());
+        legacyStorage = File.createTempFile("historytest", ".txt");
         testMe = new History(testStorage);
     }
 
     @Override
     protected void tearDown() throws Exception {
         try {
-            Assert.assertTrue(testStorage.delete());
+            File[] segments = testStorage.listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    Assert.assertTrue(segment.delete());
+                }
+                Assert.assertTrue(testStorage.delete());
+            }
+            Assert.assertTrue(!legacyStorage.exists() || legacyStorage.delete());
+            File lockFile = WriterLock.getLockFile(testStorage);
+            Assert.assertTrue(!lockFile.exists() || lockFile.delete());
         } finally {
             super.tearDown();
         }
@@ -122,11 +141,11 @@ public class HistoryTest extends TestCase {
 
     public void testOnlyBatteryEvents() throws Exception {
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 1 * History.HOUR_MS), 100));
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 100));
         assertNoEvents();
 
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 3 * History.HOUR_MS), 98));
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 98));
         assertNoEvents();
 
         // Drain timestamp should be between the sample timestamps
@@ -137,7 +156,7 @@ public class HistoryTest extends TestCase {
         assertValues(1.0);
 
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 5 * History.HOUR_MS), 94));
+                HistoryEvent.createBatteryLevelEvent(now + 5 * History.HOUR_MS, 94));
         assertNoEvents();
 
         assertDrainTimestamps(
@@ -150,21 +169,21 @@ public class HistoryTest extends TestCase {
 
     public void testRebootEvents() throws Exception {
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 1 * History.HOUR_MS), 51));
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 3 * History.HOUR_MS), 50));
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50));
 
         testMe.addEvent(
-                HistoryEvent.createSystemHaltingEvent(new Date(now + 5 * History.HOUR_MS)));
+                HistoryEvent.createSystemHaltingEvent(now + 5 * History.HOUR_MS));
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 7 * History.HOUR_MS), 51));
+                HistoryEvent.createBatteryLevelEvent(now + 7 * History.HOUR_MS, 51));
         testMe.addEvent(
-                HistoryEvent.createSystemBootingEvent(new Date(now + 9 * History.HOUR_MS), true));
+                HistoryEvent.createSystemBootingEvent(now + 9 * History.HOUR_MS, true));
 
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 11 * History.HOUR_MS), 50));
+                HistoryEvent.createBatteryLevelEvent(now + 11 * History.HOUR_MS, 50));
         testMe.addEvent(
-                HistoryEvent.createBatteryLevelEvent(new Date(now + 13 * History.HOUR_MS), 47));
+                HistoryEvent.createBatteryLevelEvent(now + 13 * History.HOUR_MS, 47));
 
         assertValues(0.5, 1.5);
         assertDrainTimestamps(
@@ -181,14 +200,14 @@ public class HistoryTest extends TestCase {
      * This would happen at unclean shutdowns; device crashes, battery runs out or is removed.
      */
     public void testMissingShutdownEvent() throws Exception {
-        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(new Date(now + 1 * History.HOUR_MS), 51));
-        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(new Date(now + 3 * History.HOUR_MS), 50));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50));
 
-        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(new Date(now + 7 * History.HOUR_MS), 48));
-        testMe.addEvent(HistoryEvent.createSystemBootingEvent(new Date(now + 9 * History.HOUR_MS), false));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 7 * History.HOUR_MS, 48));
+        testMe.addEvent(HistoryEvent.createSystemBootingEvent(now + 9 * History.HOUR_MS, false));
 
-        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(new Date(now + 11 * History.HOUR_MS), 46));
-        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(new Date(now + 13 * History.HOUR_MS), 45));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 11 * History.HOUR_MS, 46));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 13 * History.HOUR_MS, 45));
 
         // Assume unclean shutdown between last known event before the boot event and the boot event
         assertValues(0.5, 0.5, 0.5);
@@ -203,63 +222,829 @@ public class HistoryTest extends TestCase {
                 new Date(now + 9 * History.HOUR_MS));
     }
 
-    public void testMaintainFileSize() throws Exception {
-        Date now = new Date();
-        long lastFileSize = 0;
+    public void testMissingShutdownEventInRange() throws Exception {
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 7 * History.HOUR_MS, 48));
+        testMe.addEvent(HistoryEvent.createSystemBootingEvent(now + 9 * History.HOUR_MS, false));
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + 11 * History.HOUR_MS, 46));
+
+        // Not reading everything, so this is streamed from storage rather than cached
+        List<PlotEvent> events = new History(testStorage)
+                .getEvents(now + 2 * History.HOUR_MS, now + 12 * History.HOUR_MS);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("Unclean shutdown", events.get(0).description);
+        Assert.assertEquals(now + 8 * History.HOUR_MS, (long)events.get(0).msSinceEpoch);
+
+        // Events before the range don't count
+        events = new History(testStorage)
+                .getEvents(now + 8 * History.HOUR_MS, now + 12 * History.HOUR_MS);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(
+                now + 9 * History.HOUR_MS - History.FIVE_MINUTES_MS,
+                (long)events.get(0).msSinceEpoch);
+    }
+
+    private long getStorageSize() {
+        return new HistorySegments(testStorage).getSize();
+    }
 
-        char[] array = new char[10 * 1024];
+    public void testMaintainFileSize() throws Exception {
+        char[] array = new char[50 * 1024];
         Arrays.fill(array, 'x');
         final String longEventDescription = new String(array);
 
-        while (true) {
-            testMe.addEvent(HistoryEvent.createInfoEvent(now, longEventDescription));
+        // Log one large event per day for 20 days
+        long maxSize = 0;
+        for (long i = 20; i >= 0; i--) {
+            long then = now - i * 86400 * 1000;
+            testMe.addEvent(HistoryEvent.createInfoEvent(then, longEventDescription));
 
-            long fileSize = testStorage.length();
-            Assert.assertTrue("File should have been truncated before 500kb: " + fileSize,
-                    fileSize < 500 * 1024);
+            long size = getStorageSize();
+            Assert.assertTrue("History should have been truncated before 400kb: " + size,
+                    size <= 400 * 1024);
+            maxSize = Math.max(maxSize, size);
+        }
 
-            if (fileSize < lastFileSize) {
-                // It got truncated
-                Assert.assertTrue("File should have been allowed to grow to at least 350kb: " + lastFileSize,
-                        lastFileSize > 350 * 1024);
-                Assert.assertTrue("File should have been truncated to 250kb-350kb: " + fileSize,
-                        fileSize > 250 * 1024 && fileSize < 350 * 1024);
-                return;
-            }
+        Assert.assertTrue("History should have been allowed to grow to 350kb: " + maxSize,
+                maxSize > 350 * 1024);
 
-            lastFileSize = fileSize;
-        }
+        // Truncation should have deleted whole days, oldest first
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        Assert.assertTrue("Should have dropped old segments: " + segments.size(), segments.size() < 10);
+        Assert.assertEquals(new HistorySegments(testStorage).getSegmentFile(
+                HistorySegments.getDay(now)), segments.get(segments.size() - 1));
+        Assert.assertEquals(segments.size() - 1, testMe.getHistoryAgeDays());
     }
 
     /**
-     * Verify history file truncation by event age.
+     * Verify history truncation by event age.
      */
     public void testMaintainHistoryAge() throws Exception {
         Assert.assertEquals(0, testMe.getHistoryAgeDays());
 
-        Date now = new Date();
-
-        // Log 34 events into a History file, with 24h between each
-        for (long i = 34; i >= 0; i--) {
-            Date then = new Date(now.getTime() - i * 86400 * 1000);
+        // Log 41 events into a History, with 24h between each
+        for (long i = 40; i >= 0; i--) {
+            long then = now - i * 86400 * 1000;
             testMe.addEvent(HistoryEvent.createInfoEvent(then, "Something happened"));
+
+            if (i <= 34) {
+                Assert.assertTrue(testMe.getHistoryAgeDays() <= 34);
+            }
         }
 
+        // Verify that the age of the oldest event is what we expect
         Assert.assertEquals(34, testMe.getHistoryAgeDays());
         Assert.assertEquals(34, new History(testStorage).getHistoryAgeDays());
+        Assert.assertEquals(35, new HistorySegments(testStorage).getSegmentCount());
+
+        // INFO events from dropped segments are archived rather than lost
+        Assert.assertEquals(41, new History(testStorage).getEvents().size());
+    }
+
+    private void writeLegacyTextStorage(HistoryEvent ... events) throws IOException {
+        FileWriter writer = new FileWriter(legacyStorage);
+        try {
+            for (HistoryEvent event : events) {
+                writer.write(event.serializeToString() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testImportLegacyTextStorage() throws Exception {
+        writeLegacyTextStorage(
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51),
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50),
+                HistoryEvent.createSystemHaltingEvent(now + 5 * History.HOUR_MS),
+                HistoryEvent.createSystemBootingEvent(now + 9 * History.HOUR_MS, true),
+                HistoryEvent.createInfoEvent(now + 10 * History.HOUR_MS, "Something happened"),
+                HistoryEvent.createBatteryLevelEvent(now + 11 * History.HOUR_MS, 50),
+                HistoryEvent.createBatteryLevelEvent(now + 13 * History.HOUR_MS, 47));
+        long textSize = legacyStorage.length();
+
+        testMe = new History(testStorage, legacyStorage);
+        Assert.assertFalse(testMe.isEmpty());
+        Assert.assertFalse(legacyStorage.exists());
+        Assert.assertTrue(String.format(Locale.ENGLISH, "Text size=%d, binary size=%d",
+                textSize, getStorageSize()), getStorageSize() < textSize);
+
+        assertValues(0.5, 1.5);
+        assertEventDescriptions(
+                "System shutting down", "System starting up (charging)", "Something happened");
+
+        // Appending to imported history should work
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 15 * History.HOUR_MS, 45));
+        assertValues(0.5, 1.5, 1.0);
+    }
+
+    public void testImportLegacyBinaryStorageOnAppend() throws Exception {
+        // Write a single file binary history, as written by the previous version
+        History singleFile = new History(testStorage);
+        singleFile.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        Assert.assertEquals(1, segments.size());
+        Assert.assertTrue(segments.get(0).renameTo(legacyStorage));
+        Assert.assertTrue(SegmentIndex.getIndexFile(segments.get(0)).delete());
+        Assert.assertTrue(new File(testStorage, DrainRollups.HOURLY_FILE_NAME).delete());
+        Assert.assertTrue(new File(testStorage, DrainRollups.DAILY_FILE_NAME).delete());
+        Assert.assertTrue(testStorage.delete());
+
+        testMe = new History(testStorage, legacyStorage);
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50));
+
+        Assert.assertFalse(legacyStorage.exists());
+        assertValues(0.5);
+    }
+
+    public void testTruncatedLastEvent() throws Exception {
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50));
+
+        // Simulate a torn write of a third event
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        FileOutputStream out = new FileOutputStream(segments.get(segments.size() - 1), true);
+        try {
+            out.write(new byte[] { HistoryEvent.Type.BATTERY_LEVEL.tag, 0, 0, 1 });
+        } finally {
+            out.close();
+        }
+
+        assertValues(0.5);
+    }
+
+    public void testSeesEventsAppendedAfterReading() throws Exception {
+        Assert.assertTrue(testMe.isEmpty());
+
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
+        Assert.assertFalse(testMe.isEmpty());
+        Assert.assertEquals(0, testMe.getBatteryDrain().size());
+
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50));
+        Assert.assertEquals(1, testMe.getBatteryDrain().size());
+        Assert.assertEquals(0.5, testMe.getBatteryDrain().get(0).drainSpeed, 0.0);
+    }
+
+    public void testAddEventsInOneBatch() throws Exception {
+        long yesterday = now - 86400 * 1000;
+        testMe.addEvents(Arrays.asList(
+                HistoryEvent.createBatteryLevelEvent(yesterday, 51),
+                HistoryEvent.createSystemHaltingEvent(yesterday + 1),
+                HistoryEvent.createSystemBootingEvent(now - 2 * History.HOUR_MS, false),
+                HistoryEvent.createBatteryLevelEvent(now - History.HOUR_MS, 50),
+                HistoryEvent.createBatteryLevelEvent(now, 49)));
+        testMe.close();
+
+        HistorySegments segments = new HistorySegments(testStorage);
+        Assert.assertEquals(2, segments.getSegmentCount());
+        Assert.assertEquals(1, testMe.getHistoryAgeDays());
+
+        assertValues(1.0);
+        assertEventDescriptions("System shutting down", "System starting up (not charging)");
+
+        // Appending after close() should re-open storage
+        testMe.addEvents(Collections.singletonList(
+                HistoryEvent.createBatteryLevelEvent(now + History.HOUR_MS, 47)));
+        testMe.close();
+        assertValues(1.0, 2.0);
+    }
+
+    public void testRangeQueries() throws Exception {
+        long start = (HistorySegments.getDay(now) - 5) * HistorySegments.DAY_MS;
+
+        // Five days of hourly samples, with a reboot every day at noon
+        List<HistoryEvent> events = new ArrayList<>();
+        int percentage = 100;
+        for (long t = start; t < start + 5 * HistorySegments.DAY_MS; t += History.HOUR_MS) {
+            if ((t / History.HOUR_MS) % 24 == 12) {
+                events.add(HistoryEvent.createSystemHaltingEvent(t));
+                events.add(HistoryEvent.createSystemBootingEvent(t + 1, false));
+                continue;
+            }
+            events.add(HistoryEvent.createBatteryLevelEvent(t, percentage));
+            percentage = percentage == 0 ? 100 : percentage - 1;
+        }
+        testMe.addEvents(events);
+
+        // Two days starting in the middle of a day
+        long from = start + 2 * HistorySegments.DAY_MS + 6 * History.HOUR_MS;
+        long to = from + 2 * HistorySegments.DAY_MS;
+
+        List<PlotEvent> plotEvents = testMe.getEvents(from, to);
+        Assert.assertEquals(4, plotEvents.size());
+        for (PlotEvent event : plotEvents) {
+            Assert.assertTrue(event.msSinceEpoch >= from);
+            Assert.assertTrue(event.msSinceEpoch <= to);
+        }
+
+        List<DrainSample> drain = testMe.getBatteryDrain(from, to);
+        Assert.assertFalse(drain.isEmpty());
+        for (DrainSample sample : drain) {
+            Assert.assertTrue(sample.startMsSinceEpoch >= from);
+            Assert.assertTrue(sample.endMsSinceEpoch <= to);
+        }
+
+        for (DrainSample sample : testMe.getDrainLines(from, to)) {
+            Assert.assertTrue(sample.startMsSinceEpoch >= from);
+            Assert.assertTrue(sample.endMsSinceEpoch <= to);
+        }
+
+        // Everything should still be there for full range queries
+        Assert.assertEquals(10, testMe.getEvents().size());
+    }
+
+    public void testStreamingCursor() throws Exception {
+        long start = (HistorySegments.getDay(now) - 3) * HistorySegments.DAY_MS;
+        fillWithSamples(testMe, start, start + 3 * HistorySegments.DAY_MS);
+
+        long from = start + HistorySegments.DAY_MS - 1;
+        long to = start + 2 * HistorySegments.DAY_MS + History.HOUR_MS;
+        EventColumns all = new EventColumns();
+        new HistorySegments(testStorage).readAll(all);
+        EventColumns.Cursor expected = all.cursor(from, to);
+
+        HistoryCursor actual = new HistorySegments(testStorage).cursor(from, to);
+        int count = 0;
+        while (expected.moveToNext()) {
+            Assert.assertTrue(actual.moveToNext());
+            Assert.assertEquals(expected.toHistoryEvent(), actual.toHistoryEvent());
+            count++;
+        }
+        Assert.assertFalse(actual.moveToNext());
+        Assert.assertFalse(actual.moveToNext());
+        Assert.assertTrue(count > 24 * 4);
+
+        // Stopping early is fine
+        actual = new HistorySegments(testStorage).cursor(from, to);
+        Assert.assertTrue(actual.moveToNext());
+        Assert.assertTrue(actual.getTimestamp() >= from);
+    }
+
+    public void testQuery() throws Exception {
+        long start = (HistorySegments.getDay(now) - 3) * HistorySegments.DAY_MS;
+        fillWithSamples(testMe, start, start + 3 * HistorySegments.DAY_MS);
+        testMe.addEvent(HistoryEvent.createSystemBootingEvent(
+                start + 3 * HistorySegments.DAY_MS + History.HOUR_MS, true));
+        testMe.addEvent(HistoryEvent.createInfoEvent(
+                start + 3 * HistorySegments.DAY_MS + 2 * History.HOUR_MS, "Hej"));
+
+        long from = start + HistorySegments.DAY_MS + 1;
+        long to = Long.MAX_VALUE;
+        EnumSet<HistoryEvent.Type> types = EnumSet.of(
+                HistoryEvent.Type.SYSTEM_BOOT,
+                HistoryEvent.Type.START_CHARGING,
+                HistoryEvent.Type.INFO);
+        List<HistoryEvent> expected = new ArrayList<>();
+        EventColumns all = new EventColumns();
+        new HistorySegments(testStorage).readAll(all);
+        EventColumns.Cursor cursor = all.cursor(from, to);
+        while (cursor.moveToNext()) {
+            if (types.contains(cursor.getType())) {
+                expected.add(cursor.toHistoryEvent());
+            }
+        }
+        Assert.assertTrue(expected.size() > 2);
+
+        // First streamed from storage, then from the cache once everything has been read
+        History history = new History(testStorage);
+        Assert.assertEquals(expected, readAll(history.query(from, to, types)));
+        history.getEvents();
+        Assert.assertEquals(expected, readAll(history.query(from, to, types)));
+
+        Assert.assertEquals(Collections.<HistoryEvent>emptyList(), readAll(history.query(
+                from, to, EnumSet.of(HistoryEvent.Type.PACKAGE_INSTALLED))));
+    }
+
+    private static List<HistoryEvent> readAll(HistoryCursor cursor) {
+        List<HistoryEvent> returnMe = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            returnMe.add(cursor.toHistoryEvent());
+        }
+        return returnMe;
+    }
+
+    public void testTwoWriters() throws Exception {
+        History other = new History(testStorage);
+        List<HistoryEvent> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            HistoryEvent event =
+                    HistoryEvent.createBatteryLevelEvent(now + i * History.FIVE_MINUTES_MS, 90 - i);
+            expected.add(event);
+
+            // Each writer must notice what the other one has written
+            (i % 2 == 0 ? testMe : other).addEvent(event);
+        }
+
+        Assert.assertEquals(expected,
+                readAll(new History(testStorage).query(Long.MIN_VALUE, Long.MAX_VALUE,
+                        EnumSet.allOf(HistoryEvent.Type.class))));
+        Assert.assertEquals(0, new History(testStorage).verify());
+    }
+
+    public void testWritersInParallel() throws Exception {
+        final int perThread = 50;
+        List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < 4; t++) {
+            final History history = new History(testStorage);
+            final int percentage = 10 + t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            // Same timestamp for all, since we don't know in which order they
+                            // will end up
+                            history.addEvent(HistoryEvent.createBatteryLevelEvent(now, percentage));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(Collections.<Throwable>emptyList(), failures);
+
+        int[] counts = new int[4];
+        HistoryCursor event = new History(testStorage).query(Long.MIN_VALUE, Long.MAX_VALUE,
+                EnumSet.allOf(HistoryEvent.Type.class));
+        while (event.moveToNext()) {
+            counts[event.getPercentage() - 10]++;
+        }
+        int[] expected = new int[] { perThread, perThread, perThread, perThread };
+        Assert.assertEquals(Arrays.toString(expected), Arrays.toString(counts));
+        Assert.assertEquals(0, new History(testStorage).verify());
+    }
+
+    public void testSnapshot() throws Exception {
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now, 50));
+        History reader = new History(testStorage);
+        EventColumns.Snapshot before = reader.snapshot();
+        Assert.assertEquals(1, before.size());
+        Assert.assertEquals(before.getVersion(), reader.snapshot().getVersion());
+
+        testMe.addEvent(HistoryEvent.createBatteryLevelEvent(now + History.HOUR_MS, 49));
+        EventColumns.Snapshot after = reader.snapshot();
+        Assert.assertEquals(2, after.size());
+        Assert.assertTrue(after.getVersion() > before.getVersion());
+        Assert.assertEquals(1, before.size());
+
+        // Without storage
+        History inMemory = History.createFakeHistory();
+        before = inMemory.snapshot();
+        inMemory.addEvent(HistoryEvent.createInfoEvent(System.currentTimeMillis(), "Hej"));
+        after = inMemory.snapshot();
+        Assert.assertEquals(before.size() + 1, after.size());
+        Assert.assertTrue(after.getVersion() > before.getVersion());
+    }
+
+    public void testReadAllInParallel() throws Exception {
+        long start = (HistorySegments.getDay(now) - 10) * HistorySegments.DAY_MS;
+        fillWithSamples(testMe, start, now);
+        testMe.addEvent(HistoryEvent.createInfoEvent(now, "Last"));
+
+        EventColumns all = new EventColumns();
+        HistorySegments segments = new HistorySegments(testStorage);
+        Assert.assertNotNull(segments.readAll(all));
+
+        EventColumns.Cursor actual = all.cursor();
+        HistoryCursor expected = segments.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (expected.moveToNext()) {
+            Assert.assertTrue(actual.moveToNext());
+            Assert.assertEquals(expected.toHistoryEvent(), actual.toHistoryEvent());
+        }
+        Assert.assertFalse(actual.moveToNext());
+
+        // Reading what has been appended since should continue where the parallel read ended
+        EventColumns appended = new EventColumns();
+        HistorySegments.ReadPosition position = segments.readAll(new EventColumns());
+        Assert.assertNotNull(position);
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 1, "Appended"));
+        Assert.assertNotNull(new HistorySegments(testStorage).readSince(position, appended));
+        Assert.assertEquals(1, appended.size());
+    }
+
+    public void testReverseCursor() throws Exception {
+        Assert.assertNull(testMe.getLastEvent());
+
+        long start = (HistorySegments.getDay(now) - 3) * HistorySegments.DAY_MS;
+        fillWithSamples(testMe, start, now - HistorySegments.DAY_MS);
+        testMe.addEvent(HistoryEvent.createInfoEvent(now - 1000, "Last"));
+
+        EventColumns all = new EventColumns();
+        new HistorySegments(testStorage).readAll(all);
+        Assert.assertTrue(all.size() > 3 * SegmentIndex.INTERVAL);
 
-        // Record the size of the history file
-        long fileSize0 = testStorage.length();
+        long from = start + HistorySegments.DAY_MS + 1234;
+        EventColumns.Cursor expected = all.reverseCursor();
+        HistoryCursor actual = new HistorySegments(testStorage).reverseCursor(from);
+        while (expected.moveToNext() && expected.getTimestamp() >= from) {
+            Assert.assertTrue(actual.moveToNext());
+            Assert.assertEquals(expected.toHistoryEvent(), actual.toHistoryEvent());
+        }
+        Assert.assertFalse(actual.moveToNext());
+
+        Assert.assertEquals(HistoryEvent.createInfoEvent(now - 1000, "Last"),
+                new History(testStorage).getLastEvent());
+    }
+
+    public void testPlotDataMatchesSeparateQueries() throws Exception {
+        Assert.assertTrue(testMe.getPlotData().isEmpty());
+
+        long start = (HistorySegments.getDay(now) - 3) * HistorySegments.DAY_MS;
+        testMe.addEvent(HistoryEvent.createSystemBootingEvent(start - 1000, false));
+        fillWithSamples(testMe, start, start + HistorySegments.DAY_MS);
+        testMe.addEvent(HistoryEvent.createInfoEvent(
+                start + HistorySegments.DAY_MS, "Something happened"));
+        testMe.addEvent(HistoryEvent.createSystemBootingEvent(
+                start + HistorySegments.DAY_MS + 1000, true));
+        fillWithSamples(testMe, start + 2 * HistorySegments.DAY_MS, now);
+
+        History history = new History(testStorage);
+        PlotData plotData = history.getPlotData();
+        Assert.assertFalse(plotData.isEmpty());
+        Assert.assertEquals(toString(history.getBatteryDrain()), toString(plotData.drainDots));
+        Assert.assertEquals(toString(history.getDrainLines()), toString(plotData.drainLines));
+
+        List<PlotEvent> events = history.getEvents();
+        Assert.assertEquals(events.size(), plotData.events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Assert.assertEquals(events.get(i).description, plotData.events.get(i).description);
+            Assert.assertEquals(
+                    events.get(i).msSinceEpoch, plotData.events.get(i).msSinceEpoch, 0.0);
+        }
+    }
+
+    private static String toString(List<DrainSample> samples) {
+        StringBuilder builder = new StringBuilder();
+        for (DrainSample sample : samples) {
+            builder.append(sample.startMsSinceEpoch).append('-').append(sample.endMsSinceEpoch)
+                    .append(": ").append(sample.drainSpeed).append('\n');
+        }
+        return builder.toString();
+    }
+
+    public void testReaderSeesAppendedEvents() throws Exception {
+        long yesterday = now - HistorySegments.DAY_MS;
+        testMe.addEvent(HistoryEvent.createInfoEvent(yesterday, "one"));
 
-        // Truncate the file
-        testMe.dropOldHistory();
+        History reader = new History(testStorage);
+        Assert.assertEquals(1, reader.getEvents().size());
 
-        // Verify that the file has shrunk
-        Assert.assertTrue(String.format(Locale.getDefault(), "Old size=%d, new size=%d",
-            fileSize0, testStorage.length()), testStorage.length() < fileSize0);
+        // Appended to the segment we have already read from
+        testMe.addEvent(HistoryEvent.createInfoEvent(yesterday + 1, "two"));
+        Assert.assertEquals(2, reader.getEvents().size());
 
-        // Verify that the age of the oldest event in the file is what we expect
-        Assert.assertEquals(27, testMe.getHistoryAgeDays());
-        Assert.assertEquals(27, new History(testStorage).getHistoryAgeDays());
+        // In a new segment
+        testMe.addEvent(HistoryEvent.createInfoEvent(now, "three"));
+        List<PlotEvent> events = reader.getEvents();
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals("one", events.get(0).description);
+        Assert.assertEquals("two", events.get(1).description);
+        Assert.assertEquals("three", events.get(2).description);
+    }
+
+    public void testReaderRereadsRewrittenStorage() throws Exception {
+        testMe.addEvent(HistoryEvent.createInfoEvent(now, "one"));
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 1, "two"));
+        testMe.close();
+
+        History reader = new History(testStorage);
+        Assert.assertEquals(2, reader.getEvents().size());
+
+        // Rewrite the segment with different events, making it longer than before
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        Assert.assertEquals(1, segments.size());
+        Assert.assertTrue(segments.get(0).delete());
+        Assert.assertTrue(SegmentIndex.getIndexFile(segments.get(0)).delete());
+        History writer = new History(testStorage);
+        writer.addEvents(Arrays.asList(
+                HistoryEvent.createInfoEvent(now + 2, "three"),
+                HistoryEvent.createInfoEvent(now + 3, "four"),
+                HistoryEvent.createInfoEvent(now + 4, "five")));
+        writer.close();
+
+        List<PlotEvent> events = reader.getEvents();
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals("three", events.get(0).description);
+    }
+
+    public void testReaderRereadsAfterDroppedHistory() throws Exception {
+        testMe.addEvent(
+                HistoryEvent.createInfoEvent(now - 2 * HistorySegments.DAY_MS, "old"));
+        testMe.addEvent(HistoryEvent.createInfoEvent(now, "new"));
+
+        History reader = new History(testStorage);
+        Assert.assertEquals(2, reader.getEvents().size());
+
+        new HistorySegments(testStorage).dropOldestSegment();
+
+        List<PlotEvent> events = reader.getEvents();
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("new", events.get(0).description);
+    }
+
+    public void testAppendAfterTornWrite() throws Exception {
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 1 * History.HOUR_MS, 51));
+        testMe.close();
+
+        // Simulate a torn write of a second event
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        File segment = segments.get(segments.size() - 1);
+        FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(new byte[] { 13, HistoryEvent.Type.BATTERY_LEVEL.tag, 0, 0, 1 });
+        } finally {
+            out.close();
+        }
+
+        // The torn write should be dropped before appending
+        testMe = new History(testStorage);
+        testMe.addEvent(
+                HistoryEvent.createBatteryLevelEvent(now + 3 * History.HOUR_MS, 50));
+        testMe.close();
+
+        // Any torn bytes left in the middle of the segment would show up as damage
+        Assert.assertEquals(0, testMe.verify());
+        assertValues(0.5);
+    }
+
+    public void testVerifyFindsDamage() throws Exception {
+        testMe.addEvent(HistoryEvent.createInfoEvent(now, "one"));
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 1, "two"));
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 2, "three"));
+        testMe.close();
+        Assert.assertEquals(0, testMe.verify());
+
+        // Damage the checksum of the second event
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        File segment = segments.get(segments.size() - 1);
+        MappedHistoryEvents.EventIterator iterator = MappedHistoryEvents.map(segment).iterator();
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(iterator.hasNext());
+            iterator.next();
+        }
+        Assert.assertTrue(iterator.hasNext());
+        long secondEventEnd = iterator.getNextOffset();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(secondEventEnd - 1);
+            int last = file.read();
+            file.seek(secondEventEnd - 1);
+            file.write(last ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        // The third event is stored as a delta from the second one, so it's lost as well
+        Assert.assertEquals(2, testMe.verify());
+
+        // Checksums aren't checked on plain reads
+        Assert.assertEquals(3, new History(testStorage).getEvents().size());
+    }
+
+    public void testVerifyFindsDamagedLength() throws Exception {
+        testMe.addEvent(HistoryEvent.createInfoEvent(now, "one"));
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 1, "two"));
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 2, "three"));
+        testMe.close();
+
+        // Replace the length of the second event with a negative number
+        List<File> segments = new HistorySegments(testStorage).getSegmentFiles();
+        File segment = segments.get(segments.size() - 1);
+        MappedHistoryEvents.EventIterator iterator = MappedHistoryEvents.map(segment).iterator();
+        Assert.assertTrue(iterator.hasNext());
+        iterator.next();
+        Assert.assertTrue(iterator.hasNext());
+        long secondEventStart = iterator.getNextOffset();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(secondEventStart);
+            // Integer.MIN_VALUE in the low 32 bits, and the sign bit set
+            file.write(new byte[] {
+                    (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x88,
+                    (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0x01 });
+        } finally {
+            file.close();
+        }
+
+        Assert.assertTrue(testMe.verify() > 0);
+    }
+
+    public void testAppendToVersion1Segment() throws Exception {
+        HistorySegments segments = new HistorySegments(testStorage);
+        Assert.assertTrue(testStorage.mkdirs());
+        File segment = segments.getSegmentFile(HistorySegments.getDay(now));
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment));
+        try {
+            out.writeInt(HistorySegments.FILE_MAGIC);
+            out.writeInt(HistorySegments.FORMAT_PLAIN);
+            HistoryEvent.createInfoEvent(now, "one").writeTo(out);
+        } finally {
+            out.close();
+        }
+        long version1Length = segment.length();
+
+        testMe.addEvent(HistoryEvent.createInfoEvent(now + 1, "two"));
+        testMe.close();
+
+        // Version 1 events are unframed
+        Assert.assertEquals(version1Length + 1 + 8 + 4 + 3, segment.length());
+
+        List<PlotEvent> events = new History(testStorage).getEvents();
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("one", events.get(0).description);
+        Assert.assertEquals("two", events.get(1).description);
+    }
+
+    private static void fillWithSamples(History history, long start, long end) throws IOException {
+        List<HistoryEvent> events = new ArrayList<>();
+        int percentage = 100;
+        for (long timestamp = start; timestamp < end; timestamp += 15 * 60 * 1000) {
+            events.add(HistoryEvent.createBatteryLevelEvent(timestamp, percentage));
+            percentage--;
+            if (percentage < 10) {
+                events.add(HistoryEvent.createStartChargingEvent(timestamp + 1));
+                events.add(HistoryEvent.createStopChargingEvent(timestamp + 2));
+                percentage = 100;
+            }
+        }
+        history.addEvents(events);
+        history.close();
+    }
+
+    public void testRollupsRecreatedFromStorage() throws Exception {
+        long start = now - 3 * HistorySegments.DAY_MS;
+        long middle = now - HistorySegments.DAY_MS;
+        fillWithSamples(testMe, start, middle);
+
+        // Simulate history recorded before we had rollups
+        Assert.assertTrue(new File(testStorage, DrainRollups.HOURLY_FILE_NAME).delete());
+        Assert.assertTrue(new File(testStorage, DrainRollups.DAILY_FILE_NAME).delete());
+        Assert.assertFalse(new History(testStorage).getHourlyDrain().isEmpty());
+
+        fillWithSamples(new History(testStorage), middle, now);
+
+        DrainRollups fromEvents = new DrainRollups(History.HOUR_MS);
+        fromEvents.add(new HistorySegments(testStorage).cursor(Long.MIN_VALUE, Long.MAX_VALUE));
+        List<DrainRollup> expected = fromEvents.getRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        List<DrainRollup> actual =
+                new History(testStorage).getHourlyRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).startMsSinceEpoch, actual.get(i).startMsSinceEpoch);
+            Assert.assertEquals(expected.get(i).getMeanDrain(), actual.get(i).getMeanDrain());
+            Assert.assertEquals(expected.get(i).dischargeMs, actual.get(i).dischargeMs);
+        }
+
+        long dailyDischargeMs = 0;
+        for (DrainRollup rollup :
+                new History(testStorage).getDailyRollups(Long.MIN_VALUE, Long.MAX_VALUE))
+        {
+            dailyDischargeMs += rollup.dischargeMs;
+        }
+        long hourlyDischargeMs = 0;
+        for (DrainRollup rollup : actual) {
+            hourlyDischargeMs += rollup.dischargeMs;
+        }
+        Assert.assertEquals(hourlyDischargeMs, dailyDischargeMs);
+
+        List<DrainSample> dailyDrain = new History(testStorage).getDailyDrain();
+        Assert.assertFalse(dailyDrain.isEmpty());
+        for (DrainSample sample : dailyDrain) {
+            Assert.assertEquals((double)HistorySegments.DAY_MS,
+                    sample.endMsSinceEpoch - sample.startMsSinceEpoch, 0.0);
+        }
+    }
+
+    public void testTieredRetention() throws Exception {
+        testMe.setRawHistoryDays(10);
+        long start = now - 40 * HistorySegments.DAY_MS;
+        for (int day = 0; day < 40; day += 5) {
+            long dayStart = start + day * HistorySegments.DAY_MS;
+            testMe.addEvent(HistoryEvent.createSystemBootingEvent(dayStart, false));
+            fillWithSamples(testMe, dayStart + 1, dayStart + 5 * HistorySegments.DAY_MS);
+        }
+
+        // Raw events only for the most recent days
+        Assert.assertTrue(new HistorySegments(testStorage).getSegmentCount() <= 11);
+        List<DrainSample> drain = new History(testStorage).getBatteryDrain();
+        Assert.assertTrue(drain.get(0).startMsSinceEpoch > now - 11 * HistorySegments.DAY_MS);
+
+        // Boots kept for all of it
+        int bootCount = 0;
+        for (PlotEvent event : new History(testStorage).getEvents()) {
+            if (event.description.startsWith("System starting up")) {
+                bootCount++;
+            }
+        }
+        Assert.assertEquals(8, bootCount);
+
+        // Drain statistics kept for all of it
+        List<DrainRollup> daily =
+                new History(testStorage).getDailyRollups(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertTrue(daily.size() >= 40);
+        Assert.assertNotNull(daily.get(1).getMeanDrain());
+    }
+
+    public void testCompactFormat() throws Exception {
+        long start = now - 30 * HistorySegments.DAY_MS;
+
+        File framedStorage = new File(testStorage.getPath() + "-framed");
+        try {
+            History framed = new History(framedStorage, null, HistorySegments.FORMAT_FRAMED);
+            History compact = new History(testStorage, null, HistorySegments.FORMAT_COMPACT);
+            fillWithSamples(framed, start, now);
+            fillWithSamples(compact, start, now);
+
+            long framedSize = 0;
+            for (File segment : new HistorySegments(framedStorage).getSegmentFiles()) {
+                framedSize += segment.length();
+            }
+            long compactSize = getStorageSize();
+            Assert.assertTrue("Compact " + compactSize + " bytes, framed " + framedSize + " bytes",
+                    compactSize * 2 < framedSize);
+
+            // Reading part of a day should start decoding at an indexed keyframe
+            long from = start + 10 * HistorySegments.DAY_MS + 7 * History.HOUR_MS;
+            long to = from + 5 * History.HOUR_MS;
+            List<DrainSample> compactDrain = compact.getBatteryDrain(from, to);
+            Assert.assertFalse(compactDrain.isEmpty());
+            Assert.assertEquals(framed.getBatteryDrain(from, to).size(), compactDrain.size());
+
+            Assert.assertEquals(framed.getBatteryDrain().size(), compact.getBatteryDrain().size());
+            Assert.assertEquals(framed.getEvents().size(), compact.getEvents().size());
+            Assert.assertEquals(0, compact.verify());
+        } finally {
+            File[] files = framedStorage.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Assert.assertTrue(file.delete());
+                }
+            }
+            Assert.assertTrue(!framedStorage.exists() || framedStorage.delete());
+            File lockFile = WriterLock.getLockFile(framedStorage);
+            Assert.assertTrue(!lockFile.exists() || lockFile.delete());
+        }
+    }
+
+    public void testPackageEvents() throws Exception {
+        long bootTimestamp = now - 2 * History.HOUR_MS;
+        SystemState a = new SystemState(now - History.HOUR_MS, 50, false, bootTimestamp);
+        a.addInstalledApp("a.b.c", "ABC", "1.2.3");
+        SystemState b = new SystemState(now, 50, false, bootTimestamp);
+        b.addInstalledApp("a.b.c", "ABC", "2.3.4");
+        b.addInstalledApp("d.e.f", "DEF", "2.3.4");
+        testMe.addEventsSince(b, a);
+
+        // Another history must find the packages in the persisted dictionary
+        List<PlotEvent> events = new History(testStorage).getEvents();
+        List<String> descriptions = new ArrayList<>();
+        for (PlotEvent event : events) {
+            descriptions.add(event.description);
+        }
+        Collections.sort(descriptions);
+        Assert.assertEquals(
+                Arrays.asList("ABC upgraded from 1.2.3 to 2.3.4", "DEF 2.3.4 installed"),
+                descriptions);
+    }
+
+    public void testPackageEventsFromTwoWriters() throws Exception {
+        long bootTimestamp = now - 2 * History.HOUR_MS;
+        SystemState empty = new SystemState(now - History.HOUR_MS, 50, false, bootTimestamp);
+        SystemState withAbc = new SystemState(now, 50, false, bootTimestamp);
+        withAbc.addInstalledApp("a.b.c", "ABC", "1.2.3");
+        SystemState withDef = new SystemState(now, 50, false, bootTimestamp);
+        withDef.addInstalledApp("d.e.f", "DEF", "2.3.4");
+
+        // Both writers have loaded the dictionary before either adds anything to it
+        History other = new History(testStorage);
+        testMe.getPackageDictionary();
+        other.getPackageDictionary();
+
+        testMe.addEventsSince(withAbc, empty);
+        other.addEventsSince(withDef, empty);
+
+        List<String> descriptions = new ArrayList<>();
+        for (PlotEvent event : new History(testStorage).getEvents()) {
+            descriptions.add(event.description);
+        }
+        Collections.sort(descriptions);
+        Assert.assertEquals(
+                Arrays.asList("ABC 1.2.3 installed", "DEF 2.3.4 installed"), descriptions);
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.IOException;
+
+public class PackageDictionaryTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = File.createTempFile("packagedictionarytest", ".txt");
+        Assert.assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            Assert.assertTrue(!file.exists() || file.delete());
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testIdsSurviveReloading() throws Exception {
+        PackageDictionary testMe = PackageDictionary.load(file);
+        int abc = testMe.getPackageId(new InstalledApp("a.b.c", "Räksmörgås", "1.2 beta"));
+        int def = testMe.getPackageId(new InstalledApp("d.e.f", "DEF", "1.2 beta"));
+        int version = testMe.getVersionId("1.2 beta");
+        Assert.assertFalse(file.exists());
+        testMe.flush();
+
+        PackageDictionary loaded = PackageDictionary.load(file);
+        Assert.assertEquals(abc, loaded.findPackageId("a.b.c"));
+        Assert.assertEquals(def, loaded.findPackageId("d.e.f"));
+        Assert.assertEquals(PackageDictionary.NOT_FOUND, loaded.findPackageId("g.h.i"));
+        Assert.assertEquals("Räksmörgås", loaded.getDisplayName(abc));
+        Assert.assertEquals("d.e.f", loaded.getDottedName(def));
+        Assert.assertEquals("1.2 beta", loaded.getVersionName(version));
+    }
+
+    public void testInterning() throws Exception {
+        PackageDictionary testMe = new PackageDictionary();
+        int version = testMe.getVersionId("1.2.3");
+        Assert.assertEquals(version, testMe.getVersionId("1.2.3"));
+        Assert.assertFalse(version == testMe.getVersionId("1.2.4"));
+
+        int abc = testMe.getPackageId(new InstalledApp("a.b.c", "ABC", "1.2.3"));
+        Assert.assertEquals(abc, testMe.getPackageId(new InstalledApp("a.b.c", "ABC", "1.2.4")));
+    }
+
+    public void testRenamedPackage() throws Exception {
+        PackageDictionary testMe = PackageDictionary.load(file);
+        int abc = testMe.getPackageId(new InstalledApp("a.b.c", "ABC", "1.2.3"));
+
+        // Events from before the rename must keep the old name
+        int renamed = testMe.getPackageId(new InstalledApp("a.b.c", "Abc", "1.2.4"));
+        Assert.assertFalse(abc == renamed);
+        Assert.assertEquals("ABC", testMe.getDisplayName(abc));
+        Assert.assertEquals("Abc", testMe.getDisplayName(renamed));
+        Assert.assertEquals("a.b.c", testMe.getDottedName(renamed));
+        Assert.assertEquals(renamed, testMe.findPackageId("a.b.c"));
+
+        testMe.flush();
+        PackageDictionary loaded = PackageDictionary.load(file);
+        Assert.assertEquals("ABC", loaded.getDisplayName(abc));
+        Assert.assertEquals("Abc", loaded.getDisplayName(renamed));
+        Assert.assertEquals(renamed, loaded.findPackageId("a.b.c"));
+    }
+
+    public void testRefreshSeesOtherWriters() throws Exception {
+        PackageDictionary reader = PackageDictionary.load(file);
+        Assert.assertEquals(PackageDictionary.NOT_FOUND, reader.findPackageId("a.b.c"));
+
+        PackageDictionary writer = PackageDictionary.load(file);
+        int abc = writer.getPackageId(new InstalledApp("a.b.c", "ABC", "1.2.3"));
+        writer.flush();
+
+        reader.refresh();
+        Assert.assertEquals(abc, reader.findPackageId("a.b.c"));
+    }
+
+    public void testFlushDoesNotOverwriteOtherWriters() throws Exception {
+        PackageDictionary first = PackageDictionary.load(file);
+        PackageDictionary second = PackageDictionary.load(file);
+
+        int abc = first.getPackageId(new InstalledApp("a.b.c", "ABC", "1.2.3"));
+        first.flush();
+
+        // Both got the same id for different packages, so this one must not be written
+        Assert.assertEquals(abc, second.getPackageId(new InstalledApp("d.e.f", "DEF", "1.2.3")));
+        try {
+            second.flush();
+            Assert.fail("Flushing over another writer's additions should fail");
+        } catch (IOException e) {
+            // Expected exception intentionally ignored
+        }
+
+        // Refreshing drops the conflicting addition and hands out a new id
+        second.refresh();
+        Assert.assertEquals("a.b.c", second.getDottedName(abc));
+        int def = second.getPackageId(new InstalledApp("d.e.f", "DEF", "1.2.3"));
+        Assert.assertFalse(abc == def);
+        second.flush();
+
+        PackageDictionary loaded = PackageDictionary.load(file);
+        Assert.assertEquals("a.b.c", loaded.getDottedName(abc));
+        Assert.assertEquals("d.e.f", loaded.getDottedName(def));
+    }
+
+    public void testUnknownIds() {
+        PackageDictionary testMe = new PackageDictionary();
+        Assert.assertEquals("package #3", testMe.getDisplayName(3));
+        Assert.assertEquals("version #4", testMe.getVersionName(4));
+    }
+}
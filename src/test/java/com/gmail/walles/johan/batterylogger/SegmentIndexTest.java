@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Johan Walles <johan.walles@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.walles.johan.batterylogger;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SegmentIndexTest extends TestCase {
+    private static final int EVENT_COUNT = 1000;
+
+    private File directory;
+    private File segment;
+    private long dayStart;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = File.createTempFile("segmentindextest", ".dir");
+        Assert.assertTrue(directory.delete());
+
+        long day = HistorySegments.getDay(System.currentTimeMillis());
+        dayStart = day * HistorySegments.DAY_MS;
+
+        List<HistoryEvent> events = new ArrayList<>();
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            events.add(HistoryEvent.createBatteryLevelEvent(dayStart + i * 1000, i % 100));
+        }
+        HistorySegments segments = new HistorySegments(directory);
+        segments.append(events);
+        segments.close();
+
+        segment = segments.getSegmentFile(day);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Assert.assertTrue(file.delete());
+                }
+            }
+            Assert.assertTrue(directory.delete());
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    private void assertFindsEvent(SegmentIndex index, int eventNumber) throws Exception {
+        long timestamp = dayStart + eventNumber * 1000;
+        long offset = index.findOffset(timestamp);
+
+        MappedHistoryEvents.EventIterator iterator =
+                MappedHistoryEvents.map(segment).iterator(offset);
+        int skipped = 0;
+        while (true) {
+            Assert.assertTrue(iterator.hasNext());
+            HistoryEvent event = iterator.next();
+            Assert.assertTrue(event.getTimestamp() <= timestamp);
+            if (event.getTimestamp() == timestamp) {
+                break;
+            }
+            skipped++;
+        }
+
+        Assert.assertTrue("Skipped " + skipped + " events", skipped <= SegmentIndex.INTERVAL);
+    }
+
+    private void assertIndexWorks() throws Exception {
+        SegmentIndex index = SegmentIndex.load(segment);
+        Assert.assertEquals(EVENT_COUNT, index.getEventCount());
+
+        assertFindsEvent(index, 0);
+        assertFindsEvent(index, 1);
+        assertFindsEvent(index, SegmentIndex.INTERVAL);
+        assertFindsEvent(index, 500);
+        assertFindsEvent(index, EVENT_COUNT - 1);
+
+        Assert.assertEquals(MappedHistoryEvents.HEADER_SIZE, index.findOffset(dayStart - 1));
+    }
+
+    public void testIndexWrittenOnAppend() throws Exception {
+        File indexFile = SegmentIndex.getIndexFile(segment);
+        Assert.assertTrue(indexFile.exists());
+        assertIndexWorks();
+    }
+
+    public void testRebuildMissingIndex() throws Exception {
+        File indexFile = SegmentIndex.getIndexFile(segment);
+        Assert.assertTrue(indexFile.delete());
+        assertIndexWorks();
+
+        SegmentIndex.load(segment).flush();
+        Assert.assertTrue(indexFile.exists());
+        assertIndexWorks();
+    }
+
+    public void testCatchUpWithTruncatedIndex() throws Exception {
+        File indexFile = SegmentIndex.getIndexFile(segment);
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.setLength(file.length() - 20);
+        } finally {
+            file.close();
+        }
+
+        assertIndexWorks();
+    }
+
+    public void testReopenSegmentStartedByAppend() throws Exception {
+        long tomorrow = dayStart + HistorySegments.DAY_MS;
+        HistorySegments segments = new HistorySegments(directory);
+        segments.append(Collections.singletonList(
+                HistoryEvent.createBatteryLevelEvent(tomorrow, 50)));
+        segments.close();
+
+        // The cached index for the new segment must not think the first append was torn
+        segments.append(Collections.singletonList(
+                HistoryEvent.createBatteryLevelEvent(tomorrow + 1000, 49)));
+        segments.close();
+
+        SegmentIndex index =
+                SegmentIndex.load(segments.getSegmentFile(HistorySegments.getDay(tomorrow)));
+        Assert.assertEquals(2, index.getEventCount());
+    }
+}
@@ -23,12 +23,13 @@ import org.junit.Assert;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 
 public class SystemStateTest extends TestCase {
-    private final Date now = new Date();
-    private final Date then = new Date(now.getTime() - History.FIVE_MINUTES_MS);
-    private final Date bootTimestamp = new Date(then.getTime() - History.FIVE_MINUTES_MS);
+    private final long now = System.currentTimeMillis();
+    private final long then = now - History.FIVE_MINUTES_MS;
+    private final long bootTimestamp = then - History.FIVE_MINUTES_MS;
+
+    private final PackageDictionary packages = new PackageDictionary();
 
     public void testConstructor() {
         try {
@@ -93,33 +94,33 @@ public class SystemStateTest extends TestCase {
         SystemState a = new SystemState(then, 27, false, bootTimestamp);
 
         SystemState b = new SystemState(now, 26, false, bootTimestamp);
-        assertEvents(b.getEventsSince(a), HistoryEvent.createBatteryLevelEvent(now, 26));
+        assertEvents(b.getEventsSince(a, packages), HistoryEvent.createBatteryLevelEvent(now, 26));
 
         SystemState c = new SystemState(now, 28, true, bootTimestamp);
-        assertEvents(c.getEventsSince(a),
+        assertEvents(c.getEventsSince(a, packages),
                 HistoryEvent.createStartChargingEvent(between(then, now)),
                 HistoryEvent.createBatteryLevelEvent(now, 28));
 
         SystemState d = new SystemState(now, 29, true, bootTimestamp);
-        assertNoEvents(d.getEventsSince(c));
+        assertNoEvents(d.getEventsSince(c, packages));
     }
 
     public void testStartChargingEvent() {
         SystemState a = new SystemState(then, 27, false, bootTimestamp);
         SystemState b = new SystemState(now, 27, true, bootTimestamp);
 
-        assertEvents(b.getEventsSince(a), HistoryEvent.createStartChargingEvent(between(then, now)));
+        assertEvents(b.getEventsSince(a, packages), HistoryEvent.createStartChargingEvent(between(then, now)));
     }
 
     public void testStopChargingEvent() {
         SystemState a = new SystemState(then, 27, true, bootTimestamp);
         SystemState b = new SystemState(now, 27, false, bootTimestamp);
 
-        assertEvents(b.getEventsSince(a), HistoryEvent.createStopChargingEvent(between(then, now)));
+        assertEvents(b.getEventsSince(a, packages), HistoryEvent.createStopChargingEvent(between(then, now)));
     }
 
-    private static Date between(Date t0, Date t1) {
-        return new Date((t0.getTime() + t1.getTime()) / 2);
+    private static long between(long t0, long t1) {
+        return (t0 + t1) / 2;
     }
 
     public void testInstallEvent() {
@@ -128,7 +129,10 @@ public class SystemStateTest extends TestCase {
         SystemState b = new SystemState(now, 27, false, bootTimestamp);
         b.addInstalledApp("a.b.c", "ABC", "1.2.3");
 
-        assertEvents(b.getEventsSince(a), HistoryEvent.createInfoEvent(between(then, now), "ABC 1.2.3 installed"));
+        Collection<HistoryEvent> events = b.getEventsSince(a, packages);
+        assertEvents(events, HistoryEvent.createPackageInstalledEvent(between(then, now),
+                packages.findPackageId("a.b.c"), packages.getVersionId("1.2.3")));
+        Assert.assertEquals("ABC 1.2.3 installed", describe(events));
     }
 
     public void testUninstallEvent() {
@@ -137,7 +141,10 @@ public class SystemStateTest extends TestCase {
 
         SystemState b = new SystemState(now, 27, false, bootTimestamp);
 
-        assertEvents(b.getEventsSince(a), HistoryEvent.createInfoEvent(between(then, now), "ABC 1.2.3 uninstalled"));
+        Collection<HistoryEvent> events = b.getEventsSince(a, packages);
+        assertEvents(events, HistoryEvent.createPackageRemovedEvent(between(then, now),
+                packages.findPackageId("a.b.c"), packages.getVersionId("1.2.3")));
+        Assert.assertEquals("ABC 1.2.3 uninstalled", describe(events));
     }
 
     public void testUpgradeEvent() {
@@ -147,7 +154,18 @@ public class SystemStateTest extends TestCase {
         SystemState b = new SystemState(now, 27, false, bootTimestamp);
         b.addInstalledApp("a.b.c", "ABC", "2.3.4");
 
-        assertEvents(b.getEventsSince(a), HistoryEvent.createInfoEvent(between(then, now), "ABC upgraded from 1.2.3 to 2.3.4"));
+        Collection<HistoryEvent> events = b.getEventsSince(a, packages);
+        assertEvents(events, HistoryEvent.createPackageUpgradedEvent(between(then, now),
+                packages.findPackageId("a.b.c"),
+                packages.getVersionId("1.2.3"), packages.getVersionId("2.3.4")));
+        Assert.assertEquals("ABC upgraded from 1.2.3 to 2.3.4", describe(events));
+    }
+
+    private String describe(Collection<HistoryEvent> events) {
+        Assert.assertEquals(1, events.size());
+        HistoryCursor cursor = EventColumns.of(events).cursor();
+        Assert.assertTrue(cursor.moveToNext());
+        return packages.describe(cursor);
     }
 
     public void testPersistence() throws Exception {
@@ -170,30 +188,30 @@ public class SystemStateTest extends TestCase {
     }
 
     public void testHaltAndBootEvents() {
-        Date boot1 = new Date(0);
-        Date sample1 = new Date(100000);
-        Date boot2 = new Date(200000);
-        Date sample2 = new Date(300000);
+        long boot1 = 0;
+        long sample1 = 100000;
+        long boot2 = 200000;
+        long sample2 = 300000;
 
         SystemState beforeReboot = new SystemState(sample1, 27, false, boot1);
         SystemState afterReboot = new SystemState(sample2, 27, false, boot2);
 
-        assertEvents(afterReboot.getEventsSince(beforeReboot),
-                HistoryEvent.createSystemHaltingEvent(new Date(sample1.getTime() + 1)),
+        assertEvents(afterReboot.getEventsSince(beforeReboot, packages),
+                HistoryEvent.createSystemHaltingEvent(sample1 + 1),
                 HistoryEvent.createSystemBootingEvent(boot2, false));
     }
 
     public void testHaltAndBootAndChargeEvents() {
-        Date boot1 = new Date(0);
-        Date sample1 = new Date(100000);
-        Date boot2 = new Date(200000);
-        Date sample2 = new Date(300000);
+        long boot1 = 0;
+        long sample1 = 100000;
+        long boot2 = 200000;
+        long sample2 = 300000;
 
         SystemState beforeReboot = new SystemState(sample1, 27, false, boot1);
         SystemState afterReboot = new SystemState(sample2, 27, true, boot2);
 
-        assertEvents(afterReboot.getEventsSince(beforeReboot),
-                HistoryEvent.createSystemHaltingEvent(new Date(sample1.getTime() + 1)),
+        assertEvents(afterReboot.getEventsSince(beforeReboot, packages),
+                HistoryEvent.createSystemHaltingEvent(sample1 + 1),
                 HistoryEvent.createSystemBootingEvent(boot2, true));
     }
 
@@ -209,18 +227,22 @@ public class SystemStateTest extends TestCase {
         b.addInstalledApp("a.b.c", "Upgrader", "1.2.5");
         b.addInstalledApp("g.h.i", "Adder", "5.6.7");
 
-        Date datesBetween[] = SystemState.between(then, now, 4);
+        long datesBetween[] = SystemState.between(then, now, 4);
         // Note that the actual order here is arbitrary
-        assertEvents(b.getEventsSince(a),
+        assertEvents(b.getEventsSince(a, packages),
                 HistoryEvent.createStopChargingEvent(datesBetween[0]),
-                HistoryEvent.createInfoEvent(datesBetween[1], "Adder 5.6.7 installed"),
-                HistoryEvent.createInfoEvent(datesBetween[2], "Remover 2.3.4 uninstalled"),
-                HistoryEvent.createInfoEvent(datesBetween[3], "Upgrader upgraded from 1.2.3 to 1.2.5"),
+                HistoryEvent.createPackageInstalledEvent(datesBetween[1],
+                        packages.findPackageId("g.h.i"), packages.getVersionId("5.6.7")),
+                HistoryEvent.createPackageRemovedEvent(datesBetween[2],
+                        packages.findPackageId("d.e.f"), packages.getVersionId("2.3.4")),
+                HistoryEvent.createPackageUpgradedEvent(datesBetween[3],
+                        packages.findPackageId("a.b.c"),
+                        packages.getVersionId("1.2.3"), packages.getVersionId("1.2.5")),
                 HistoryEvent.createBatteryLevelEvent(now, 26));
     }
 
     public void testBetween() {
-        Date dates[] = SystemState.between(then, now, 1);
+        long dates[] = SystemState.between(then, now, 1);
         Assert.assertEquals(1, dates.length);
         Assert.assertEquals(between(then, now), dates[0]);
     }
@@ -230,11 +252,11 @@ public class SystemStateTest extends TestCase {
      * are calculated will millisecond precision we need some margin of error.
      */
     public void testBootTimeLeniency() {
-        SystemState a = new SystemState(now, 27, false, new Date(0));
-        SystemState b = new SystemState(now, 27, false, new Date(10 * 1000));
+        SystemState a = new SystemState(now, 27, false, 0);
+        SystemState b = new SystemState(now, 27, false, 10 * 1000);
         Assert.assertEquals(a, b);
 
-        SystemState c = new SystemState(now, 27, false, new Date(100 * 1000));
+        SystemState c = new SystemState(now, 27, false, 100 * 1000);
         Assert.assertFalse(a.equals(c));
     }
 }